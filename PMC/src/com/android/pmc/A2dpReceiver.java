@@ -30,10 +30,12 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.media.MediaPlayer;
 import android.net.Uri;
-import android.os.Bundle;
 import android.os.SystemClock;
 import android.util.Log;
 
+import com.android.pmc.CommandRegistry.CommandArgs;
+import com.android.pmc.CommandRegistry.ParamSpec;
+
 import java.util.ArrayList;
 import java.util.Set;
 
@@ -44,6 +46,7 @@ public class A2dpReceiver extends BroadcastReceiver {
     public static final String TAG = "A2DPPOWER";
     public static final String A2DP_INTENT = "com.android.pmc.A2DP";
     public static final String A2DP_ALARM = "com.android.pmc.A2DP.Alarm";
+    public static final String A2DP_COMMAND = "StartA2dpPlay";
     public static final int THOUSAND = 1000;
     public static final int WAIT_SECONDS = 10;
     public static final int ALARM_MESSAGE = 1;
@@ -53,12 +56,16 @@ public class A2dpReceiver extends BroadcastReceiver {
 
     private final Context mContext;
     private final AlarmManager mAlarmManager;
-    private final BluetoothAdapter mBluetoothAdapter;
+    // Turns Bluetooth on and binds the A2DP proxy, so only created when streaming over it
+    private final WorkloadRegistry.Workload<BluetoothAdapter> mBluetoothAdapter;
+    private final WorkloadExecutor mExecutor;
 
     private MediaPlayer mPlayer;
-    private BluetoothA2dp mBluetoothA2dp;
+    // Set by the profile listener on the main thread, read on the A2DP workload thread
+    private volatile BluetoothA2dp mBluetoothA2dp;
 
     private PMCStatusLogger mPMCStatusLogger;
+    private CommandRegistry mCommandRegistry;
 
     /**
      * BroadcastReceiver() to get status after calling setCodecConfigPreference()
@@ -100,39 +107,35 @@ public class A2dpReceiver extends BroadcastReceiver {
      *
      * @param context - PMC will provide a context
      * @param alarmManager - PMC will provide alarmManager
+     * @param workloads - registry the Bluetooth setup is lazily created through
      */
-    public A2dpReceiver(Context context, AlarmManager alarmManager) {
+    public A2dpReceiver(Context context, AlarmManager alarmManager,
+            WorkloadRegistry workloads) {
         // Prepare for setting alarm service
         mContext = context;
         mAlarmManager = alarmManager;
+        mExecutor = new WorkloadExecutor(TAG);
+        mBluetoothAdapter = workloads.register("A2dpBluetooth", this::setupBluetooth);
+        Log.d(TAG, "A2dpReceiver()");
+    }
 
-        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        if (mBluetoothAdapter == null) {
-            Log.e(TAG, "BluetoothAdapter is Null");
-            return;
-        } else {
-            if (!mBluetoothAdapter.isEnabled()) {
-                Log.d(TAG, "BluetoothAdapter is NOT enabled, enable now");
-                mBluetoothAdapter.enable();
-                if (!mBluetoothAdapter.isEnabled()) {
-                    Log.e(TAG, "Can't enable Bluetooth");
-                    return;
-                }
-            }
-        }
+    /**
+     * Enable Bluetooth and bind the A2DP profile proxy, called on first use only
+     *
+     * @return the Bluetooth adapter, or null if Bluetooth can't be enabled
+     */
+    private BluetoothAdapter setupBluetooth() {
+        BluetoothAdapter bluetoothAdapter = BluetoothEnabler.enable(mContext);
+        if (bluetoothAdapter == null) return null;
+        bluetoothAdapter.getProfileProxy(mContext,
+                                mBluetoothA2dpServiceListener,
+                                BluetoothProfile.A2DP);
+        Log.d(TAG, "After getProfileProxy()");
         // Setup BroadcastReceiver for ACTION_CODEC_CONFIG_CHANGED
         IntentFilter filter = new IntentFilter();
-        if (mBluetoothAdapter != null) {
-            mBluetoothAdapter.getProfileProxy(mContext,
-                                    mBluetoothA2dpServiceListener,
-                                    BluetoothProfile.A2DP);
-            Log.d(TAG, "After getProfileProxy()");
-        }
-        filter = new IntentFilter();
         filter.addAction(BluetoothA2dp.ACTION_CODEC_CONFIG_CHANGED);
         mContext.registerReceiver(mBluetoothA2dpReceiver, filter);
-
-        Log.d(TAG, "A2dpReceiver()");
+        return bluetoothAdapter;
     }
 
     /**
@@ -141,10 +144,14 @@ public class A2dpReceiver extends BroadcastReceiver {
      */
     private boolean initialize() {
         Log.d(TAG, "Start initialize()");
+        BluetoothAdapter bluetoothAdapter = mBluetoothAdapter.get();
+        if (bluetoothAdapter == null) {
+            return false;
+        }
 
         // Check if any Bluetooth devices are connected
         ArrayList<BluetoothDevice> results = new ArrayList<BluetoothDevice>();
-        Set<BluetoothDevice> bondedDevices = mBluetoothAdapter.getBondedDevices();
+        Set<BluetoothDevice> bondedDevices = bluetoothAdapter.getBondedDevices();
         if (bondedDevices == null) {
             Log.e(TAG, "Bonded devices list is null");
             return false;
@@ -165,6 +172,30 @@ public class A2dpReceiver extends BroadcastReceiver {
         return true;
     }
 
+    /**
+     * Register the A2DP commands with PMC command registry
+     *
+     * @param registry - PMC will provide the command registry
+     */
+    public void registerCommands(CommandRegistry registry) {
+        mCommandRegistry = registry;
+        registry.register(A2DP_COMMAND, mExecutor, args -> startA2dpTest(args),
+                ParamSpec.flag("BT_OFF_Mute"),
+                ParamSpec.flag("BT_ON_NotPlay"),
+                ParamSpec.optionalInt("PlayTime", 0).min(0),
+                ParamSpec.optionalString("MusicURL", null),
+                ParamSpec.optionalInt("CodecType",
+                        BluetoothCodecConfig.SOURCE_CODEC_TYPE_INVALID),
+                ParamSpec.optionalInt("SampleRate", BluetoothCodecConfig.SAMPLE_RATE_NONE),
+                ParamSpec.optionalInt("BitsPerSample",
+                        BluetoothCodecConfig.BITS_PER_SAMPLE_NONE),
+                ParamSpec.optionalInt("ChannelMode", BluetoothCodecConfig.CHANNEL_MODE_STEREO),
+                ParamSpec.optionalLong("LdacPlaybackQuality", 0),
+                ParamSpec.optionalLong("CodecSpecific2", 0),
+                ParamSpec.optionalLong("CodecSpecific3", 0),
+                ParamSpec.optionalLong("CodecSpecific4", 0));
+    }
+
     /**
      * Method to receive the broadcast from Python client or AlarmManager
      *
@@ -176,23 +207,42 @@ public class A2dpReceiver extends BroadcastReceiver {
         if (!intent.getAction().equals(A2DP_INTENT)) return;
         boolean alarm = intent.hasExtra(A2DP_ALARM);
         if (alarm) {
+            AlarmLatencyTracker.onDelivered(TAG, intent);
             Log.v(TAG, "Alarm Message to Stop playing");
-            mPMCStatusLogger.logStatus("SUCCEED");
-            mPlayer.stop();
-            // Release the Media Player
-            mPlayer.release();
+            // The player is owned by the A2DP workload thread
+            mExecutor.execute("StopA2dpPlay", () -> {
+                mPMCStatusLogger.logStatus("SUCCEED");
+                mPlayer.stop();
+                // Release the Media Player
+                mPlayer.release();
+            });
         } else {
             Log.d(TAG, "Received PMC command message");
-            processParameters(intent);
+            if (intent.getExtras() == null) {
+                Log.e(TAG, "No parameters specified");
+                setResultData(CommandRegistry.RESULT_ERROR_PREFIX + "No parameters specified");
+                return;
+            }
+            PMCService.dispatchBroadcast(this, mCommandRegistry, A2DP_COMMAND,
+                    intent.getExtras());
         }
     }
 
     /**
-     * Method to process parameters from Python client
+     * Unregister the codec receiver if Bluetooth was set up, and release the A2DP workload
+     * thread once the queued tasks have run.
+     */
+    public void release() {
+        if (mBluetoothAdapter.peek() != null) mContext.unregisterReceiver(mBluetoothA2dpReceiver);
+        mExecutor.quit();
+    }
+
+    /**
+     * Handler of the A2DP command, parameters are already parsed by the registry
      *
-     * @param intent - system will provide an intent to this function
+     * @param args - parsed A2DP parameters from Python client
      */
-    private void processParameters(Intent intent) {
+    private String startA2dpTest(CommandArgs args) throws CommandException {
         int codecType = BluetoothCodecConfig.SOURCE_CODEC_TYPE_INVALID;
         int sampleRate = BluetoothCodecConfig.SAMPLE_RATE_NONE;
         int bitsPerSample = BluetoothCodecConfig.BITS_PER_SAMPLE_NONE;
@@ -201,26 +251,14 @@ public class A2dpReceiver extends BroadcastReceiver {
         // Other code specific values are not used now
         long codecSpecific1 = 0, codecSpecific2 = 0, codecSpecific3 = 0,
                 codecSpecific4 = 0;
-        int playTime = 0;
-        String musicUrl;
-        String tmpStr;
 
         // Create the logger object
         mPMCStatusLogger = new PMCStatusLogger(TAG + ".log", TAG);
 
         // For a baseline case when Blueooth is off but music is playing with speaker is muted
-        boolean bt_off_mute = false;
-
-        Bundle extras = intent.getExtras();
-
-        if (extras == null) {
-            Log.e(TAG, "No parameters specified");
-            return;
-        }
-
-        if (extras.containsKey("BT_OFF_Mute")) {
+        boolean bt_off_mute = args.getFlag("BT_OFF_Mute");
+        if (bt_off_mute) {
             Log.v(TAG, "Mute is specified for Bluetooth off baseline case");
-            bt_off_mute = true;
         }
 
         // initialize() if we are testing over Bluetooth, we do NOT test
@@ -228,115 +266,58 @@ public class A2dpReceiver extends BroadcastReceiver {
         if (!bt_off_mute) {
             if (!initialize()) {
                 mPMCStatusLogger.logStatus("initialize() Failed");
-                return;
+                throw new CommandException("initialize() Failed");
             }
         }
         // Check if it is baseline Bluetooth is on but not stream
-        if (extras.containsKey("BT_ON_NotPlay")) {
+        if (args.getFlag("BT_ON_NotPlay")) {
             Log.v(TAG, "NotPlay is specified for baseline case that only Bluetooth is on");
             // Do nothing further
             mPMCStatusLogger.logStatus("READY");
             mPMCStatusLogger.logStatus("SUCCEED");
-            return;
-        }
-
-        if (!extras.containsKey("PlayTime")) {
-            Log.e(TAG, "No Play Time specified");
-            return;
+            return "SUCCEED";
         }
-        tmpStr = extras.getString("PlayTime");
-        Log.d(TAG, "Play Time = " + tmpStr);
-        playTime = Integer.valueOf(tmpStr);
-
-        if (!extras.containsKey("MusicURL")) {
-            Log.e(TAG, "No Music URL specified");
-            return;
-        }
-        musicUrl = extras.getString("MusicURL");
-        Log.d(TAG, "Music URL = " + musicUrl);
 
         // playTime and musicUrl are necessary
-        if (playTime == 0 || musicUrl.isEmpty() || musicUrl == null) {
-            Log.d(TAG, "Invalid paramters");
-            return;
+        int playTime = args.getInt("PlayTime");
+        String musicUrl = args.getString("MusicURL");
+        Log.d(TAG, "Play Time = " + playTime + " Music URL = " + musicUrl);
+        if (playTime == 0 || musicUrl == null || musicUrl.isEmpty()) {
+            throw new CommandException("PlayTime and MusicURL must be specified");
         }
         // Check if it is the baseline that Bluetooth is off but streaming with speakers muted
         if (!bt_off_mute) {
-            if (!extras.containsKey("CodecType")) {
-                Log.e(TAG, "No Codec Type specified");
-                return;
-            }
-            tmpStr = extras.getString("CodecType");
-            Log.d(TAG, "Codec Type= " + tmpStr);
-            codecType = Integer.valueOf(tmpStr);
-
-            if (!extras.containsKey("SampleRate")) {
-                Log.e(TAG, "No Sample Rate specified");
-                return;
-            }
-            tmpStr = extras.getString("SampleRate");
-            Log.d(TAG, "Sample Rate = " + tmpStr);
-            sampleRate = Integer.valueOf(tmpStr);
-
-            if (!extras.containsKey("BitsPerSample")) {
-                Log.e(TAG, "No BitsPerSample specified");
-                return;
-            }
-            tmpStr = extras.getString("BitsPerSample");
-            Log.d(TAG, "BitsPerSample = " + tmpStr);
-            bitsPerSample = Integer.valueOf(tmpStr);
-
-            if (extras.containsKey("ChannelMode")) {
-                tmpStr = extras.getString("ChannelMode");
-                Log.d(TAG, "ChannelMode = " + tmpStr);
-                channelMode = Integer.valueOf(tmpStr);
-            }
-
-            if (extras.containsKey("LdacPlaybackQuality")) {
-                tmpStr = extras.getString("LdacPlaybackQuality");
-                Log.d(TAG, "LdacPlaybackQuality = " + tmpStr);
-                codecSpecific1 = Integer.valueOf(tmpStr);
-            }
-
-            if (extras.containsKey("CodecSpecific2")) {
-                tmpStr = extras.getString("CodecSpecific2");
-                Log.d(TAG, "CodecSpecific2 = " + tmpStr);
-                codecSpecific1 = Integer.valueOf(tmpStr);
-            }
-
-            if (extras.containsKey("CodecSpecific3")) {
-                tmpStr = extras.getString("CodecSpecific3");
-                Log.d(TAG, "CodecSpecific3 = " + tmpStr);
-                codecSpecific1 = Integer.valueOf(tmpStr);
-            }
-
-            if (extras.containsKey("CodecSpecific4")) {
-                tmpStr = extras.getString("CodecSpecific4");
-                Log.d(TAG, "CodecSpecific4 = " + tmpStr);
-                codecSpecific1 = Integer.valueOf(tmpStr);
-            }
+            codecType = args.getInt("CodecType");
+            sampleRate = args.getInt("SampleRate");
+            bitsPerSample = args.getInt("BitsPerSample");
+            channelMode = args.getInt("ChannelMode");
+            codecSpecific1 = args.getLong("LdacPlaybackQuality");
+            codecSpecific2 = args.getLong("CodecSpecific2");
+            codecSpecific3 = args.getLong("CodecSpecific3");
+            codecSpecific4 = args.getLong("CodecSpecific4");
 
             if (codecType == BluetoothCodecConfig.SOURCE_CODEC_TYPE_INVALID
                     || sampleRate == BluetoothCodecConfig.SAMPLE_RATE_NONE
                     || bitsPerSample == BluetoothCodecConfig.BITS_PER_SAMPLE_NONE) {
-                Log.d(TAG, "Invalid parameters");
-                return;
+                throw new CommandException(
+                        "CodecType, SampleRate and BitsPerSample must be specified");
             }
         }
 
-        if (playMusic(musicUrl, bt_off_mute)) {
-            // Set the requested Codecs on the device for normal codec cases
-            if (!bt_off_mute) {
-                if (!setCodecValue(codecType, sampleRate, bitsPerSample, channelMode,
-                        codecSpecific1, codecSpecific2, codecSpecific3, codecSpecific4)) {
-                    mPMCStatusLogger.logStatus("setCodecValue() Failed");
-                }
-            }
-            mPMCStatusLogger.logStatus("READY");
-            startAlarm(playTime);
-        } else {
+        if (!playMusic(musicUrl, bt_off_mute)) {
             mPMCStatusLogger.logStatus("playMusic() Failed");
+            throw new CommandException("playMusic() Failed");
+        }
+        // Set the requested Codecs on the device for normal codec cases
+        if (!bt_off_mute) {
+            if (!setCodecValue(codecType, sampleRate, bitsPerSample, channelMode,
+                    codecSpecific1, codecSpecific2, codecSpecific3, codecSpecific4)) {
+                mPMCStatusLogger.logStatus("setCodecValue() Failed");
+            }
         }
+        mPMCStatusLogger.logStatus("READY");
+        startAlarm(playTime);
+        return "READY";
     }
 
 
@@ -386,6 +367,7 @@ public class A2dpReceiver extends BroadcastReceiver {
 
         long triggerTime = SystemClock.elapsedRealtime()
                                + alarmStartTime * THOUSAND;
+        AlarmLatencyTracker.putTriggerTime(alarmIntent, triggerTime);
         mAlarmManager.setExactAndAllowWhileIdle(
                           AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerTime,
                           PendingIntent.getBroadcast(mContext, 0,
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Delivery latency of the alarms of all PMC workloads.
+ *
+ * Every alarm path records the elapsedRealtime() its alarm was set for and the time it was
+ * actually delivered. The difference is kept in one histogram per workload and every delivery
+ * goes to the ALARMS timeline, so the power lost to late alarms, e.g. in doze, can be told
+ * apart from the workload itself. Alarms whose intent is built per alarm carry their trigger
+ * time as an extra, see putTriggerTime().
+ */
+public class AlarmLatencyTracker {
+    public static final String TAG = "ALARMS";
+    public static final String EXTRA_TRIGGER_TIME = "com.android.pmc.ALARM.TriggerTime";
+    public static final String QUERY_COMMAND = "GetAlarmLatency";
+    public static final String RESET_COMMAND = "ResetAlarmLatency";
+
+    private static final Map<String, LatencyHistogram> sHistograms =
+            new TreeMap<String, LatencyHistogram>();
+    // Only reset on request, over a long run it keeps the most recent alarms
+    private static final int TIMELINE_MAX_EVENTS = 8192;
+    private static final PMCTimeline sTimeline = new PMCTimeline(TAG, TIMELINE_MAX_EVENTS);
+
+    private AlarmLatencyTracker() {}
+
+    /**
+     * Attach the time an alarm is set for to its intent.
+     *
+     * @param intent - intent the alarm will broadcast
+     * @param triggerTime - elapsedRealtime() the alarm is set for
+     */
+    public static Intent putTriggerTime(Intent intent, long triggerTime) {
+        return intent.putExtra(EXTRA_TRIGGER_TIME, triggerTime);
+    }
+
+    /**
+     * Record the delivery of an alarm whose intent carries its trigger time. Intents without
+     * one, e.g. commands sent to the same receiver, are ignored.
+     *
+     * @param workload - workload the alarm belongs to
+     * @param intent - intent delivered by the alarm
+     */
+    public static void onDelivered(String workload, Intent intent) {
+        long triggerTime = intent.getLongExtra(EXTRA_TRIGGER_TIME, -1);
+        if (triggerTime < 0) return;
+        onDelivered(workload, triggerTime);
+    }
+
+    /**
+     * Record the delivery of an alarm now.
+     *
+     * @param workload - workload the alarm belongs to
+     * @param triggerTime - elapsedRealtime() the alarm was set for
+     */
+    public static void onDelivered(String workload, long triggerTime) {
+        long latency = SystemClock.elapsedRealtime() - triggerTime;
+        getHistogram(workload).record(latency);
+        sTimeline.record(workload, "alarm", triggerTime, null);
+        Log.v(TAG, workload + " alarm delivered " + latency + " ms late");
+    }
+
+    private static LatencyHistogram getHistogram(String workload) {
+        synchronized (sHistograms) {
+            LatencyHistogram histogram = sHistograms.get(workload);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                sHistograms.put(workload, histogram);
+            }
+            return histogram;
+        }
+    }
+
+    /**
+     * Write the timeline of the deliveries and return one line per workload with the
+     * histogram of the delivery latencies, in milliseconds.
+     */
+    public static String getSummary() {
+        sTimeline.flush();
+        StringBuilder sb = new StringBuilder();
+        synchronized (sHistograms) {
+            for (Map.Entry<String, LatencyHistogram> entry : sHistograms.entrySet()) {
+                sb.append(entry.getKey()).append(" late[")
+                        .append(entry.getValue().toSummary("ms")).append("]\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Drop all the recorded deliveries, e.g. at the start of a measurement.
+     */
+    public static void reset() {
+        synchronized (sHistograms) {
+            sHistograms.clear();
+        }
+        sTimeline.reset();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanResult;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Per-device counters of the BLE scan results of one scan window.
+ *
+ * In LOW_LATENCY mode a busy room delivers thousands of advertisements per second, so a result
+ * only updates primitive columns indexed through a LongIntMap keyed by the packed MAC address:
+ * it builds no string and writes no log. Only growing the columns allocates. One result in
+ * logSampleRate is logged, none if it is 0.
+ *
+ * Every callback, of a single result or of a batch, wakes the application processor once, so
+ * the deliveries per minute show the savings of the batching done by the controller when the
+ * scan has a report delay.
+ *
+ * endWindow() records the summary of the window into the BLE timeline and clears the devices,
+ * keeping the capacity for the next window.
+ */
+public class BleResultAggregator {
+    private static final int INITIAL_DEVICES = 64;
+    private static final long MINUTE_MS = 60 * 1000L;
+
+    private final String mTag;
+    private final PMCTimeline mTimeline;
+    private final int mLogSampleRate;
+    private final LongIntMap mIndex = new LongIntMap(INITIAL_DEVICES);
+    private int[] mCounts = new int[INITIAL_DEVICES];
+    private int[] mMinRssi = new int[INITIAL_DEVICES];
+    private int[] mMaxRssi = new int[INITIAL_DEVICES];
+    private long[] mRssiSums = new long[INITIAL_DEVICES];
+    private long mWindowStart;
+    private long mWindowResults;
+    private long mWindowRssiSum;
+    private long mWindowDeliveries;
+    private long mDeliveries;
+    private long mScanMs;
+    private long mTotalResults;
+    private long mWindows;
+
+    /**
+     * Constructor
+     *
+     * @param tag - tag of the logs, source of the events and name of the timeline
+     * @param logSampleRate - log one result in that many, 0 for none
+     */
+    public BleResultAggregator(String tag, int logSampleRate) {
+        mTag = tag;
+        mLogSampleRate = logSampleRate;
+        mTimeline = new PMCTimeline(tag + "_results");
+    }
+
+    /**
+     * Start a scan window.
+     *
+     * @param now - current time, in milliseconds
+     */
+    public synchronized void startWindow(long now) {
+        mIndex.clear();
+        mWindowStart = now;
+        mWindowResults = 0;
+        mWindowRssiSum = 0;
+        mWindowDeliveries = 0;
+    }
+
+    /**
+     * Account one scan result delivered on its own.
+     *
+     * @param result - result delivered by the scanner
+     */
+    public synchronized void onResult(ScanResult result) {
+        mWindowDeliveries++;
+        mDeliveries++;
+        add(result);
+    }
+
+    /**
+     * Account a batch of scan results delivered at once.
+     *
+     * @param results - results buffered by the controller
+     */
+    public synchronized void onBatch(List<ScanResult> results) {
+        mWindowDeliveries++;
+        mDeliveries++;
+        if (results == null) return;
+        for (int i = 0; i < results.size(); i++) add(results.get(i));
+    }
+
+    private void add(ScanResult result) {
+        BluetoothDevice device = result == null ? null : result.getDevice();
+        if (device == null) return;
+        // Same aa:bb:cc:dd:ee:ff form as a BSSID
+        long mac = ScanResultStore.packBssid(device.getAddress());
+        if (mac < 0) return;
+        int rssi = result.getRssi();
+        int i = mIndex.get(mac);
+        if (i == LongIntMap.NO_VALUE) {
+            i = mIndex.size();
+            if (i == mCounts.length) grow();
+            mIndex.put(mac, i);
+            mCounts[i] = 0;
+            mMinRssi[i] = Integer.MAX_VALUE;
+            mMaxRssi[i] = Integer.MIN_VALUE;
+            mRssiSums[i] = 0;
+        }
+        mCounts[i]++;
+        mMinRssi[i] = Math.min(mMinRssi[i], rssi);
+        mMaxRssi[i] = Math.max(mMaxRssi[i], rssi);
+        mRssiSums[i] += rssi;
+        mWindowResults++;
+        mWindowRssiSum += rssi;
+        mTotalResults++;
+        if (mLogSampleRate > 0 && mTotalResults % mLogSampleRate == 0) {
+            Log.d(mTag, "Bluetooth scan result " + mTotalResults + ": " + result);
+        }
+    }
+
+    /**
+     * End the scan window, record and return its summary.
+     *
+     * @param now - current time, in milliseconds
+     * @param cycle - index of the window
+     */
+    public synchronized String endWindow(long now, int cycle) {
+        mWindows++;
+        long durationMs = Math.max(now - mWindowStart, 1);
+        mScanMs += durationMs;
+        int busiest = -1;
+        for (int i = 0; i < mIndex.size(); i++) {
+            if (busiest < 0 || mCounts[i] > mCounts[busiest]) busiest = i;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(mWindowResults).append(" results of ").append(mIndex.size())
+                .append(" devices in ").append(durationMs).append(" ms, ")
+                .append(mWindowResults * 1000 / durationMs).append(" results/s, ")
+                .append(mWindowDeliveries).append(" deliveries, ")
+                .append(mWindowDeliveries * MINUTE_MS / durationMs).append(" AP wakeups/min");
+        if (busiest >= 0) {
+            sb.append(", mean RSSI ").append(mWindowRssiSum / mWindowResults)
+                    .append(" dBm, busiest ")
+                    .append(ScanResultStore.formatBssid(mIndex.keyAt(busiest)))
+                    .append(' ').append(mCounts[busiest]).append(" results RSSI ")
+                    .append(mMinRssi[busiest]).append('/')
+                    .append(mRssiSums[busiest] / mCounts[busiest]).append('/')
+                    .append(mMaxRssi[busiest]).append(" dBm min/mean/max");
+        }
+        String summary = sb.toString();
+        mTimeline.record(mTag, "window " + cycle, summary);
+        Log.i(mTag, "Scan window " + cycle + ": " + summary);
+        return summary;
+    }
+
+    /**
+     * Write the timeline of the windows into PMC log directory.
+     */
+    public synchronized void flush() {
+        mTimeline.record(mTag, "stop", mTotalResults + " results in " + mDeliveries
+                + " deliveries over " + mWindows + " windows, "
+                + mDeliveries * MINUTE_MS / Math.max(mScanMs, 1) + " AP wakeups/min scanning");
+        mTimeline.flush();
+    }
+
+    private void grow() {
+        int capacity = mCounts.length * 2;
+        mCounts = Arrays.copyOf(mCounts, capacity);
+        mMinRssi = Arrays.copyOf(mMinRssi, capacity);
+        mMaxRssi = Arrays.copyOf(mMaxRssi, capacity);
+        mRssiSums = Arrays.copyOf(mRssiSums, capacity);
+    }
+}
@@ -28,11 +28,14 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.Bundle;
 import android.os.SystemClock;
 import android.util.Log;
 
+import com.android.pmc.CommandRegistry.CommandArgs;
+import com.android.pmc.CommandRegistry.ParamSpec;
+
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -41,24 +44,39 @@ import java.util.List;
 public class BleScanReceiver extends BroadcastReceiver {
     public static final String TAG = "BLEPOWER";
     public static final String BLE_SCAN_INTENT = "com.android.pmc.BLESCAN";
-    public static final int START_SCAN = 1;
-    public static final int STOP_SCAN = 2;
-    public static final int INIT_ALARM_NO = 1;
+    public static final String BLE_SCAN_COMMAND = "StartBleScan";
+    public static final String SIMULATE_COMMAND = "SimulateBleScan";
+    // Longest wait for the results flushed at the end of a batched scan
+    private static final long FLUSH_TIMEOUT_MS = 1000;
     private final Context mContext;
     private final AlarmManager mAlarmManager;
-    private final BleScanListener mAlarmScanListener;
+    // Created by the first scan command, as it turns Bluetooth on
+    private final WorkloadRegistry.Workload<BleScanListener> mAlarmScanListener;
+    private final WorkloadExecutor mExecutor;
     private BluetoothLeScanner mBleScanner;
     private ScanSettings mScanSettings;
     private List<ScanFilter> mScanFilterList;
     // Use PMCStatusLogger to send status and start & end times back to Python client
     private PMCStatusLogger mPMCStatusLogger;
-    // Test start time is set when receiving the broadcast message from Python client
-    private long mStartTestTime;
+    private CommandRegistry mCommandRegistry;
+    // Results of the test running, created by each scan command
+    private volatile BleResultAggregator mResults = new BleResultAggregator(TAG, 0);
+    // Sequence number of the scan waiting for its flushed results, -1 if none
+    private volatile long mFlushingScan = -1;
 
     private ScanCallback mScanCallback = new ScanCallback() {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            Log.e(TAG, "Bluetooth scan result: " + result.toString());
+            mResults.onResult(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            mResults.onBatch(results);
+            final long scan = mFlushingScan;
+            if (scan >= 0) {
+                mExecutor.execute("BleScanFlushed", () -> mAlarmScanListener.get().endScan(scan));
+            }
         }
 
         @Override
@@ -68,19 +86,29 @@ public class BleScanReceiver extends BroadcastReceiver {
     };
 
     /**
-     * Class to provide callback for AlarmManager to start BLE scan alarms
+     * Class to provide callback for AlarmManager to start BLE scan alarms. The duty cycle
+     * itself is scheduled by a DutyCycleEngine, this class binds it to AlarmManager.
      */
-    public class BleScanListener extends BroadcastReceiver {
+    public class BleScanListener extends BroadcastReceiver
+            implements DutyCycleEngine.TimerSource, DutyCycleEngine.Listener {
 
         public static final String BLESCAN =
                        "com.android.pmc.BLESCAN.ALARM";
 
-        private int mScanTime;
-        private int mNoScanTime;
-        private int mNumAlarms;
-        private int mFirstScanTime;
+        private final DutyCycleEngine mEngine;
+        private PendingIntent mAlarmIntent;
+        private List<ScanSettings> mSegmentSettings;
         private long mScanStartTime;
         private long mScanEndTime;
+        // Sequence number and cycle of the scan running or waiting for its flushed results
+        private long mScanSeq;
+        private long mActiveScan = -1;
+        private int mActiveCycle;
+        // Cycles of the plan finished while its last scan waits for its results, -1 if none
+        private int mFinishedCycles = -1;
+        private long mSegmentStartTime;
+        private int mSegmentFirstCycle;
+        private long mSegmentMaxLateMs;
 
         /**
          * Constructor
@@ -88,21 +116,9 @@ public class BleScanReceiver extends BroadcastReceiver {
          */
         public BleScanListener() {
             Log.d(TAG, "Start BleScanListener()");
-            BluetoothAdapter bleAdaptor = BluetoothAdapter.getDefaultAdapter();
-
-            if (bleAdaptor == null) {
-                Log.e(TAG, "BluetoothAdapter is Null");
-                return;
-            } else {
-                if (!bleAdaptor.isEnabled()) {
-                    Log.d(TAG, "BluetoothAdapter is NOT enabled, enable now");
-                    bleAdaptor.enable();
-                    if (!bleAdaptor.isEnabled()) {
-                        Log.e(TAG, "Can't enable Bluetooth");
-                        return;
-                    }
-                }
-            }
+            mEngine = new DutyCycleEngine(SystemClock::elapsedRealtime, this, this);
+            BluetoothAdapter bleAdaptor = BluetoothEnabler.enable(mContext);
+            if (bleAdaptor == null) return;
 
             mBleScanner = bleAdaptor.getBluetoothLeScanner();
             mScanFilterList = new ArrayList<ScanFilter>();
@@ -121,70 +137,131 @@ public class BleScanReceiver extends BroadcastReceiver {
          * Function to be called by BleScanReceiver to start
          * Initial Bluetooth scan alarm
          *
-         * @param scanMode - scan mode
+         * @param segmentSettings - settings of the scans of each segment
          * @param startTime - time when the first scan needs to be started
-         * @param scanTime - time for the scan is lasted
-         * @param noScanTime - time when the scan is stopped
-         * @param numAlarms - number of alarms to start and to stop scan
+         * @param segments - segments of the duty cycle, in order
          *
          */
-        public void firstAlarm(int scanMode, int startTime, int scanTime,
-                               int noScanTime, int numAlarms) {
-            Log.d(TAG, "First Alarm for scan mode: " + scanMode);
-            mScanTime = scanTime;
-            mNoScanTime = noScanTime;
-            mNumAlarms = numAlarms;
-            mFirstScanTime = startTime;
-
-            mScanSettings = new ScanSettings.Builder().setScanMode(
-                                            scanMode).build();
+        public void firstAlarm(List<ScanSettings> segmentSettings, int startTime,
+                               List<DutyCycleEngine.Segment> segments) {
+            Log.d(TAG, "First Alarm for " + segments.size() + " segments, report delay: "
+                    + segmentSettings.get(0).getReportDelayMillis());
+            if (mActiveScan >= 0) {
+                mBleScanner.stopScan(mScanCallback);
+            }
+            mActiveScan = -1;
+            mFlushingScan = -1;
+            mFinishedCycles = -1;
+            mEngine.cancel();
+            mSegmentSettings = segmentSettings;
+            mScanSettings = segmentSettings.get(0);
+            mEngine.start(startTime * 1000L, segments);
+        }
 
+        @Override
+        public void schedule(long triggerTime) {
             Intent alarmIntent = new Intent(BleScanListener.BLESCAN);
-            alarmIntent.putExtra("com.android.pmc.BLESCAN.Action", START_SCAN);
-            alarmIntent.putExtra("com.android.pmc.BLESCAN.CurrentAlarm", INIT_ALARM_NO);
-            long triggerTime = SystemClock.elapsedRealtime() + startTime * 1000;
+            AlarmLatencyTracker.putTriggerTime(alarmIntent, triggerTime);
+            mAlarmIntent = PendingIntent.getBroadcast(mContext, 0,
+                    alarmIntent, PendingIntent.FLAG_UPDATE_CURRENT);
             mAlarmManager.setExactAndAllowWhileIdle(
-                          AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerTime,
-                          PendingIntent.getBroadcast(mContext, 0,
-                                        alarmIntent, PendingIntent.FLAG_UPDATE_CURRENT));
+                          AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerTime, mAlarmIntent);
         }
 
-        /**
-         * Function to be called by onReceive() to start subsequent alarm
-         *
-         * @param intent - intent to get extra data
-         * @param timeInterval - time for alarm to trigger next alarm
-         * @param nextAction - next action for the alarm
-         *
-         */
-        public void repeatAlarm(Intent intent, int timeInterval,
-                                  int nextAction) {
+        @Override
+        public void cancel() {
+            if (mAlarmIntent != null) mAlarmManager.cancel(mAlarmIntent);
+        }
+
+        @Override
+        public void onSegmentStart(int index, DutyCycleEngine.Segment segment) {
+            Log.d(TAG, "Segment " + index + ": " + segment);
+            mScanSettings = mSegmentSettings.get(index);
+            mSegmentStartTime = System.currentTimeMillis();
+            mSegmentFirstCycle = mEngine.getCycle() + 1;
+            mSegmentMaxLateMs = 0;
+        }
 
-            int currentAlarm = intent.getIntExtra("com.android.pmc.BLESCAN.CurrentAlarm", 0);
-            Log.d(TAG, "repeatAlarm() currentAlarm: " + currentAlarm);
-            if (currentAlarm == 0) {
-                Log.d(TAG, "Received Alarm with no currentAlarm");
+        @Override
+        public void onSegmentEnd(int index, DutyCycleEngine.Segment segment) {
+            trackLateness();
+            mPMCStatusLogger.logSegment(index, segment.mMode, mSegmentStartTime / 1000.0,
+                    System.currentTimeMillis() / 1000.0,
+                    mEngine.getCycle() - mSegmentFirstCycle + 1, mSegmentMaxLateMs);
+        }
+
+        @Override
+        public void onStart(int cycle) {
+            Log.v(TAG, "Before Start Scan " + cycle);
+            trackLateness();
+            // The results of the previous scan are late, do not let them overlap this one
+            if (mActiveScan >= 0) endScan(mActiveScan);
+            mActiveScan = ++mScanSeq;
+            mActiveCycle = cycle;
+            mScanStartTime = System.currentTimeMillis();
+            mResults.startWindow(SystemClock.elapsedRealtime());
+            mBleScanner.startScan(mScanFilterList, mScanSettings,
+                             mScanCallback);
+        }
+
+        @Override
+        public void onStop(int cycle) {
+            Log.v(TAG, "Before Stop scan " + cycle);
+            trackLateness();
+            mScanEndTime = System.currentTimeMillis();
+            mPMCStatusLogger.logAlarmTimes(mScanStartTime / 1000.0, mScanEndTime / 1000.0);
+            if (mScanSettings.getReportDelayMillis() <= 0) {
+                endScan(mActiveScan);
                 return;
             }
-            if (currentAlarm >= mNumAlarms) {
-                mPMCStatusLogger.flash();  // To flash out timestamps into log file
-                Log.d(TAG, "All alarms are done");
+            // The controller still buffers results of this window. They are delivered
+            // asynchronously to onBatchScanResults(), which ends the scan, or dropped by
+            // stopScan(), so the scan keeps running until they arrive or the timeout.
+            final long scan = mActiveScan;
+            mFlushingScan = scan;
+            mBleScanner.flushPendingScanResults(mScanCallback);
+            mExecutor.executeDelayed("BleFlushTimeout", () -> endScan(scan), FLUSH_TIMEOUT_MS);
+        }
+
+        @Override
+        public void onFinished(int cycles) {
+            if (mActiveScan >= 0) {
+                mFinishedCycles = cycles;
                 return;
             }
-            Log.d(TAG, "Next Action: " + nextAction);
-            Intent alarmIntent = new Intent(BleScanListener.BLESCAN);
-            alarmIntent.putExtra("com.android.pmc.BLESCAN.Action", nextAction);
-            alarmIntent.putExtra("com.android.pmc.BLESCAN.CurrentAlarm", ++currentAlarm);
-            long triggerTime = SystemClock.elapsedRealtime()
-                                          + timeInterval * 1000;
-            mAlarmManager.setExactAndAllowWhileIdle(
-                          AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerTime,
-                          PendingIntent.getBroadcast(mContext, 0,
-                          alarmIntent, PendingIntent.FLAG_UPDATE_CURRENT));
+            finish(cycles);
         }
 
         /**
-         * Callback will be called for AlarmManager to start Bluetooth LE scan
+         * Stop the scan and end its window, once. Runs on the BLE workload thread.
+         *
+         * @param scan - sequence number of the scan
+         */
+        void endScan(long scan) {
+            if (scan != mActiveScan) return;
+            mActiveScan = -1;
+            mFlushingScan = -1;
+            mBleScanner.stopScan(mScanCallback);
+            mResults.endWindow(SystemClock.elapsedRealtime(), mActiveCycle);
+            if (mFinishedCycles >= 0) {
+                finish(mFinishedCycles);
+                mFinishedCycles = -1;
+            }
+        }
+
+        private void finish(int cycles) {
+            mPMCStatusLogger.flash();  // To flash out timestamps into log file
+            mResults.flush();
+            Log.d(TAG, "All alarms are done after " + cycles + " scans");
+        }
+
+        private void trackLateness() {
+            mSegmentMaxLateMs = Math.max(mSegmentMaxLateMs,
+                    SystemClock.elapsedRealtime() - mEngine.getBoundaryTime());
+        }
+
+        /**
+         * Callback will be called for AlarmManager to start or stop Bluetooth LE scan
          *
          * @param context - system will provide a context to this function
          * @param intent - system will provide an intent to this function
@@ -194,33 +271,8 @@ public class BleScanReceiver extends BroadcastReceiver {
             if (!intent.getAction().equals(BLESCAN)) {
                 return;
             }
-            int action = intent.getIntExtra("com.android.pmc.BLESCAN.Action", 0);
-            Log.d(TAG, "onReceive() Action: " + action);
-            if (action == -1) {
-                Log.e(TAG, "Received Alarm with no Action");
-                return;
-            }
-            if (action == START_SCAN) {
-                Log.v(TAG, "Before Start Scan");
-                mScanStartTime = System.currentTimeMillis();
-                mBleScanner.startScan(mScanFilterList, mScanSettings,
-                                 mScanCallback);
-                repeatAlarm(intent, mScanTime, STOP_SCAN);
-            } else if (action == STOP_SCAN) {
-                Log.v(TAG, "Before Stop scan");
-                mScanEndTime = System.currentTimeMillis();
-                mPMCStatusLogger.logAlarmTimes(mScanStartTime / 1000.0, mScanEndTime / 1000.0);
-                mBleScanner.stopScan(mScanCallback);
-                if ((mScanEndTime - mStartTestTime)
-                        < ((mScanTime + mNoScanTime) * mNumAlarms / 2 + mFirstScanTime) * 1000) {
-                    repeatAlarm(intent, mNoScanTime, START_SCAN);
-                } else {
-                    mPMCStatusLogger.flash();  // To flash out timestamps into log file
-                    Log.d(TAG, "Time is up to end");
-                }
-            } else {
-                Log.e(TAG, "Unknown Action");
-            }
+            AlarmLatencyTracker.onDelivered(TAG, intent);
+            mEngine.onTimer();
         }
     }
 
@@ -229,17 +281,123 @@ public class BleScanReceiver extends BroadcastReceiver {
      *
      * @param context - PMC will provide a context
      * @param alarmManager - PMC will provide alarmManager
+     * @param workloads - registry the Bluetooth components are lazily created through
      */
-    public BleScanReceiver(Context context, AlarmManager alarmManager) {
+    public BleScanReceiver(Context context, AlarmManager alarmManager,
+            WorkloadRegistry workloads) {
         // prepare for setting alarm service
         mContext = context;
         mAlarmManager = alarmManager;
-        mAlarmScanListener = new BleScanListener();
+        mExecutor = new WorkloadExecutor(TAG);
+        mAlarmScanListener = workloads.register("BleScanListener", () -> {
+            BleScanListener listener = new BleScanListener();
+            // Bluetooth could not be turned on, the next command tries again
+            if (mBleScanner == null) return null;
+            // RegisterAlarmReceiver for BleScanListener, scans are started and stopped on the
+            // BLE workload thread
+            mContext.registerReceiver(listener,
+                    new IntentFilter(BleScanListener.BLESCAN), null, mExecutor.getHandler());
+            return listener;
+        });
+
+    }
+
+    /**
+     * Register the BLE scan commands with PMC command registry
+     *
+     * @param registry - PMC will provide the command registry
+     */
+    public void registerCommands(CommandRegistry registry) {
+        mCommandRegistry = registry;
+        registry.register(BLE_SCAN_COMMAND, mExecutor, args -> startBleScanTest(args),
+                ParamSpec.optionalInt("ScanMode", ScanSettings.SCAN_MODE_LOW_POWER).min(0),
+                ParamSpec.requiredInt("StartTime").min(1),
+                ParamSpec.optionalInt("ScanTime", 0).min(1),
+                ParamSpec.optionalString("Schedule", null),
+                ParamSpec.optionalInt("Repetitions", 1).min(1),
+                ParamSpec.optionalInt("NoScanTime", 0).min(0),
+                ParamSpec.optionalInt("LogSampleRate", 0).min(0),
+                ParamSpec.optionalLong("ReportDelayMs", 0).min(0),
+                ParamSpec.optionalInt("CallbackType", ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                        .min(1),
+                ParamSpec.optionalInt("MatchMode", ScanSettings.MATCH_MODE_AGGRESSIVE).min(1),
+                ParamSpec.optionalInt("NumOfMatches",
+                        ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT).min(1));
+        registry.register(SIMULATE_COMMAND, args -> simulateBleScan(args),
+                ParamSpec.optionalInt("ScanMode", ScanSettings.SCAN_MODE_LOW_POWER).min(0),
+                ParamSpec.requiredInt("StartTime").min(1),
+                ParamSpec.optionalInt("ScanTime", 0).min(1),
+                ParamSpec.optionalString("Schedule", null),
+                ParamSpec.optionalInt("Repetitions", 1).min(1),
+                ParamSpec.optionalInt("NoScanTime", 0).min(0));
+    }
+
+    /**
+     * Returns the segments of a BLE scan test: the Schedule if given, else a single segment
+     * of ScanMode with ScanTime and NoScanTime repeated Repetitions times.
+     *
+     * @param args - parsed BLE scan parameters
+     * @throws CommandException if the Schedule is malformed or ScanTime is missing
+     */
+    private static List<DutyCycleEngine.Segment> getSegments(CommandArgs args)
+            throws CommandException {
+        if (args.isSupplied("Schedule")) {
+            return DutyCycleEngine.parseSchedule(args.getString("Schedule"));
+        }
+        if (!args.isSupplied("ScanTime")) {
+            throw new CommandException("No Scan Time or Schedule specified");
+        }
+        int noScanTime = 0;
+        // NoScanTime is only meaningful, and then mandatory, when Repetitions is given
+        if (args.isSupplied("Repetitions")) {
+            if (!args.isSupplied("NoScanTime")) {
+                throw new CommandException("No NoScan Time specified");
+            }
+            noScanTime = args.getInt("NoScanTime");
+        }
+        return Collections.singletonList(new DutyCycleEngine.Segment(args.getInt("ScanMode"),
+                args.getInt("ScanTime") * 1000L, noScanTime * 1000L, args.getInt("Repetitions")));
+    }
+
+    /**
+     * Handler of the BLE scan simulation command, runs the duty cycle of a BLE scan test in
+     * virtual time so a plan can be checked before it is measured.
+     *
+     * @param args - parsed BLE scan parameters
+     */
+    private String simulateBleScan(CommandArgs args) throws CommandException {
+        List<DutyCycleEngine.Segment> segments = getSegments(args);
+        final int[] scans = new int[1];
+        final long[] scanMs = new long[1];
+        final DutyCycleEngine.VirtualClock clock = new DutyCycleEngine.VirtualClock();
+        DutyCycleEngine engine = new DutyCycleEngine(clock, clock, new DutyCycleEngine.Listener() {
+            private long mOnSince;
+
+            @Override
+            public void onSegmentStart(int index, DutyCycleEngine.Segment segment) {}
+
+            @Override
+            public void onSegmentEnd(int index, DutyCycleEngine.Segment segment) {}
+
+            @Override
+            public void onStart(int cycle) {
+                mOnSince = clock.now();
+            }
 
-        // RegisterAlarmReceiver for BleScanListener
-        mContext.registerReceiver(mAlarmScanListener,
-                new IntentFilter(BleScanListener.BLESCAN));
+            @Override
+            public void onStop(int cycle) {
+                scans[0] = cycle;
+                scanMs[0] += clock.now() - mOnSince;
+            }
 
+            @Override
+            public void onFinished(int cycles) {}
+        });
+        engine.start(args.getInt("StartTime") * 1000L, segments);
+        long end = clock.run(engine::onTimer, Long.MAX_VALUE);
+        return "Segments " + segments.size() + " scans " + scans[0] + " scanning " + scanMs[0]
+                + " ms duration " + end + " ms alarms " + clock.getFiredCount() + " budget "
+                + engine.getBudgetMs() + " ms";
     }
 
     /**
@@ -251,69 +409,63 @@ public class BleScanReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
         if (intent.getAction().equals(BLE_SCAN_INTENT)) {
-            Bundle extras = intent.getExtras();
-            int scanMode = -1, startTime = 0, scanTime = 0, noScanTime = 0;
-            int repetitions = 1;
-            String str;
-
-            mStartTestTime = System.currentTimeMillis();
-            mPMCStatusLogger = new PMCStatusLogger(TAG + ".log", TAG);
-
-            if (extras == null) {
-                Log.e(TAG, "No parameters specified");
-                return;
-            }
+            PMCService.dispatchBroadcast(this, mCommandRegistry, BLE_SCAN_COMMAND,
+                    intent.getExtras());
+        }
+    }
 
-            if (!extras.containsKey("ScanMode")) {
-                Log.e(TAG, "No scan mode specified");
-                return;
-            }
-            str = extras.getString("ScanMode");
-            Log.d(TAG, "Scan Mode = " + str);
-            scanMode = Integer.valueOf(str);
+    /**
+     * Unregister the alarm receiver if it was created, and release the BLE workload thread
+     * once the queued tasks have run.
+     */
+    public void release() {
+        BleScanListener listener = mAlarmScanListener.peek();
+        if (listener != null) mContext.unregisterReceiver(listener);
+        mExecutor.quit();
+    }
 
-            if (!extras.containsKey("StartTime")) {
-                Log.e(TAG, "No Start Time specified");
-                return;
+    /**
+     * Handler of the BLE scan command, parameters are already validated by the registry
+     *
+     * @param args - parsed BLE scan parameters
+     */
+    private String startBleScanTest(CommandArgs args) throws CommandException {
+        if (!args.isSupplied("Schedule") && !args.isSupplied("ScanMode")) {
+            throw new CommandException("No Scan Mode or Schedule specified");
+        }
+        int startTime = args.getInt("StartTime");
+        List<DutyCycleEngine.Segment> segments = getSegments(args);
+        Log.d(TAG, "Start Time = " + startTime + " Segments = " + segments
+                + " Report Delay = " + args.getLong("ReportDelayMs"));
+
+        // With a report delay the controller batches the results instead of waking the
+        // application processor for each of them
+        List<ScanSettings> segmentSettings = new ArrayList<ScanSettings>();
+        try {
+            for (DutyCycleEngine.Segment segment : segments) {
+                segmentSettings.add(new ScanSettings.Builder()
+                        .setScanMode(segment.mMode)
+                        .setReportDelay(args.getLong("ReportDelayMs"))
+                        .setCallbackType(args.getInt("CallbackType"))
+                        .setMatchMode(args.getInt("MatchMode"))
+                        .setNumOfMatches(args.getInt("NumOfMatches"))
+                        .build());
             }
-            str = extras.getString("StartTime");
-            Log.d(TAG, "Start Time = " + str);
-            startTime = Integer.valueOf(str);
+        } catch (IllegalArgumentException e) {
+            throw new CommandException("Invalid scan settings: " + e.getMessage());
+        }
 
-            if (!extras.containsKey("ScanTime")) {
-                Log.e(TAG, "No Scan Time specified");
-                return;
-            }
-            str = extras.getString("ScanTime");
-            Log.d(TAG, "Scan Time = " + str);
-            scanTime = Integer.valueOf(str);
-
-            if (extras.containsKey("Repetitions")) {
-
-                str = extras.getString("Repetitions");
-                Log.d(TAG, "Repetitions = " + str);
-                repetitions = Integer.valueOf(str);
-
-                if (!extras.containsKey("NoScanTime")) {
-                    Log.e(TAG, "No NoScan Time specified");
-                    return;
-                }
-                str = extras.getString("NoScanTime");
-                Log.d(TAG, "NoScan Time = " + str);
-                noScanTime = Integer.valueOf(str);
-            }
-            if (scanTime == 0 || startTime == 0 || scanMode == -1) {
-                Log.d(TAG, "Invalid paramters");
-                return;
-            }
-            mAlarmScanListener.firstAlarm(scanMode, startTime,
-                                       scanTime, noScanTime, repetitions * 2);
-            if (mBleScanner != null && mScanFilterList != null && mScanSettings != null
-                                 && mScanCallback != null) {
-                mPMCStatusLogger.logStatus("READY");
-            } else {
-                Log.e(TAG, "BLE scanner is not ready to start test");
-            }
+        // Creating the listener turns Bluetooth on, arm nothing if that failed
+        BleScanListener listener = mAlarmScanListener.get();
+        if (listener == null || mBleScanner == null || mScanFilterList == null) {
+            Log.e(TAG, "BLE scanner is not ready to start test");
+            throw new CommandException("BLE scanner is not ready to start test");
         }
+
+        mPMCStatusLogger = new PMCStatusLogger(TAG + ".log", TAG);
+        mResults = new BleResultAggregator(TAG, args.getInt("LogSampleRate"));
+        listener.firstAlarm(segmentSettings, startTime, segments);
+        mPMCStatusLogger.logStatus("READY");
+        return "READY";
     }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns Bluetooth on for the Bluetooth workloads.
+ *
+ * BluetoothAdapter.enable() only starts turning the radio on: isEnabled() becomes true a few
+ * seconds later, once ACTION_STATE_CHANGED reported STATE_ON.
+ */
+final class BluetoothEnabler {
+    private static final String TAG = "PMCBluetooth";
+    private static final long ENABLE_TIMEOUT_MS = 10000;
+
+    private BluetoothEnabler() {}
+
+    /**
+     * Enable Bluetooth if needed and wait until it is on. Blocks the calling thread for up to
+     * ENABLE_TIMEOUT_MS, so it is meant to be called from a workload thread.
+     *
+     * @param context - context the state receiver is registered with
+     * @return the Bluetooth adapter, or null if there is none or it did not turn on in time
+     */
+    static BluetoothAdapter enable(Context context) {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter == null) {
+            Log.e(TAG, "BluetoothAdapter is Null");
+            return null;
+        }
+        if (adapter.isEnabled()) return adapter;
+
+        final CountDownLatch stateOn = new CountDownLatch(1);
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
+                        BluetoothAdapter.ERROR);
+                Log.d(TAG, "Bluetooth state: " + state);
+                if (state == BluetoothAdapter.STATE_ON) stateOn.countDown();
+            }
+        };
+        // Delivered on a thread of its own, the caller may be blocking the one it would use
+        HandlerThread thread = new HandlerThread("PMC-BluetoothOn");
+        thread.start();
+        context.registerReceiver(receiver,
+                new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED), null,
+                new Handler(thread.getLooper()));
+        long start = System.currentTimeMillis();
+        try {
+            // Checked again once registered, so that STATE_ON can't be missed
+            if (!adapter.isEnabled()) {
+                Log.d(TAG, "BluetoothAdapter is NOT enabled, enable now");
+                if (!adapter.enable()) {
+                    Log.e(TAG, "Bluetooth refused to turn on");
+                    return null;
+                }
+                stateOn.await(ENABLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            context.unregisterReceiver(receiver);
+            thread.quitSafely();
+        }
+        if (!adapter.isEnabled()) {
+            Log.e(TAG, "Can't enable Bluetooth within " + ENABLE_TIMEOUT_MS + " ms");
+            return null;
+        }
+        Log.i(TAG, "Bluetooth on after " + (System.currentTimeMillis() - start) + " ms");
+        return adapter;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.os.SystemClock;
+
+/**
+ * Blocking work of one workload tick, run again on every tick on the task executor of the
+ * workload instead of a new AsyncTask per tick.
+ *
+ * Cancellation is cooperative: doWork() checks isCancelled() in its loops and waits through
+ * sleepUnlessCancelled() or awaitSignal(), which cancel() wakes up. Once cancelled the task
+ * stays cancelled, a run queued after that only reports its completion. onFinished() is called
+ * after every run, however it ended, so the resources of the tick are always released.
+ */
+public abstract class CancellableTask implements Runnable {
+    public static final String CANCELLED = "Cancelled";
+
+    private final Object mLock = new Object();
+    private volatile boolean mCancelled;
+    private boolean mSignalled;
+    private long mSignalTimeNanos;
+
+    /**
+     * Run the work of one tick on the calling thread.
+     *
+     * @return error message, or null if the tick succeeded
+     */
+    protected abstract String doWork() throws Exception;
+
+    /**
+     * Called on the task thread after every run.
+     *
+     * @param error - error message, CANCELLED if the task was cancelled, null on success
+     */
+    protected abstract void onFinished(String error);
+
+    @Override
+    public final void run() {
+        String error;
+        try {
+            error = mCancelled ? CANCELLED : doWork();
+            if (mCancelled && error == null) error = CANCELLED;
+        } catch (Exception e) {
+            error = mCancelled ? CANCELLED : e.toString();
+        }
+        onFinished(error);
+    }
+
+    /**
+     * Ask the running and the queued runs to stop as soon as possible. May be called from any
+     * thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Signal the event doWork() waits for in awaitSignal(), e.g. from a system callback. May
+     * be called from any thread, a signal before the wait is not lost.
+     */
+    public void signal() {
+        long now = SystemClock.elapsedRealtimeNanos();
+        synchronized (mLock) {
+            if (mSignalled) return;
+            mSignalled = true;
+            mSignalTimeNanos = now;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Forget the previous signal, to be called before starting the operation that signals.
+     */
+    protected void resetSignal() {
+        synchronized (mLock) {
+            mSignalled = false;
+        }
+    }
+
+    /**
+     * Wait for signal() without polling, until the timeout or the cancellation of the task.
+     *
+     * @param timeoutMs - longest time to wait
+     * @return elapsedRealtimeNanos() when signal() was called, -1 on timeout or cancellation
+     */
+    protected long awaitSignal(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1000000L;
+        synchronized (mLock) {
+            long remaining = timeoutMs;
+            while (!mSignalled && !mCancelled && remaining > 0) {
+                mLock.wait(remaining);
+                remaining = (deadline - System.nanoTime()) / 1000000L;
+            }
+            return mSignalled ? mSignalTimeNanos : -1;
+        }
+    }
+
+    /**
+     * Sleep unless the task is cancelled first.
+     *
+     * @param millis - time to sleep
+     * @return true if the time elapsed, false if the task was cancelled
+     */
+    protected boolean sleepUnlessCancelled(long millis) throws InterruptedException {
+        long deadline = System.nanoTime() + millis * 1000000L;
+        synchronized (mLock) {
+            long remaining = millis;
+            while (!mCancelled && remaining > 0) {
+                mLock.wait(remaining);
+                remaining = (deadline - System.nanoTime()) / 1000000L;
+            }
+        }
+        return !mCancelled;
+    }
+}
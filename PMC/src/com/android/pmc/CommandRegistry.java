@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Registry of all commands PMC accepts from the Python client.
+ *
+ * Each workload registers its commands together with a parameter schema. A command is
+ * looked up by its case-insensitive name, its parameters are parsed and validated against
+ * the schema, and only then is the handler invoked with typed arguments.
+ *
+ * A command may be bound to the executor of its workload, in which case dispatchAsync() only
+ * parses the parameters on the calling thread and hands the handler over to that executor.
+ */
+public class CommandRegistry {
+    public static final String RESULT_ERROR_PREFIX = "ERROR: ";
+
+    /**
+     * Handler for one command.
+     */
+    public interface CommandHandler {
+        /**
+         * Run the command.
+         *
+         * @param args - parameters already parsed and validated against the schema
+         * @return result to report back to the client, or null if there is none
+         * @throws CommandException if the command can not be executed
+         */
+        String handle(CommandArgs args) throws CommandException;
+    }
+
+    /**
+     * Executor a command handler is run on, typically the thread of its workload.
+     */
+    public interface CommandExecutor {
+        /**
+         * Queue a task without blocking the caller.
+         *
+         * @param label - name of the task, for instrumentation
+         * @param task - task to run
+         */
+        void execute(String label, Runnable task);
+    }
+
+    /**
+     * Completion of an asynchronously dispatched command.
+     */
+    public interface ResultCallback {
+        /**
+         * @param result - result of the command, may be null
+         * @param error - error message, or null if the command succeeded
+         */
+        void onResult(String result, String error);
+    }
+
+    private final Map<String, Command> mCommands = new HashMap<String, Command>();
+
+    /**
+     * Register a command.
+     *
+     * @param name - command name, matched case-insensitively
+     * @param handler - handler to run the command
+     * @param params - schema of the parameters accepted by the command
+     */
+    public void register(String name, CommandHandler handler, ParamSpec... params) {
+        register(name, null, handler, params);
+    }
+
+    /**
+     * Register a command run on the executor of its workload.
+     *
+     * @param name - command name, matched case-insensitively
+     * @param executor - executor the handler is run on by dispatchAsync(), null to run it on
+     *        the dispatching thread
+     * @param handler - handler to run the command
+     * @param params - schema of the parameters accepted by the command
+     */
+    public synchronized void register(String name, CommandExecutor executor,
+            CommandHandler handler, ParamSpec... params) {
+        String key = normalize(name);
+        if (mCommands.containsKey(key)) {
+            throw new IllegalArgumentException("Command already registered: " + name);
+        }
+        mCommands.put(key, new Command(name, executor, handler, params));
+    }
+
+    /**
+     * Check whether a command is registered.
+     *
+     * @param name - command name
+     */
+    public synchronized boolean contains(String name) {
+        return name != null && mCommands.containsKey(normalize(name));
+    }
+
+    /**
+     * Returns the names of all registered commands, sorted.
+     */
+    public synchronized List<String> getCommandNames() {
+        List<String> names = new ArrayList<String>();
+        for (Command command : mCommands.values()) {
+            names.add(command.mName);
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Parse the parameters of a command and run its handler on the calling thread.
+     *
+     * @param name - command name
+     * @param rawParams - parameters as strings keyed by name, may be null
+     * @return result of the handler, may be null
+     * @throws CommandException if the command is unknown, a parameter is invalid or the
+     *         handler fails
+     */
+    public String dispatch(String name, Map<String, String> rawParams) throws CommandException {
+        Command command = lookup(name);
+        CommandArgs args = command.parse(rawParams);
+        return command.mHandler.handle(args);
+    }
+
+    /**
+     * Parse the parameters of a command on the calling thread and run its handler on the
+     * executor of the command. Never blocks on the handler.
+     *
+     * @param name - command name
+     * @param rawParams - parameters as strings keyed by name, may be null
+     * @param callback - called once with the result or the error, on the thread that ran
+     *        the handler, or on the calling thread if the command was rejected
+     */
+    public void dispatchAsync(String name, Map<String, String> rawParams,
+            final ResultCallback callback) {
+        final Command command;
+        final CommandArgs args;
+        try {
+            command = lookup(name);
+            args = command.parse(rawParams);
+        } catch (CommandException e) {
+            callback.onResult(null, e.getMessage());
+            return;
+        }
+        Runnable task = () -> {
+            String result;
+            try {
+                result = command.mHandler.handle(args);
+            } catch (CommandException e) {
+                callback.onResult(null, e.getMessage());
+                return;
+            } catch (RuntimeException e) {
+                callback.onResult(null, command.mName + " failed: " + e);
+                return;
+            }
+            callback.onResult(result, null);
+        };
+        if (command.mExecutor == null) {
+            task.run();
+        } else {
+            command.mExecutor.execute(command.mName, task);
+        }
+    }
+
+    private synchronized Command lookup(String name) throws CommandException {
+        Command command = name == null ? null : mCommands.get(normalize(name));
+        if (command == null) {
+            throw new CommandException("Unknown command: " + name);
+        }
+        return command;
+    }
+
+    private static String normalize(String name) {
+        return name.trim().toLowerCase(Locale.US);
+    }
+
+    private static class Command {
+        final String mName;
+        final CommandExecutor mExecutor;
+        final CommandHandler mHandler;
+        final ParamSpec[] mParams;
+
+        Command(String name, CommandExecutor executor, CommandHandler handler,
+                ParamSpec[] params) {
+            mName = name;
+            mExecutor = executor;
+            mHandler = handler;
+            mParams = params;
+        }
+
+        CommandArgs parse(Map<String, String> rawParams) throws CommandException {
+            CommandArgs args = new CommandArgs(mName);
+            for (ParamSpec spec : mParams) {
+                String raw = rawParams == null ? null : rawParams.get(spec.mName);
+                args.mValues.put(spec.mName, spec.parse(mName, raw));
+                if (raw != null) args.mSupplied.add(spec.mName);
+            }
+            return args;
+        }
+    }
+
+    /**
+     * Schema of one command parameter.
+     */
+    public static class ParamSpec {
+        enum Type { INT, LONG, STRING, FLAG }
+
+        final String mName;
+        final Type mType;
+        final boolean mRequired;
+        final Object mDefault;
+        long mMin = Long.MIN_VALUE;
+        long mMax = Long.MAX_VALUE;
+
+        private ParamSpec(String name, Type type, boolean required, Object defaultValue) {
+            mName = name;
+            mType = type;
+            mRequired = required;
+            mDefault = defaultValue;
+        }
+
+        public static ParamSpec requiredInt(String name) {
+            return new ParamSpec(name, Type.INT, true, null);
+        }
+
+        public static ParamSpec optionalInt(String name, int defaultValue) {
+            return new ParamSpec(name, Type.INT, false, defaultValue);
+        }
+
+        public static ParamSpec requiredLong(String name) {
+            return new ParamSpec(name, Type.LONG, true, null);
+        }
+
+        public static ParamSpec optionalLong(String name, long defaultValue) {
+            return new ParamSpec(name, Type.LONG, false, defaultValue);
+        }
+
+        public static ParamSpec requiredString(String name) {
+            return new ParamSpec(name, Type.STRING, true, null);
+        }
+
+        public static ParamSpec optionalString(String name, String defaultValue) {
+            return new ParamSpec(name, Type.STRING, false, defaultValue);
+        }
+
+        /**
+         * A parameter that is true when present, regardless of its value.
+         */
+        public static ParamSpec flag(String name) {
+            return new ParamSpec(name, Type.FLAG, false, false);
+        }
+
+        /**
+         * Restrict a numeric parameter to the inclusive range [min, max].
+         */
+        public ParamSpec range(long min, long max) {
+            mMin = min;
+            mMax = max;
+            return this;
+        }
+
+        /**
+         * Restrict a numeric parameter to values greater than or equal to min.
+         */
+        public ParamSpec min(long min) {
+            return range(min, Long.MAX_VALUE);
+        }
+
+        Object parse(String command, String raw) throws CommandException {
+            if (mType == Type.FLAG) {
+                return raw != null;
+            }
+            if (raw == null) {
+                if (mRequired) {
+                    throw new CommandException(command + ": missing parameter " + mName);
+                }
+                return mDefault;
+            }
+            if (mType == Type.STRING) {
+                if (mRequired && raw.isEmpty()) {
+                    throw new CommandException(command + ": empty parameter " + mName);
+                }
+                return raw;
+            }
+            long value;
+            try {
+                value = Long.parseLong(raw.trim());
+            } catch (NumberFormatException e) {
+                throw new CommandException(command + ": parameter " + mName
+                        + " is not a number: " + raw);
+            }
+            if (value < mMin || value > mMax) {
+                throw new CommandException(command + ": parameter " + mName + " = " + value
+                        + " out of range [" + mMin + ", " + mMax + "]");
+            }
+            if (mType == Type.INT) {
+                if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                    throw new CommandException(command + ": parameter " + mName
+                            + " does not fit in an int: " + raw);
+                }
+                return (int) value;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Typed, validated arguments of one command invocation.
+     */
+    public static class CommandArgs {
+        private final String mCommand;
+        private final Map<String, Object> mValues = new HashMap<String, Object>();
+        private final Set<String> mSupplied = new HashSet<String>();
+
+        CommandArgs(String command) {
+            mCommand = command;
+        }
+
+        public String getCommand() {
+            return mCommand;
+        }
+
+        /**
+         * Returns true if the client supplied the parameter, as opposed to its default value
+         * being used.
+         */
+        public boolean isSupplied(String name) {
+            return mSupplied.contains(name);
+        }
+
+        public int getInt(String name) {
+            return (Integer) mValues.get(name);
+        }
+
+        public long getLong(String name) {
+            return (Long) mValues.get(name);
+        }
+
+        public String getString(String name) {
+            return (String) mValues.get(name);
+        }
+
+        public boolean getFlag(String name) {
+            return (Boolean) mValues.get(name);
+        }
+
+        /**
+         * Returns the parameters supplied by the client as strings, so the command can be
+         * dispatched again with the same arguments.
+         */
+        public Map<String, String> getSuppliedParams() {
+            Map<String, String> params = new HashMap<String, String>();
+            for (String name : mSupplied) {
+                params.put(name, String.valueOf(mValues.get(name)));
+            }
+            return params;
+        }
+    }
+}
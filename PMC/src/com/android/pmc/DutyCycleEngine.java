@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Schedule of an on/off duty cycle, e.g. BLE scans separated by idle time.
+ *
+ * The engine only depends on a Clock and a TimerSource, so it runs on the device with
+ * AlarmManager and elapsedRealtime(), and on any JVM with a VirtualClock, where a plan of
+ * several hours is simulated in milliseconds. It is driven by calling onTimer() whenever the
+ * timer it armed fires, from a single thread.
+ *
+ * The plan starts with an off period of firstDelayMs, then runs its segments in order. A
+ * segment alternates an on period of onMs and an off period of offMs, repeats times, with an
+ * opaque mode handed to the listener, e.g. the BLE scan mode of a sweep. The plan ends after
+ * the last off transition of the last segment, or after the first off transition past the
+ * time budget of firstDelayMs + the sum of (onMs + offMs) * repeats, whichever comes first.
+ *
+ * Boundaries are anchored to the start of the plan rather than to the delivery of the
+ * previous timer, so a late timer shortens the period it ends but the lateness does not
+ * accumulate over the plan.
+ */
+public class DutyCycleEngine {
+
+    /**
+     * Source of the current time, in milliseconds.
+     */
+    public interface Clock {
+        long now();
+    }
+
+    /**
+     * One-shot timer, arming it again replaces the pending trigger.
+     */
+    public interface TimerSource {
+        /**
+         * @param triggerTime - time of the Clock the engine must be called back at
+         */
+        void schedule(long triggerTime);
+
+        void cancel();
+    }
+
+    /**
+     * A run of identical cycles of the plan.
+     */
+    public static class Segment {
+        public final int mMode;
+        public final long mOnMs;
+        public final long mOffMs;
+        public final int mRepeats;
+
+        /**
+         * Constructor
+         *
+         * @param mode - mode of the on periods, opaque to the engine
+         * @param onMs - length of every on period
+         * @param offMs - length of every off period following an on period
+         * @param repeats - number of cycles
+         */
+        public Segment(int mode, long onMs, long offMs, int repeats) {
+            if (onMs < 0 || offMs < 0 || repeats < 1) {
+                throw new IllegalArgumentException("Invalid segment: on " + onMs + " off "
+                        + offMs + " repeats " + repeats);
+            }
+            mMode = mode;
+            mOnMs = onMs;
+            mOffMs = offMs;
+            mRepeats = repeats;
+        }
+
+        @Override
+        public String toString() {
+            return "mode " + mMode + " on " + mOnMs + " ms off " + mOffMs + " ms x" + mRepeats;
+        }
+    }
+
+    /**
+     * Parse a schedule of segments given in seconds.
+     *
+     * @param schedule - comma separated mode:onSeconds:offSeconds:repeats segments, e.g.
+     *        "0:30:10:5,1:30:10:5,2:30:10:5"
+     * @throws CommandException if a segment is malformed
+     */
+    public static List<Segment> parseSchedule(String schedule) throws CommandException {
+        List<Segment> segments = new ArrayList<Segment>();
+        for (String part : schedule.split(",")) {
+            String[] fields = part.trim().split(":");
+            try {
+                if (fields.length != 4) throw new IllegalArgumentException("4 fields expected");
+                segments.add(new Segment(Integer.parseInt(fields[0].trim()),
+                        Long.parseLong(fields[1].trim()) * 1000L,
+                        Long.parseLong(fields[2].trim()) * 1000L,
+                        Integer.parseInt(fields[3].trim())));
+            } catch (IllegalArgumentException e) {
+                throw new CommandException("Invalid segment " + part
+                        + ", expecting mode:onSeconds:offSeconds:repeats");
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Receives the transitions of the duty cycle.
+     */
+    public interface Listener {
+        /**
+         * Called before the first on period of a segment.
+         *
+         * @param index - index of the segment starting, from 0
+         * @param segment - the segment
+         */
+        void onSegmentStart(int index, Segment segment);
+
+        /**
+         * Called after the last off transition of a segment, or of the plan when it ends early.
+         *
+         * @param index - index of the segment ending, from 0
+         * @param segment - the segment
+         */
+        void onSegmentEnd(int index, Segment segment);
+
+        /**
+         * @param cycle - index of the on period starting, from 1
+         */
+        void onStart(int cycle);
+
+        /**
+         * @param cycle - index of the on period ending, from 1
+         */
+        void onStop(int cycle);
+
+        /**
+         * @param cycles - number of on periods that ran
+         */
+        void onFinished(int cycles);
+    }
+
+    private final Clock mClock;
+    private final TimerSource mTimerSource;
+    private final Listener mListener;
+    private List<Segment> mSegments = Collections.emptyList();
+    private long mBudgetMs;
+    private long mStartTime;
+    private long mBoundary;
+    private long mMaxLateMs;
+    private int mSegmentIndex;
+    private int mRepeat;
+    private int mCycle;
+    private boolean mRunning;
+    private boolean mOn;
+
+    /**
+     * Constructor
+     *
+     * @param clock - source of the current time
+     * @param timerSource - timer calling onTimer() back
+     * @param listener - receives the transitions
+     */
+    public DutyCycleEngine(Clock clock, TimerSource timerSource, Listener listener) {
+        mClock = clock;
+        mTimerSource = timerSource;
+        mListener = listener;
+    }
+
+    /**
+     * Start a plan, replacing the running one if any.
+     *
+     * @param firstDelayMs - off time before the first on period
+     * @param segments - segments run in order
+     */
+    public void start(long firstDelayMs, List<Segment> segments) {
+        if (firstDelayMs < 0 || segments.isEmpty()) {
+            throw new IllegalArgumentException("Invalid duty cycle: first " + firstDelayMs
+                    + " segments " + segments.size());
+        }
+        mSegments = new ArrayList<Segment>(segments);
+        mBudgetMs = firstDelayMs;
+        for (Segment segment : mSegments) {
+            mBudgetMs += (segment.mOnMs + segment.mOffMs) * segment.mRepeats;
+        }
+        mStartTime = mClock.now();
+        mBoundary = mStartTime + firstDelayMs;
+        mMaxLateMs = 0;
+        mSegmentIndex = 0;
+        mRepeat = 0;
+        mCycle = 0;
+        mOn = false;
+        mRunning = true;
+        mTimerSource.schedule(mBoundary);
+    }
+
+    /**
+     * Handle the timer armed by the engine. Ignored when no plan is running, so a late timer
+     * of a cancelled plan is harmless.
+     */
+    public void onTimer() {
+        if (!mRunning) return;
+        long now = mClock.now();
+        mMaxLateMs = Math.max(mMaxLateMs, now - mBoundary);
+        Segment segment = mSegments.get(mSegmentIndex);
+        if (!mOn) {
+            if (mRepeat == 0) mListener.onSegmentStart(mSegmentIndex, segment);
+            mOn = true;
+            mCycle++;
+            mListener.onStart(mCycle);
+            arm(mBoundary + segment.mOnMs);
+            return;
+        }
+        mOn = false;
+        mListener.onStop(mCycle);
+        mRepeat++;
+        boolean overBudget = now - mStartTime >= mBudgetMs;
+        if (mRepeat == segment.mRepeats || overBudget) {
+            mListener.onSegmentEnd(mSegmentIndex, segment);
+            mSegmentIndex++;
+            mRepeat = 0;
+            if (mSegmentIndex == mSegments.size() || overBudget) {
+                mRunning = false;
+                mListener.onFinished(mCycle);
+                return;
+            }
+        }
+        arm(mBoundary + segment.mOffMs);
+    }
+
+    /**
+     * Abort the running plan. An on period in progress is not stopped, as the caller knows
+     * better how to tear it down.
+     */
+    public void cancel() {
+        if (!mRunning) return;
+        mRunning = false;
+        mTimerSource.cancel();
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public boolean isOn() {
+        return mRunning && mOn;
+    }
+
+    public int getCycle() {
+        return mCycle;
+    }
+
+    /**
+     * Returns the planned time of the transition being handled, or of the next one outside
+     * of the callbacks.
+     */
+    public long getBoundaryTime() {
+        return mBoundary;
+    }
+
+    /**
+     * Returns the latest delivery of a timer of the running plan after its boundary, in
+     * milliseconds.
+     */
+    public long getMaxLateMs() {
+        return mMaxLateMs;
+    }
+
+    /**
+     * Returns the time budget of the running plan, in milliseconds.
+     */
+    public long getBudgetMs() {
+        return mBudgetMs;
+    }
+
+    private void arm(long boundary) {
+        mBoundary = boundary;
+        mTimerSource.schedule(boundary);
+    }
+
+    /**
+     * Clock and timer in virtual time, firing timers as soon as it is run.
+     */
+    public static class VirtualClock implements Clock, TimerSource {
+        private long mNow;
+        private long mTriggerTime = -1;
+        private long mFired;
+
+        @Override
+        public long now() {
+            return mNow;
+        }
+
+        @Override
+        public void schedule(long triggerTime) {
+            mTriggerTime = Math.max(triggerTime, mNow);
+        }
+
+        @Override
+        public void cancel() {
+            mTriggerTime = -1;
+        }
+
+        /**
+         * Returns the number of timers fired so far.
+         */
+        public long getFiredCount() {
+            return mFired;
+        }
+
+        /**
+         * Jump from timer to timer until none is armed or the time limit is reached.
+         *
+         * @param onTimer - called at each timer, typically DutyCycleEngine.onTimer()
+         * @param limit - virtual time not to go past
+         * @return virtual time when the run stopped
+         */
+        public long run(Runnable onTimer, long limit) {
+            while (mTriggerTime >= 0 && mTriggerTime <= limit) {
+                mNow = mTriggerTime;
+                mTriggerTime = -1;
+                mFired++;
+                onTimer.run();
+            }
+            return mNow;
+        }
+    }
+}
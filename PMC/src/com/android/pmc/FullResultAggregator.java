@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.net.wifi.ScanResult;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Per-BSSID aggregate of the GScan full results, updated as they stream in.
+ *
+ * Full results are only delivered when the reportEvents of the scan include
+ * REPORT_EVENT_FULL_SCAN_RESULT, which the GScan commands leave off unless the client sets
+ * FULL_SCAN_RESULT in GScanReportEvents, as every full result wakes the host. For every
+ * BSSID the aggregator keeps the number of results, the min, max and mean RSSI, the first and
+ * last time it was seen and the bytes of its information elements, in primitive columns
+ * indexed through a LongIntMap. Only growing the columns allocates, a result of a known BSSID
+ * never does.
+ *
+ * onBatch() closes the batch of results delivered since the previous one and records its
+ * summary into the <name>_full_results timeline, so the volume of results can be lined up
+ * with the host wakeups.
+ */
+public class FullResultAggregator {
+    private static final String TAG = "PMCFULLRESULTS";
+    private static final int INITIAL_BSSIDS = 64;
+
+    private final String mName;
+    private final PMCTimeline mTimeline;
+    private final LongIntMap mIndex = new LongIntMap(INITIAL_BSSIDS);
+    private long[] mBssids = new long[INITIAL_BSSIDS];
+    private int[] mCounts = new int[INITIAL_BSSIDS];
+    private int[] mMinRssi = new int[INITIAL_BSSIDS];
+    private int[] mMaxRssi = new int[INITIAL_BSSIDS];
+    private long[] mRssiSums = new long[INITIAL_BSSIDS];
+    private long[] mFirstSeenMs = new long[INITIAL_BSSIDS];
+    private long[] mLastSeenMs = new long[INITIAL_BSSIDS];
+    private long[] mIeBytes = new long[INITIAL_BSSIDS];
+    private long mResults;
+    private long mTotalIeBytes;
+    private long mBatches;
+    private int mBatchResults;
+    private int mBatchNewBssids;
+    private long mBatchIeBytes;
+
+    /**
+     * Constructor
+     *
+     * @param name - name of the workload, source of the events and name of the files
+     */
+    public FullResultAggregator(String name) {
+        mName = name;
+        mTimeline = new PMCTimeline(name + "_full_results");
+    }
+
+    /**
+     * Account one full result.
+     *
+     * @param result - full result of one BSS
+     */
+    public synchronized void onFullResult(ScanResult result) {
+        if (result == null) return;
+        long bssid = ScanResultStore.packBssid(result.BSSID);
+        if (bssid < 0) return;
+        long seenMs = result.timestamp > 0 ? result.timestamp / 1000L
+                : SystemClock.elapsedRealtime();
+        int ieBytes = 0;
+        if (result.informationElements != null) {
+            for (ScanResult.InformationElement ie : result.informationElements) {
+                if (ie != null && ie.bytes != null) ieBytes += ie.bytes.length;
+            }
+        }
+        int i = mIndex.get(bssid);
+        if (i == LongIntMap.NO_VALUE) {
+            i = mIndex.size();
+            if (i == mBssids.length) grow();
+            mIndex.put(bssid, i);
+            mBssids[i] = bssid;
+            mMinRssi[i] = Integer.MAX_VALUE;
+            mMaxRssi[i] = Integer.MIN_VALUE;
+            mFirstSeenMs[i] = seenMs;
+            mBatchNewBssids++;
+        }
+        int rssi = result.level;
+        mCounts[i]++;
+        mMinRssi[i] = Math.min(mMinRssi[i], rssi);
+        mMaxRssi[i] = Math.max(mMaxRssi[i], rssi);
+        mRssiSums[i] += rssi;
+        mLastSeenMs[i] = seenMs;
+        mIeBytes[i] += ieBytes;
+        mResults++;
+        mTotalIeBytes += ieBytes;
+        mBatchResults++;
+        mBatchIeBytes += ieBytes;
+    }
+
+    /**
+     * Close the current batch and record its summary.
+     *
+     * @param scans - number of scans delivered with the batch
+     */
+    public synchronized void onBatch(int scans) {
+        mBatches++;
+        mTimeline.record(mName, "batch", scans + " scans, " + mBatchResults
+                + " full results, " + mBatchNewBssids + " new BSSIDs, " + mBatchIeBytes
+                + " IE bytes");
+        mBatchResults = 0;
+        mBatchNewBssids = 0;
+        mBatchIeBytes = 0;
+    }
+
+    /**
+     * Returns a one line summary of the results aggregated so far.
+     */
+    public synchronized String getSummary() {
+        if (mResults == 0) {
+            return mName + " no full results, GScanReportEvents must include FULL_SCAN_RESULT"
+                    + " to get them";
+        }
+        return mName + " " + mResults + " full results of " + mIndex.size() + " BSSIDs in "
+                + mBatches + " batches, " + mTotalIeBytes + " IE bytes";
+    }
+
+    /**
+     * Record the summary, write the timeline and the per-BSSID aggregate as
+     * <name>_full_results.csv into the PMC log directory. Nothing is exported without
+     * full results.
+     *
+     * @return summary of the aggregate
+     */
+    public synchronized String flush() {
+        String summary = getSummary();
+        mTimeline.record(mName, "stop", summary);
+        mTimeline.flush();
+        if (mResults == 0) return summary;
+        File file = new File(PMCStatusLogger.LOG_DIR + "/" + mName + "_full_results.csv");
+        try {
+            BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+            try {
+                bw.write("bssid,count,min_rssi,max_rssi,mean_rssi,first_seen_ms,last_seen_ms,"
+                        + "ie_bytes");
+                bw.newLine();
+                for (int i = 0; i < mIndex.size(); i++) {
+                    bw.write(ScanResultStore.formatBssid(mBssids[i]) + "," + mCounts[i] + ","
+                            + mMinRssi[i] + "," + mMaxRssi[i] + ","
+                            + Math.round((double) mRssiSums[i] / mCounts[i]) + ","
+                            + mFirstSeenMs[i] + "," + mLastSeenMs[i] + "," + mIeBytes[i]);
+                    bw.newLine();
+                }
+            } finally {
+                bw.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Exception writing full results to " + file + ": " + e);
+            return summary + ", not exported: " + e;
+        }
+        return summary + ", exported to " + file;
+    }
+
+    private void grow() {
+        int capacity = mBssids.length * 2;
+        mBssids = Arrays.copyOf(mBssids, capacity);
+        mCounts = Arrays.copyOf(mCounts, capacity);
+        mMinRssi = Arrays.copyOf(mMinRssi, capacity);
+        mMaxRssi = Arrays.copyOf(mMaxRssi, capacity);
+        mRssiSums = Arrays.copyOf(mRssiSums, capacity);
+        mFirstSeenMs = Arrays.copyOf(mFirstSeenMs, capacity);
+        mLastSeenMs = Arrays.copyOf(mLastSeenMs, capacity);
+        mIeBytes = Arrays.copyOf(mIeBytes, capacity);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiScanner;
+import android.net.wifi.WifiScanner.ScanData;
+import android.net.wifi.WifiScanner.ScanSettings;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * One long-lived GScan background scan, left to the firmware between its batches.
+ *
+ * Unlike WifiGScanReceiver, which starts and stops a background scan on every alarm, the scan
+ * runs until stop() and PMC only runs when the firmware delivers results, as configured by the
+ * reportEvents and maxScansToCache of the settings. Every delivery counts as one host wakeup,
+ * reported per hour of the session, and is recorded in the <name>_batches timeline.
+ */
+public class GScanBatchSession implements WifiScanner.ScanListener {
+    private static final String TAG = "PMCGSCANBATCH";
+    private static final long HOUR_MS = 60 * 60 * 1000L;
+
+    private final String mName;
+    private final PMCService mPMCService;
+    private final WifiScanner mScanner;
+    private final ScanSettings mSettings;
+    private final ScanResultStore mResults;
+    private final ScanDiffEngine mDiff;
+    private final FullResultAggregator mFullResults;
+    private final PMCTimeline mTimeline;
+    private long mStartTime = -1;
+    private long mStopTime = -1;
+    private long mLastDelivery = -1;
+    private long mBatches;
+    private long mScans;
+    private long mFailures;
+
+    /**
+     * Constructor
+     *
+     * @param service - service progress is reported to
+     * @param name - name of the workload
+     * @param scanner - scanner the background scan is started on
+     * @param settings - settings of the background scan
+     * @param rssiThreshold - smallest RSSI change recorded by the diff of the scans, in dB
+     */
+    public GScanBatchSession(PMCService service, String name, WifiScanner scanner,
+            ScanSettings settings, int rssiThreshold) {
+        mPMCService = service;
+        mName = name;
+        mScanner = scanner;
+        mSettings = settings;
+        mResults = new ScanResultStore(name + "_batched");
+        mDiff = new ScanDiffEngine(name + "_batched", rssiThreshold);
+        mFullResults = new FullResultAggregator(name + "_batched");
+        mTimeline = new PMCTimeline(name + "_batches");
+    }
+
+    /**
+     * Start the background scan.
+     */
+    public synchronized void start() {
+        mTimeline.reset();
+        mStartTime = SystemClock.elapsedRealtime();
+        mTimeline.record(mName, "start", GScanConfig.describe(mSettings));
+        mScanner.startBackgroundScan(mSettings, this);
+    }
+
+    /**
+     * Stop the background scan, write the timelines and export the results.
+     *
+     * @return summary of the session
+     */
+    public String stop() {
+        mScanner.stopBackgroundScan(this);
+        String status;
+        synchronized (this) {
+            mStopTime = SystemClock.elapsedRealtime();
+            status = getStatus();
+            mTimeline.record(mName, "stop", status);
+            mTimeline.flush();
+        }
+        mDiff.flush();
+        return status + "\n" + mResults.export(PMCStatusLogger.LOG_DIR) + "\n"
+                + mFullResults.flush();
+    }
+
+    /**
+     * Returns a one line summary of the batches, scans and host wakeups per hour.
+     */
+    public synchronized String getStatus() {
+        long end = mStopTime >= 0 ? mStopTime : SystemClock.elapsedRealtime();
+        long elapsed = Math.max(end - mStartTime, 1);
+        return mName + " batched " + mBatches + " deliveries of " + mScans + " scans, "
+                + mFailures + " failures, "
+                + (mBatches * HOUR_MS / elapsed) + " host wakeups per hour over "
+                + elapsed / 1000 + " s";
+    }
+
+    @Override
+    public void onSuccess() {
+        Log.d(TAG, mName + ": background scan started");
+    }
+
+    @Override
+    public synchronized void onFailure(int reason, String description) {
+        mFailures++;
+        mTimeline.record(mName, "failure", reason + " " + description);
+        mPMCService.updateProgressStatus("Batched Gscan failed: " + description);
+    }
+
+    @Override
+    public synchronized void onPeriodChanged(int periodInMs) {
+        mTimeline.record(mName, "period", periodInMs + " ms");
+    }
+
+    @Override
+    public void onFullResult(ScanResult fullScanResult) {
+        mFullResults.onFullResult(fullScanResult);
+    }
+
+    @Override
+    public void onResults(ScanData[] results) {
+        int scans = results == null ? 0 : results.length;
+        String progress;
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            mBatches++;
+            mScans += scans;
+            mTimeline.record(mName, "batch", scans + " scans, "
+                    + (mLastDelivery < 0 ? now - mStartTime : now - mLastDelivery)
+                    + " ms since the previous delivery");
+            mLastDelivery = now;
+            progress = "Batched Gscan delivered " + mBatches + " batches of " + mScans + " scans";
+        }
+        mFullResults.onBatch(scans);
+        for (int i = 0; i < scans; i++) {
+            mResults.addScan(results[i].getResults());
+            mDiff.onScan(results[i].getResults());
+        }
+        mPMCService.updateProgressStatus(progress);
+    }
+}
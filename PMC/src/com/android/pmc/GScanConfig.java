@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.net.wifi.WifiScanner;
+import android.net.wifi.WifiScanner.ChannelSpec;
+import android.net.wifi.WifiScanner.ScanSettings;
+
+import java.util.Locale;
+
+/**
+ * GScan settings given by the client through SETPARAMS, parsed from their string form.
+ *
+ * An empty value keeps the default of the command starting the scan: the channels of the
+ * command, the alarm interval as period, the firmware cache size, and the reporting the mode
+ * of the scan needs. The default reporting never includes FULL_SCAN_RESULT, so the per-BSSID
+ * full result export is only filled when the client asks for them.
+ */
+public class GScanConfig {
+    // SETPARAMS parameters, also the keys they are saved under
+    public static final String CHANNELS_KEY = "GScanChannels";
+    public static final String PERIOD_KEY = "GScanPeriodMs";
+    public static final String MAX_SCANS_TO_CACHE_KEY = "GScanMaxScansToCache";
+    public static final String REPORT_EVENTS_KEY = "GScanReportEvents";
+
+    private final int[] mChannels;
+    private final int mPeriodMs;
+    private final int mMaxScansToCache;
+    private final int mReportEvents;
+
+    private GScanConfig(int[] channels, int periodMs, int maxScansToCache, int reportEvents) {
+        mChannels = channels;
+        mPeriodMs = periodMs;
+        mMaxScansToCache = maxScansToCache;
+        mReportEvents = reportEvents;
+    }
+
+    /**
+     * Parse the settings, empty or null values keep the defaults.
+     *
+     * @param channels - comma separated frequencies in MHz, e.g. "2412,5180"
+     * @param periodMs - period of the background scan in milliseconds
+     * @param maxScansToCache - scans the firmware buffers before it has to report
+     * @param reportEvents - REPORT_EVENT_* flags, as a number or names joined by '|', e.g.
+     *        "AFTER_BUFFER_FULL|FULL_SCAN_RESULT"
+     * @throws CommandException if a value is invalid
+     */
+    public static GScanConfig parse(String channels, String periodMs, String maxScansToCache,
+            String reportEvents) throws CommandException {
+        return new GScanConfig(parseChannels(channels),
+                parsePositive(PERIOD_KEY, periodMs),
+                parsePositive(MAX_SCANS_TO_CACHE_KEY, maxScansToCache),
+                parseReportEvents(reportEvents));
+    }
+
+    /**
+     * Returns the configured channels, null if none.
+     */
+    public int[] getChannels() {
+        return mChannels;
+    }
+
+    /**
+     * Build the settings of a background scan.
+     *
+     * @param band - band to scan, WIFI_BAND_UNSPECIFIED to scan channels instead
+     * @param channels - frequencies to scan when band is WIFI_BAND_UNSPECIFIED
+     * @param defaultPeriodMs - period if none is configured
+     * @param defaultReportEvents - REPORT_EVENT_* flags if none are configured
+     */
+    public ScanSettings buildSettings(int band, int[] channels, int defaultPeriodMs,
+            int defaultReportEvents) {
+        ScanSettings settings = new ScanSettings();
+        if (band == WifiScanner.WIFI_BAND_UNSPECIFIED) {
+            ChannelSpec[] specs = new ChannelSpec[channels.length];
+            for (int i = 0; i < channels.length; i++) {
+                specs[i] = new ChannelSpec(channels[i]);
+            }
+            settings.channels = specs;
+        }
+        settings.band = band;
+        settings.periodInMs = mPeriodMs > 0 ? mPeriodMs : defaultPeriodMs;
+        if (mMaxScansToCache > 0) settings.maxScansToCache = mMaxScansToCache;
+        settings.reportEvents = mReportEvents >= 0 ? mReportEvents : defaultReportEvents;
+        return settings;
+    }
+
+    /**
+     * Returns a one line description of the settings for logs and status.
+     *
+     * @param settings - settings built by buildSettings()
+     */
+    public static String describe(ScanSettings settings) {
+        return ScanLatencyStats.describe(settings) + " period " + settings.periodInMs
+                + " ms cache " + settings.maxScansToCache + " scans report "
+                + describeReportEvents(settings.reportEvents);
+    }
+
+    private static int[] parseChannels(String value) throws CommandException {
+        if (isEmpty(value)) return null;
+        String[] parts = value.split(",");
+        int[] channels = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            channels[i] = parsePositive(CHANNELS_KEY, parts[i]);
+            if (channels[i] <= 0) {
+                throw new CommandException("Invalid " + CHANNELS_KEY + " " + value);
+            }
+        }
+        return channels;
+    }
+
+    private static int parsePositive(String name, String value) throws CommandException {
+        if (isEmpty(value)) return 0;
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed > 0) return parsed;
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new CommandException("Invalid " + name + " " + value
+                + ", expecting a positive number");
+    }
+
+    private static int parseReportEvents(String value) throws CommandException {
+        if (isEmpty(value)) return -1;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            // Not a number, parse the names
+        }
+        int flags = 0;
+        for (String name : value.split("\\|")) {
+            switch (name.trim().toUpperCase(Locale.US)) {
+                case "AFTER_BUFFER_FULL":
+                    flags |= WifiScanner.REPORT_EVENT_AFTER_BUFFER_FULL;
+                    break;
+                case "AFTER_EACH_SCAN":
+                    flags |= WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN;
+                    break;
+                case "FULL_SCAN_RESULT":
+                    flags |= WifiScanner.REPORT_EVENT_FULL_SCAN_RESULT;
+                    break;
+                case "NO_BATCH":
+                    flags |= WifiScanner.REPORT_EVENT_NO_BATCH;
+                    break;
+                default:
+                    throw new CommandException("Unknown " + REPORT_EVENTS_KEY + " " + name
+                            + ", expecting AFTER_BUFFER_FULL, AFTER_EACH_SCAN,"
+                            + " FULL_SCAN_RESULT or NO_BATCH");
+            }
+        }
+        return flags;
+    }
+
+    private static String describeReportEvents(int flags) {
+        StringBuilder sb = new StringBuilder();
+        sb.append((flags & WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN) != 0
+                ? "AFTER_EACH_SCAN" : "AFTER_BUFFER_FULL");
+        if ((flags & WifiScanner.REPORT_EVENT_FULL_SCAN_RESULT) != 0) {
+            sb.append("|FULL_SCAN_RESULT");
+        }
+        if ((flags & WifiScanner.REPORT_EVENT_NO_BATCH) != 0) sb.append("|NO_BATCH");
+        return sb.toString();
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.trim().length() == 0;
+    }
+}
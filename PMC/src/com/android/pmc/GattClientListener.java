@@ -75,21 +75,8 @@ public class GattClientListener extends BroadcastReceiver {
         Log.d(TAG, "Start GattClientListener()");
         mContext = context;
         mAlarmManager = alarmManager;
-        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-
-        if (mBluetoothAdapter == null) {
-            Log.e(TAG, "BluetoothAdapter is Null");
-            return;
-        } else {
-            if (!mBluetoothAdapter.isEnabled()) {
-                Log.d(TAG, "BluetoothAdapter is NOT enabled, enable now");
-                mBluetoothAdapter.enable();
-                if (!mBluetoothAdapter.isEnabled()) {
-                    Log.e(TAG, "Can't enable Bluetooth");
-                    return;
-                }
-            }
-        }
+        mBluetoothAdapter = BluetoothEnabler.enable(context);
+        if (mBluetoothAdapter == null) return;
 
         mMyBleScanner = new MyBleScanner(mBluetoothAdapter);
         mGattCallback = new GattCallback();
@@ -132,6 +119,7 @@ public class GattClientListener extends BroadcastReceiver {
         alarmIntent.putExtra("com.android.pmc.GATTClient.CurrentAlarm", ++currentAlarm);
 
         long triggerTime = SystemClock.elapsedRealtime() + startTime * MILLSEC;
+        AlarmLatencyTracker.putTriggerTime(alarmIntent, triggerTime);
         mAlarmManager.setExactAndAllowWhileIdle(
                               AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerTime,
                               PendingIntent.getBroadcast(mContext, 0,
@@ -151,6 +139,7 @@ public class GattClientListener extends BroadcastReceiver {
         if (!intent.getAction().equals(GATTCLIENT_ALARM)) {
             return;
         }
+        AlarmLatencyTracker.onDelivered(TAG, intent);
 
         if (mMacAddress == null) mMacAddress = mMyBleScanner.getAdvMacAddress();
         if (mMacAddress == null || mMacAddress.isEmpty()) {
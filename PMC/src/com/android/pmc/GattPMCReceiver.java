@@ -24,34 +24,83 @@ import android.content.IntentFilter;
 import android.os.Bundle;
 import android.util.Log;
 
+import com.android.pmc.CommandRegistry.ParamSpec;
+
 /**
  * PMC Receiver functions for GATT Client and Server.
  */
 public class GattPMCReceiver extends BroadcastReceiver {
     public static final String TAG = "GATTPMC";
     public static final String GATTPMC_INTENT = "com.android.pmc.GATT";
-    private final GattClientListener mGattClientListener;
-    private final GattServer mGattServer;
+    public static final String GATT_SERVER_COMMAND = "StartGattServer";
+    public static final String GATT_WRITE_COMMAND = "StartGattWrite";
+    // Both turn Bluetooth on, so they are only created by the first command using them
+    private final WorkloadRegistry.Workload<GattClientListener> mGattClientListener;
+    private final WorkloadRegistry.Workload<GattServer> mGattServer;
+    private final WorkloadExecutor mExecutor;
+    private final Context mContext;
+    private CommandRegistry mCommandRegistry;
 
     /**
      * Constructor to be called by PMC
      *
      * @param context - PMC will provide a context
      * @param alarmManager - PMC will provide alarmManager
+     * @param workloads - registry the Bluetooth components are lazily created through
      */
-    public GattPMCReceiver(Context context, AlarmManager alarmManager) {
+    public GattPMCReceiver(Context context, AlarmManager alarmManager,
+            WorkloadRegistry workloads) {
         Log.d(TAG, "Start GattPMCReceiver()");
 
         // Prepare for setting alarm service
-        mGattClientListener = new GattClientListener(context, alarmManager);
-        mGattServer = new GattServer(context);
-
-        // RegisterAlarmReceiver for GattListener
-        context.registerReceiver(mGattClientListener,
-                new IntentFilter(GattClientListener.GATTCLIENT_ALARM));
+        mContext = context;
+        mExecutor = new WorkloadExecutor(TAG);
+        mGattClientListener = workloads.register("GattClientListener", () -> {
+            // Bluetooth could not be turned on, the next command tries again
+            if (BluetoothEnabler.enable(context) == null) return null;
+            GattClientListener listener = new GattClientListener(context, alarmManager);
+            // RegisterAlarmReceiver for GattListener, writes are driven from the GATT thread
+            context.registerReceiver(listener,
+                    new IntentFilter(GattClientListener.GATTCLIENT_ALARM), null,
+                    mExecutor.getHandler());
+            return listener;
+        });
+        mGattServer = workloads.register("GattServer",
+                () -> BluetoothEnabler.enable(context) == null ? null : new GattServer(context));
         Log.d(TAG, "Start GattPMCReceiver()");
     }
 
+    /**
+     * Register the GATT commands with PMC command registry
+     *
+     * @param registry - PMC will provide the command registry
+     */
+    public void registerCommands(CommandRegistry registry) {
+        mCommandRegistry = registry;
+        registry.register(GATT_SERVER_COMMAND, mExecutor, args -> {
+            Log.d(TAG, "For Gatt Server");
+            GattServer server = mGattServer.get();
+            if (server == null) throw new CommandException("Can't enable Bluetooth");
+            server.startGattServer();
+            return null;
+        });
+        registry.register(GATT_WRITE_COMMAND, mExecutor, args -> {
+            int startTime = args.getInt("StartTime");
+            int writeTime = args.getInt("WriteTime");
+            int idleTime = args.getInt("IdleTime");
+            int repetitions = args.getInt("Repetitions");
+            Log.d(TAG, "Start Time = " + startTime + " Write Time = " + writeTime
+                    + " Idle Time = " + idleTime + " Repetitions = " + repetitions);
+            GattClientListener listener = mGattClientListener.get();
+            if (listener == null) throw new CommandException("Can't enable Bluetooth");
+            listener.startAlarm(startTime, writeTime, idleTime, repetitions, null);
+            return null;
+        }, ParamSpec.requiredInt("StartTime").min(0),
+                ParamSpec.requiredInt("WriteTime").min(0),
+                ParamSpec.requiredInt("IdleTime").min(0),
+                ParamSpec.requiredInt("Repetitions").min(0));
+    }
+
     /**
      * Method to receive the broadcast from python client for PMC commands
      *
@@ -63,55 +112,25 @@ public class GattPMCReceiver extends BroadcastReceiver {
         Log.d(TAG, "Intent: " + intent.getAction());
         if (intent.getAction().equals(GATTPMC_INTENT)) {
             Bundle extras = intent.getExtras();
-            int startTime = 0, writeTime = 0, idleTime = 0, Repetitions = 1;
-            String str;
-
             if (extras == null) {
                 Log.e(TAG, "No parameters specified");
+                setResultData(CommandRegistry.RESULT_ERROR_PREFIX + "No parameters specified");
                 return;
             }
-
-            if (extras.containsKey("GattServer")) {
-                // this is for Gatt Server
-                Log.d(TAG, "For Gatt Server");
-                mGattServer.startGattServer();
-                return;
-            }
-
-            if (!extras.containsKey("StartTime")) {
-                Log.e(TAG, "No Start Time specified");
-                return;
-            }
-            str = extras.getString("StartTime");
-            Log.d(TAG, "Start Time = " + str);
-            startTime = Integer.valueOf(str);
-
-
-            if (!extras.containsKey("WriteTime")) {
-                Log.e(TAG, "No WriteTime specified for GATT write");
-                return;
-            }
-            str = extras.getString("WriteTime");
-            Log.d(TAG, "Write Time = " + str);
-            writeTime = Integer.valueOf(str);
-
-            if (!extras.containsKey("IdleTime")) {
-                Log.e(TAG, "No IdleTime specified for GATT write");
-                return;
-            }
-            str = extras.getString("IdleTime");
-            Log.d(TAG, "Idle Time = " + str);
-            idleTime = Integer.valueOf(str);
-
-            if (!extras.containsKey("Repetitions")) {
-                Log.e(TAG, "No Repetitions specified for GATT write");
-                return;
-            }
-            str = extras.getString("Repetitions");
-            Log.d(TAG, "Repetitions = " + str);
-            Repetitions = Integer.valueOf(str);
-
-            mGattClientListener.startAlarm(startTime, writeTime, idleTime, Repetitions, null);
+            // The "GattServer" extra selects the server side, the client side otherwise
+            String command = extras.containsKey("GattServer")
+                    ? GATT_SERVER_COMMAND : GATT_WRITE_COMMAND;
+            PMCService.dispatchBroadcast(this, mCommandRegistry, command, extras);
         }
     }
+
+    /**
+     * Unregister the alarm receiver if it was created, and release the GATT workload thread
+     * once the queued tasks have run.
+     */
+    public void release() {
+        GattClientListener listener = mGattClientListener.peek();
+        if (listener != null) mContext.unregisterReceiver(listener);
+        mExecutor.quit();
+    }
 }
@@ -62,21 +62,8 @@ public class GattServer {
         Log.d(TAG, "Start GattServer()");
         mContext = context;
         // Check if Bluetooth is enabled
-        BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-
-        if (bluetoothAdapter == null) {
-            Log.e(TAG, "BluetoothAdapter is Null");
-            return;
-        } else {
-            if (!bluetoothAdapter.isEnabled()) {
-                Log.d(TAG, "BluetoothAdapter is NOT enabled, enable now");
-                bluetoothAdapter.enable();
-                if (!bluetoothAdapter.isEnabled()) {
-                    Log.e(TAG, "Can't enable Bluetooth");
-                    return;
-                }
-            }
-        }
+        BluetoothAdapter bluetoothAdapter = BluetoothEnabler.enable(context);
+        if (bluetoothAdapter == null) return;
 
         // Prepare data for GATT service
         mBluetoothManager = (BluetoothManager) context.getSystemService(
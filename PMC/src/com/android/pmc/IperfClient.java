@@ -3,12 +3,10 @@ package com.android.pmc;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.wifi.WifiManager;
 import android.os.AsyncTask;
-import android.os.PowerManager;
 import android.os.SystemClock;
 import android.util.Log;
 
@@ -37,15 +35,16 @@ public class IperfClient {
     // This is the max value supported by iperf3.
     private static final int IPERF_OPTION_TIMEOUT = 86400;
 
-    private final PMCMainActivity mPMCMainActivity;
+    private final PMCService mPMCService;
     private final ProcessBuilder mProcessBuilder;
-    private PowerManager.WakeLock mWakeLock;
+    private WakeLockManager.Lock mWakeLock;
+    private long mWakeLockToken;
     private Process mProcess;
     private File mLogFile;
 
-    public IperfClient(PMCMainActivity activity, String serverAddress,
+    public IperfClient(PMCService service, String serverAddress,
             String serverPort, String bandWidthInMbps, String logFile) {
-        mPMCMainActivity = activity;
+        mPMCService = service;
         List<String> cmdList = new ArrayList<>();
         cmdList.add(IPERF_COMMAND);
         cmdList.add(IPERF_OPTION_VERBOSE_FLAG);
@@ -56,7 +55,7 @@ public class IperfClient {
         cmdList.add(IPERF_OPTION_TIMEOUT_FLAG);
         cmdList.add(Integer.toString(IPERF_OPTION_TIMEOUT));
         cmdList.add(IPERF_OPTION_TMPDIR_FLAG);
-        cmdList.add(activity.getCacheDir().getPath());
+        cmdList.add(service.getCacheDir().getPath());
         if (serverAddress != null && serverAddress.length() > 0) {
             cmdList.add(IPERF_OPTION_SERVER_FLAG);
             cmdList.add(serverAddress);
@@ -80,17 +79,17 @@ public class IperfClient {
      */
     public void startClient() {
         Log.i(PMCMainActivity.TAG, "Starting iperf client: " + mProcessBuilder.command());
-        PowerManager pm = (PowerManager) mPMCMainActivity.getSystemService(Context.POWER_SERVICE);
-        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "WIFITEST");
+        mWakeLock = mPMCService.getWakeLockManager().getLock(PMCService.WORKLOAD_IPERF);
         // Acquire the lock
-        mWakeLock.acquire();
+        mWakeLockToken = mWakeLock.acquire(WakeLockManager.MAX_TIMEOUT_MS);
         try {
             mProcessBuilder.redirectOutput(mLogFile);
             mProcessBuilder.redirectError(mLogFile);
             mProcess = mProcessBuilder.start();
         } catch (Exception e) {
             Log.e(PMCMainActivity.TAG, "Starting iperf client failed: " + e);
-            mPMCMainActivity.updateProgressStatus("Starting iperf client failed");
+            mPMCService.updateProgressStatus("Starting iperf client failed");
+            mWakeLock.release(mWakeLockToken);
         }
     }
 
@@ -106,7 +105,7 @@ public class IperfClient {
             } catch (Exception e) {
                 Log.e(PMCMainActivity.TAG, "Stopping iperf client failed: " + e);
             }
-            mWakeLock.release();
+            mWakeLock.release(mWakeLockToken);
             mProcess = null;
         }
     }
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal JSON codec for the sl4n request/response protocol.
+ *
+ * A request is one JSON object with a "cmd" or "method" member naming the command and an
+ * optional "params" member, either an object of named parameters or an array whose first
+ * element is such an object (the sl4n convention). Positional parameters are keyed "0", "1"...
+ * Every other member of the request is echoed verbatim in the response, like sl4n does.
+ *
+ * The codec only depends on the JDK so that it can run on a host JVM, and one instance is
+ * meant to be reused for every request of a connection: it keeps its scratch buffers.
+ */
+final class JsonRpcCodec {
+    static final String CMD = "cmd";
+    static final String METHOD = "method";
+    static final String PARAMS = "params";
+    static final String RESULT = "result";
+    static final String ERROR = "error";
+    static final String STATUS = "status";
+    static final String SUCCESS = "success";
+    static final String FAIL = "fail";
+
+    private final StringBuilder mToken = new StringBuilder();
+    private final StringBuilder mEcho = new StringBuilder();
+    private final Map<String, String> mParams = new HashMap<String, String>();
+    private CharSequence mIn;
+    private int mPos;
+    private int mEnd;
+    private String mMethod;
+
+    /**
+     * Parse one request. On success the command, parameters and echoed members are available
+     * through the getters until the next call.
+     *
+     * @param in - buffer holding the request
+     * @param start - index of the first char of the request
+     * @param end - index after the last char of the request
+     * @throws IllegalArgumentException if the request is not a valid JSON object
+     */
+    void parse(CharSequence in, int start, int end) {
+        mIn = in;
+        mPos = start;
+        mEnd = end;
+        mMethod = null;
+        mParams.clear();
+        mEcho.setLength(0);
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            mPos++;
+        } else {
+            while (true) {
+                skipWhitespace();
+                String key = readString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                if (key.equals(CMD) || key.equals(METHOD)) {
+                    int valueStart = mPos;
+                    if (peek() == '"') {
+                        String value = readString();
+                        // "cmd" takes precedence over "method", as in sl4n CommandReceiver
+                        if (mMethod == null || key.equals(CMD)) mMethod = value;
+                    } else {
+                        skipValue();
+                    }
+                    // sl4n removes "method" and "params" from the response but keeps "cmd"
+                    if (key.equals(CMD)) appendEcho(key, valueStart, mPos);
+                } else if (key.equals(PARAMS)) {
+                    readParams();
+                } else {
+                    int valueStart = mPos;
+                    skipValue();
+                    appendEcho(key, valueStart, mPos);
+                }
+                skipWhitespace();
+                char c = next();
+                if (c == '}') break;
+                if (c != ',') throw error("expected ',' or '}'");
+            }
+        }
+        skipWhitespace();
+        if (mPos != mEnd) throw error("trailing characters");
+    }
+
+    String getMethod() {
+        return mMethod;
+    }
+
+    /**
+     * Returns a copy of the parameters of the last parsed request.
+     */
+    Map<String, String> copyParams() {
+        return new HashMap<String, String>(mParams);
+    }
+
+    /**
+     * Returns the members of the last parsed request that are echoed in the response, as a
+     * JSON fragment that starts with a comma when not empty.
+     */
+    String getEcho() {
+        return mEcho.toString();
+    }
+
+    /**
+     * Write a response object followed by a newline.
+     *
+     * @param out - buffer to append to
+     * @param echo - fragment returned by getEcho() for the request
+     * @param result - result of the command, ignored if error is set
+     * @param error - error message, or null if the command succeeded
+     */
+    static void writeResponse(StringBuilder out, String echo, String result, String error) {
+        out.append('{').append('"').append(STATUS).append("\":\"")
+                .append(error == null ? SUCCESS : FAIL).append('"');
+        out.append(echo);
+        out.append(",\"").append(RESULT).append("\":");
+        if (error != null) {
+            out.append("false");
+        } else if (result == null) {
+            out.append("true");
+        } else {
+            writeString(out, result);
+        }
+        out.append(",\"").append(ERROR).append("\":");
+        if (error == null) {
+            out.append("null");
+        } else {
+            writeString(out, error);
+        }
+        out.append("}\n");
+    }
+
+    static void writeString(StringBuilder out, String s) {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    private void readParams() {
+        char c = peek();
+        if (c == '{') {
+            readNamedParams();
+        } else if (c == '[') {
+            mPos++;
+            skipWhitespace();
+            int index = 0;
+            if (peek() == ']') {
+                mPos++;
+                return;
+            }
+            while (true) {
+                skipWhitespace();
+                if (index == 0 && peek() == '{') {
+                    readNamedParams();
+                } else {
+                    mParams.put(Integer.toString(index), readScalarOrRaw());
+                }
+                index++;
+                skipWhitespace();
+                c = next();
+                if (c == ']') break;
+                if (c != ',') throw error("expected ',' or ']'");
+            }
+        } else if (!readScalarOrRaw().equals("null")) {
+            throw error("params must be an object or an array");
+        }
+    }
+
+    private void readNamedParams() {
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            mPos++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            String key = readString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            mParams.put(key, readScalarOrRaw());
+            skipWhitespace();
+            char c = next();
+            if (c == '}') break;
+            if (c != ',') throw error("expected ',' or '}'");
+        }
+    }
+
+    /**
+     * Returns a string value unquoted, any other value as its raw JSON text.
+     */
+    private String readScalarOrRaw() {
+        if (peek() == '"') return readString();
+        int start = mPos;
+        skipValue();
+        return mIn.subSequence(start, mPos).toString();
+    }
+
+    private String readString() {
+        expect('"');
+        mToken.setLength(0);
+        while (true) {
+            char c = next();
+            if (c == '"') break;
+            if (c != '\\') {
+                mToken.append(c);
+                continue;
+            }
+            c = next();
+            switch (c) {
+                case 'b':
+                    mToken.append('\b');
+                    break;
+                case 'f':
+                    mToken.append('\f');
+                    break;
+                case 'n':
+                    mToken.append('\n');
+                    break;
+                case 'r':
+                    mToken.append('\r');
+                    break;
+                case 't':
+                    mToken.append('\t');
+                    break;
+                case 'u':
+                    if (mPos + 4 > mEnd) throw error("truncated unicode escape");
+                    try {
+                        mToken.append((char) Integer.parseInt(
+                                mIn.subSequence(mPos, mPos + 4).toString(), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("invalid unicode escape");
+                    }
+                    mPos += 4;
+                    break;
+                default:
+                    mToken.append(c);
+            }
+        }
+        return mToken.toString();
+    }
+
+    private void skipValue() {
+        char c = peek();
+        if (c == '"') {
+            readString();
+        } else if (c == '{' || c == '[') {
+            char close = c == '{' ? '}' : ']';
+            mPos++;
+            skipWhitespace();
+            if (peek() == close) {
+                mPos++;
+                return;
+            }
+            while (true) {
+                skipWhitespace();
+                if (close == '}') {
+                    readString();
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                }
+                skipValue();
+                skipWhitespace();
+                char n = next();
+                if (n == close) break;
+                if (n != ',') throw error("expected ',' or '" + close + "'");
+            }
+        } else {
+            int start = mPos;
+            while (mPos < mEnd) {
+                c = mIn.charAt(mPos);
+                if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) break;
+                mPos++;
+            }
+            if (mPos == start) throw error("expected a value");
+        }
+    }
+
+    private void appendEcho(String key, int valueStart, int valueEnd) {
+        mEcho.append(',');
+        writeString(mEcho, key);
+        mEcho.append(':').append(mIn, valueStart, valueEnd);
+    }
+
+    private void skipWhitespace() {
+        while (mPos < mEnd && Character.isWhitespace(mIn.charAt(mPos))) mPos++;
+    }
+
+    private char peek() {
+        if (mPos >= mEnd) throw error("unexpected end of request");
+        return mIn.charAt(mPos);
+    }
+
+    private char next() {
+        char c = peek();
+        mPos++;
+        return c;
+    }
+
+    private void expect(char c) {
+        if (next() != c) throw error("expected '" + c + "'");
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Invalid JSON at " + mPos + ": " + message);
+    }
+}
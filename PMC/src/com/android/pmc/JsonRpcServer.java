@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * JSON-RPC control socket speaking the sl4n request/response protocol.
+ *
+ * One selector thread serves every client. Requests are newline (or NUL) terminated JSON
+ * objects and may be pipelined: a client can send several requests without waiting, the
+ * responses are written back in request order, each one terminated by a newline.
+ *
+ * Commands are handed to a Dispatcher which may complete them on any thread. The server only
+ * depends on the JDK (it logs through java.util.logging), so it can be exercised on a host JVM
+ * with a fake Dispatcher.
+ */
+public class JsonRpcServer {
+    public static final int DEFAULT_PORT = 8080;
+    private static final Logger LOG = Logger.getLogger("PMCJsonRpc");
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final int MAX_REQUEST_SIZE = 1024 * 1024;
+    // Same built-in commands as sl4n CommandReceiver
+    private static final String INITIATE = "initiate";
+    private static final String CONTINUE = "continue";
+
+    /**
+     * Executes the commands received by the server.
+     */
+    public interface Dispatcher {
+        /**
+         * Execute a command. Must not block the calling thread for long, and must call
+         * callback exactly once, from any thread.
+         *
+         * @param method - command name
+         * @param params - named parameters of the command
+         * @param callback - to be called with the outcome of the command
+         */
+        void dispatch(String method, Map<String, String> params, ResultCallback callback);
+    }
+
+    /**
+     * Completion of one command.
+     */
+    public interface ResultCallback {
+        /**
+         * @param result - result of the command, may be null
+         * @param error - error message, or null if the command succeeded
+         */
+        void onResult(String result, String error);
+    }
+
+    /**
+     * Returns a Dispatcher running the commands of a registry, each on the executor of its
+     * workload.
+     *
+     * @param registry - registry of the commands
+     */
+    public static Dispatcher registryDispatcher(final CommandRegistry registry) {
+        return (method, params, callback) ->
+                registry.dispatchAsync(method, params, callback::onResult);
+    }
+
+    private final Dispatcher mDispatcher;
+    private final int mRequestedPort;
+    private final ConcurrentLinkedQueue<Connection> mReadyConnections =
+            new ConcurrentLinkedQueue<Connection>();
+    // Only accessed by the selector thread
+    private final Set<Connection> mConnections = new HashSet<Connection>();
+    private Selector mSelector;
+    private ServerSocketChannel mServerChannel;
+    private Thread mThread;
+
+    /**
+     * Constructor
+     *
+     * @param port - TCP port to listen on, 0 to pick any free port
+     * @param dispatcher - executes the commands
+     */
+    public JsonRpcServer(int port, Dispatcher dispatcher) {
+        mRequestedPort = port;
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * Bind the socket and start serving clients.
+     *
+     * @throws IOException if the port can not be bound
+     */
+    public synchronized void start() throws IOException {
+        if (mThread != null) return;
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(new InetSocketAddress(mRequestedPort));
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        mThread = new Thread(this::serve, "PMCJsonRpc");
+        mThread.start();
+        LOG.info("JSON-RPC server listening on port " + getPort());
+    }
+
+    /**
+     * Stop serving and close every client connection.
+     */
+    public synchronized void stop() {
+        if (mThread == null) return;
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Closing selector failed", e);
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    /**
+     * Returns the port the server listens on, or -1 when not started.
+     */
+    public synchronized int getPort() {
+        return mServerChannel == null ? -1 : mServerChannel.socket().getLocalPort();
+    }
+
+    private void serve() {
+        try {
+            while (mSelector.isOpen()) {
+                mSelector.select();
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) conn.onReadable();
+                            if (key.isValid() && key.isWritable()) conn.onWritable();
+                        } catch (IOException e) {
+                            LOG.log(Level.FINE, "Client connection closed", e);
+                            conn.close();
+                        }
+                    }
+                }
+                Connection ready;
+                while ((ready = mReadyConnections.poll()) != null) {
+                    try {
+                        ready.flushCompleted();
+                    } catch (IOException e) {
+                        ready.close();
+                    }
+                }
+            }
+        } catch (ClosedSelectorException | CancelledKeyException e) {
+            // stop() was called, closing the selector cancels the keys of every connection
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "JSON-RPC server failed", e);
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = mServerChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection conn = new Connection(channel);
+        conn.mKey = channel.register(mSelector, SelectionKey.OP_READ, conn);
+        mConnections.add(conn);
+        LOG.fine("Client connected: " + channel.socket().getRemoteSocketAddress());
+    }
+
+    private void closeAll() {
+        try {
+            mServerChannel.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Closing server socket failed", e);
+        }
+        for (Connection conn : new ArrayList<Connection>(mConnections)) {
+            conn.close();
+        }
+    }
+
+    /**
+     * Response slot of a pipelined request, completed by the dispatcher.
+     */
+    private static class Response {
+        final String mEcho;
+        String mText;
+
+        Response(String echo) {
+            mEcho = echo;
+        }
+    }
+
+    private class Connection {
+        final SocketChannel mChannel;
+        final JsonRpcCodec mCodec = new JsonRpcCodec();
+        final CharsetDecoder mDecoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        // Responses in request order; only the completed head can be written
+        final ArrayDeque<Response> mPending = new ArrayDeque<Response>();
+        final StringBuilder mOut = new StringBuilder();
+        ByteBuffer mReadBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        CharBuffer mChars = CharBuffer.allocate(INITIAL_BUFFER_SIZE);
+        ByteBuffer mWriteBuffer = ByteBuffer.allocate(0);
+        SelectionKey mKey;
+        boolean mClosed;
+
+        Connection(SocketChannel channel) {
+            mChannel = channel;
+        }
+
+        void onReadable() throws IOException {
+            if (!mReadBuffer.hasRemaining()) {
+                if (mReadBuffer.capacity() >= MAX_REQUEST_SIZE) {
+                    throw new IOException("Request larger than " + MAX_REQUEST_SIZE + " bytes");
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(mReadBuffer.capacity() * 2);
+                mReadBuffer.flip();
+                bigger.put(mReadBuffer);
+                mReadBuffer = bigger;
+            }
+            int read = mChannel.read(mReadBuffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            // Handle every complete request in the buffer, keep the partial tail
+            mReadBuffer.flip();
+            int lineStart = 0;
+            for (int i = mReadBuffer.position(); i < mReadBuffer.limit(); i++) {
+                byte b = mReadBuffer.get(i);
+                if (b == '\n' || b == 0) {
+                    handleRequest(lineStart, i);
+                    lineStart = i + 1;
+                }
+            }
+            mReadBuffer.position(lineStart);
+            mReadBuffer.compact();
+        }
+
+        private void handleRequest(int start, int end) throws CharacterCodingException {
+            ByteBuffer bytes = mReadBuffer.duplicate();
+            bytes.limit(end).position(start);
+            if (mChars.capacity() < bytes.remaining()) {
+                mChars = CharBuffer.allocate(bytes.remaining());
+            }
+            mChars.clear();
+            mDecoder.reset();
+            mDecoder.decode(bytes, mChars, true);
+            mDecoder.flush(mChars);
+            mChars.flip();
+            int first = 0;
+            while (first < mChars.limit() && Character.isWhitespace(mChars.get(first))) first++;
+            if (first == mChars.limit()) return;  // blank line between requests
+
+            final Response response;
+            String method;
+            Map<String, String> params;
+            try {
+                mCodec.parse(mChars, first, mChars.limit());
+                response = new Response(mCodec.getEcho());
+                method = mCodec.getMethod();
+                params = mCodec.copyParams();
+            } catch (IllegalArgumentException e) {
+                Response invalid = new Response("");
+                mPending.add(invalid);
+                complete(invalid, null, e.getMessage());
+                return;
+            }
+            mPending.add(response);
+            if (method == null) {
+                complete(response, null, "No " + JsonRpcCodec.CMD + " or "
+                        + JsonRpcCodec.METHOD + " specified");
+            } else if (method.equals(INITIATE) || method.equals(CONTINUE)) {
+                complete(response, null, null);
+            } else {
+                try {
+                    mDispatcher.dispatch(method, params,
+                            (result, error) -> complete(response, result, error));
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "Dispatching " + method + " failed", e);
+                    complete(response, null, e.toString());
+                }
+            }
+        }
+
+        /**
+         * Called by the dispatcher, on any thread, when a command completes.
+         */
+        void complete(Response response, String result, String error) {
+            StringBuilder sb = new StringBuilder();
+            JsonRpcCodec.writeResponse(sb, response.mEcho, result, error);
+            synchronized (this) {
+                response.mText = sb.toString();
+            }
+            mReadyConnections.add(this);
+            mSelector.wakeup();
+        }
+
+        /**
+         * Move the completed responses at the head of the queue to the socket.
+         */
+        void flushCompleted() throws IOException {
+            if (mClosed) return;
+            synchronized (this) {
+                while (!mPending.isEmpty() && mPending.peek().mText != null) {
+                    mOut.append(mPending.poll().mText);
+                }
+            }
+            if (mOut.length() == 0) return;
+            byte[] bytes = mOut.toString().getBytes(StandardCharsets.UTF_8);
+            mOut.setLength(0);
+            if (mWriteBuffer.remaining() == 0 && mWriteBuffer.capacity() >= bytes.length) {
+                mWriteBuffer.clear();
+            } else {
+                ByteBuffer merged = ByteBuffer.allocate(
+                        Math.max(INITIAL_BUFFER_SIZE, mWriteBuffer.remaining() + bytes.length));
+                merged.put(mWriteBuffer);
+                mWriteBuffer = merged;
+            }
+            mWriteBuffer.put(bytes);
+            mWriteBuffer.flip();
+            onWritable();
+        }
+
+        void onWritable() throws IOException {
+            mChannel.write(mWriteBuffer);
+            int ops = SelectionKey.OP_READ;
+            if (mWriteBuffer.hasRemaining()) ops |= SelectionKey.OP_WRITE;
+            mKey.interestOps(ops);
+        }
+
+        void close() {
+            if (mClosed) return;
+            mClosed = true;
+            mConnections.remove(this);
+            if (mKey != null) mKey.cancel();
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Closing client failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+/**
+ * Fixed size log-linear histogram of non-negative values, typically latencies.
+ *
+ * Each power of two range is split into SUB_BUCKETS linear buckets, so a value is known within
+ * 1/SUB_BUCKETS of its magnitude. Recording never allocates, which keeps it usable from
+ * callbacks that run during a power measurement.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mTotalCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = Long.MIN_VALUE;
+
+    /**
+     * Add a value, negative values are counted as 0.
+     */
+    public synchronized void record(long value) {
+        if (value < 0) value = 0;
+        mCounts[bucketOf(value)]++;
+        mTotalCount++;
+        mSum += value;
+        if (value < mMin) mMin = value;
+        if (value > mMax) mMax = value;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKETS; i++) mCounts[i] = 0;
+        mTotalCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = Long.MIN_VALUE;
+    }
+
+    public synchronized long getCount() {
+        return mTotalCount;
+    }
+
+    public synchronized long getMin() {
+        return mTotalCount == 0 ? 0 : mMin;
+    }
+
+    public synchronized long getMax() {
+        return mTotalCount == 0 ? 0 : mMax;
+    }
+
+    public synchronized double getMean() {
+        return mTotalCount == 0 ? 0 : (double) mSum / mTotalCount;
+    }
+
+    /**
+     * Returns an upper bound of the value below which the given fraction of values fall.
+     *
+     * @param fraction - between 0 and 1, e.g. 0.99 for the 99th percentile
+     */
+    public synchronized long getPercentile(double fraction) {
+        if (mTotalCount == 0) return 0;
+        long rank = (long) Math.ceil(fraction * mTotalCount);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(Math.max(upperBoundOf(i), mMin), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Returns a one line summary: count, min, mean, p50, p95, p99 and max.
+     *
+     * @param unit - unit of the values, appended to each of them
+     */
+    public synchronized String toSummary(String unit) {
+        return "n=" + mTotalCount
+                + " min=" + getMin() + unit
+                + " mean=" + Math.round(getMean()) + unit
+                + " p50=" + getPercentile(0.50) + unit
+                + " p95=" + getPercentile(0.95) + unit
+                + " p99=" + getPercentile(0.99) + unit
+                + " max=" + getMax() + unit;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from long to int, without boxing.
+ *
+ * Used slots are also listed in insertion order, so iterating and clearing cost the number of
+ * entries rather than the capacity. Capacity only grows, a map cleared and refilled to the
+ * same size never allocates. Long.MIN_VALUE can't be used as a key. Not thread safe.
+ */
+public class LongIntMap {
+    public static final int NO_VALUE = Integer.MIN_VALUE;
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] mKeys;
+    private int[] mValues;
+    // Slots in use, in insertion order
+    private int[] mUsed;
+    private int mSize;
+    private int mMask;
+
+    /**
+     * Constructor
+     *
+     * @param expectedSize - number of entries the map holds without growing
+     */
+    public LongIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) * 2;
+        allocate(capacity);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the value of a key, NO_VALUE if absent.
+     */
+    public int get(long key) {
+        int slot = find(key);
+        return mKeys[slot] == EMPTY ? NO_VALUE : mValues[slot];
+    }
+
+    public boolean containsKey(long key) {
+        return mKeys[find(key)] != EMPTY;
+    }
+
+    /**
+     * Set the value of a key.
+     *
+     * @return previous value of the key, NO_VALUE if absent
+     */
+    public int put(long key, int value) {
+        if (key == EMPTY) throw new IllegalArgumentException("Reserved key " + key);
+        int slot = find(key);
+        if (mKeys[slot] != EMPTY) {
+            int previous = mValues[slot];
+            mValues[slot] = value;
+            return previous;
+        }
+        if ((mSize + 1) * 2 > mKeys.length) {
+            grow();
+            slot = find(key);
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        mUsed[mSize++] = slot;
+        return NO_VALUE;
+    }
+
+    /**
+     * Returns the key of the index-th entry, in insertion order.
+     *
+     * @param index - from 0 to size() - 1
+     */
+    public long keyAt(int index) {
+        return mKeys[mUsed[index]];
+    }
+
+    /**
+     * Returns the value of the index-th entry, in insertion order.
+     *
+     * @param index - from 0 to size() - 1
+     */
+    public int valueAt(int index) {
+        return mValues[mUsed[index]];
+    }
+
+    /**
+     * Remove all the entries, keeping the capacity.
+     */
+    public void clear() {
+        for (int i = 0; i < mSize; i++) mKeys[mUsed[i]] = EMPTY;
+        mSize = 0;
+    }
+
+    private int find(long key) {
+        int slot = mix(key) & mMask;
+        while (mKeys[slot] != EMPTY && mKeys[slot] != key) {
+            slot = (slot + 1) & mMask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        int[] used = mUsed;
+        int size = mSize;
+        allocate(keys.length * 2);
+        for (int i = 0; i < size; i++) {
+            int slot = find(keys[used[i]]);
+            mKeys[slot] = keys[used[i]];
+            mValues[slot] = values[used[i]];
+            mUsed[mSize++] = slot;
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        Arrays.fill(mKeys, EMPTY);
+        mValues = new int[capacity];
+        mUsed = new int[capacity / 2];
+        mSize = 0;
+        mMask = capacity - 1;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
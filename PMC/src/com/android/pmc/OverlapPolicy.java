@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * What a periodic workload does with a tick that fires while the previous one still runs.
+ *
+ * SKIP drops the tick, QUEUE_ONE keeps the first overlapping tick and starts it as soon as the
+ * running one is done, dropping the others, and COALESCE merges all the overlapping ticks into
+ * one run started as soon as the running one is done. The caller is never blocked.
+ *
+ * Ticks are submitted on the workload thread the Handler belongs to, and the queued run is
+ * started there too, so the policy needs no locking. Only onDone() may be called from any
+ * thread, e.g. from a task running on the task executor of the workload.
+ */
+public class OverlapPolicy {
+    private static final String TAG = "PMCOVERLAP";
+
+    public enum Mode { SKIP, QUEUE_ONE, COALESCE }
+
+    /**
+     * Work of one tick, must call onDone() once it finished, however it finished.
+     */
+    public interface Tick {
+        /**
+         * @param ticks - number of ticks this run stands for, more than 1 when coalesced
+         */
+        void run(int ticks);
+    }
+
+    private final String mName;
+    private final Mode mMode;
+    private final Handler mHandler;
+    private final LatencyHistogram mLateness = new LatencyHistogram();
+    private boolean mBusy;
+    private boolean mCancelled;
+    private Tick mPendingTick;
+    private int mPendingTicks;
+    private long mPendingSince;
+    private long mStarted;
+    private long mSkipped;
+    private long mLate;
+    private long mCoalesced;
+
+    /**
+     * Constructor
+     *
+     * @param name - name of the workload, for logs and status
+     * @param mode - what to do with overlapping ticks
+     * @param handler - handler of the workload thread
+     */
+    public OverlapPolicy(String name, Mode mode, Handler handler) {
+        mName = name;
+        mMode = mode;
+        mHandler = handler;
+    }
+
+    /**
+     * Parse a mode given by the client, case insensitively.
+     *
+     * @param value - name of the mode
+     * @throws CommandException if the mode is unknown
+     */
+    public static Mode parseMode(String value) throws CommandException {
+        try {
+            return Mode.valueOf(value.trim().toUpperCase(Locale.US));
+        } catch (IllegalArgumentException e) {
+            throw new CommandException("Unknown overlap policy " + value
+                    + ", expecting SKIP, QUEUE_ONE or COALESCE");
+        }
+    }
+
+    /**
+     * Submit a tick, run right away if the previous one is done. Call on the workload thread.
+     *
+     * @param tick - work of the tick
+     */
+    public void onTick(Tick tick) {
+        if (mCancelled) return;
+        if (!mBusy) {
+            start(tick, 1);
+            return;
+        }
+        switch (mMode) {
+            case QUEUE_ONE:
+                if (mPendingTicks == 0) {
+                    queue(tick);
+                } else {
+                    mSkipped++;
+                }
+                break;
+            case COALESCE:
+                if (mPendingTicks == 0) {
+                    queue(tick);
+                } else {
+                    mPendingTicks++;
+                    mCoalesced++;
+                }
+                break;
+            default:
+                mSkipped++;
+                break;
+        }
+        Log.w(TAG, mName + ": tick while the previous one still runs, " + mMode
+                + " skipped " + mSkipped + " pending " + mPendingTicks);
+    }
+
+    /**
+     * Report that the running tick finished. May be called from any thread.
+     */
+    public void onDone() {
+        mHandler.post(() -> {
+            mBusy = false;
+            if (mPendingTicks == 0 || mCancelled) return;
+            Tick tick = mPendingTick;
+            int ticks = mPendingTicks;
+            mPendingTick = null;
+            mPendingTicks = 0;
+            mLate++;
+            mLateness.record(SystemClock.elapsedRealtime() - mPendingSince);
+            start(tick, ticks);
+        });
+    }
+
+    /**
+     * Drop the pending tick and refuse new ones. Call on the workload thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+        mPendingTick = null;
+        mPendingTicks = 0;
+    }
+
+    /**
+     * Returns a one line summary of the ticks started, skipped, coalesced and started late.
+     */
+    public String getStatus() {
+        return mName + " " + mMode + " started " + mStarted + " skipped " + mSkipped
+                + " coalesced " + mCoalesced + " late " + mLate
+                + " late by[" + mLateness.toSummary("ms") + "]";
+    }
+
+    private void queue(Tick tick) {
+        mPendingTick = tick;
+        mPendingTicks = 1;
+        mPendingSince = SystemClock.elapsedRealtime();
+    }
+
+    private void start(Tick tick, int ticks) {
+        mBusy = true;
+        mStarted++;
+        try {
+            tick.run(ticks);
+        } catch (RuntimeException e) {
+            mBusy = false;
+            throw e;
+        }
+    }
+}
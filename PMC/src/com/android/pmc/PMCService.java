@@ -0,0 +1,980 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.app.AlarmManager;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.wifi.WifiScanner;
+import android.net.wifi.WifiScanner.ScanSettings;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.pmc.CommandRegistry.CommandArgs;
+import com.android.pmc.CommandRegistry.CommandHandler;
+import com.android.pmc.CommandRegistry.ParamSpec;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Foreground service owning all the PMC workloads.
+ *
+ * Workloads live as long as this service instead of PMCMainActivity, so a multi-hour run is not
+ * affected by the activity being recreated or destroyed, and the foreground priority protects
+ * it from low-memory kills. The long-running workloads record their start command in a
+ * WorkloadStateStore; if the process is killed anyway, the sticky service is restarted and
+ * starts them again. The activity is a thin client bound to this service.
+ */
+public class PMCService extends Service {
+    public static final String TAG = PMCMainActivity.TAG;
+    private static final int NOTIFICATION_ID = 1;
+    private static final String NOTIFICATION_CHANNEL = "PMC";
+    private static final String SETTINGS_PREFS_NAME = "pmc_settings";
+    private static final String sConnScanAction = "ConnectionScan";
+    private static final String sGScanAction = "GScan";
+    private static final String sDownloadAction = "DownloadData";
+    private static final String SETPARAMS_INTENT_STRING = "com.android.pmc.action.SETPARAMS";
+    private static final String AUTOPOWER_INTENT_STRING = "com.android.pmc.action.AUTOPOWER";
+    private static final String POWER_ACTION_KEY = "PowerAction";
+    // Result data of a command broadcast answered before the command completed
+    public static final String RESULT_ACCEPTED = "ACCEPTED";
+    // Longest a command broadcast is kept pending, well under the broadcast receiver timeout
+    private static final long BROADCAST_RESULT_TIMEOUT_MS = 2000;
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    static final String SETPARAMS_COMMAND = "SetParams";
+    // Flag of the periodic Wi-Fi workloads to use exact alarms instead of batched ones
+    private static final String EXACT_ALARM_PARAM = "ExactAlarm";
+    // What the periodic Wi-Fi workloads do with a tick while the previous one still runs
+    private static final String OVERLAP_PARAM = "Overlap";
+    // Smallest RSSI change between two scans recorded in the scan diff timeline, in dB
+    private static final String DIFF_RSSI_PARAM = "DiffRssiThreshold";
+    // Channels of StartGScanChannel unless others are configured, in MHz
+    private static final int[] SOCIAL_CHANNELS = {2412, 2437, 2462};
+    // Backoff of the back to back scans while the framework throttles them
+    private static final String INITIAL_BACKOFF_PARAM = "InitialBackoffMs";
+    private static final String MAX_BACKOFF_PARAM = "MaxBackoffMs";
+    // Names the long-running workloads are saved under for resumption
+    static final String WORKLOAD_DOWNLOAD = "WifiDownload";
+    static final String WORKLOAD_CONN_SCAN = "WifiConnScan";
+    static final String WORKLOAD_GSCAN = "WifiGScan";
+    static final String WORKLOAD_IPERF = "Iperf";
+    static final String WORKLOAD_TETHERING = "Tethering";
+    static final String WORKLOAD_TETHERED_TRAFFIC = "TetheredTraffic";
+
+    /**
+     * Receives the status of the workloads, e.g. to render it on the UI.
+     */
+    public interface StatusListener {
+        /**
+         * Called on the thread of the workload whose status changed.
+         *
+         * @param status - status text
+         * @param running - true if a workload is running
+         */
+        void onStatus(String status, boolean running);
+    }
+
+    /**
+     * Binder returned to clients in the same process.
+     */
+    public class LocalBinder extends Binder {
+        public PMCService getService() {
+            return PMCService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private final CommandRegistry mCommandRegistry = new CommandRegistry();
+    private final WorkloadRegistry mWorkloads = new WorkloadRegistry();
+    private WorkloadStateStore mStateStore;
+    private SharedPreferences mSettings;
+    private volatile StatusListener mStatusListener;
+    private volatile String mLastStatus = "";
+    private volatile boolean mRunning;
+    private PendingIntent mPIGScan;
+    private PendingIntent mPIDownload;
+    private PendingIntent mPIConnScan;
+    // Settings are written by SetParams and read by the workloads
+    private volatile String mServerIP = "10.10.10.1";
+    private volatile String mServerPort = "8080";
+    private volatile int mIntervalMillis = 60 * 1000;
+    private volatile String mIperfBandwidth = "1M";
+    private volatile String mIperfLogFile = "/sdcard/iperf.txt";
+    // GScan settings given through SETPARAMS, see GScanConfig, empty for the defaults
+    private volatile String mGScanChannels = "";
+    private volatile String mGScanPeriodMs = "";
+    private volatile String mGScanMaxScansToCache = "";
+    private volatile String mGScanReportEvents = "";
+    // Each workload field is only touched from the thread of its executor
+    private WifiConnScanReceiver mConnSR = null;
+    private WifiGScanReceiver mGScanR = null;
+    private GScanBatchSession mGScanBatch = null;
+    private WifiDownloadReceiver mDR = null;
+    private IperfClient mIperfClient = null;
+    private WorkloadRegistry.Workload<UsbTethering> mUsbTethering;
+    private WorkloadRegistry.Workload<TetheredTrafficClient> mTetheredTrafficClient;
+    private PMCReceiver mPMCReceiver;
+    private BleScanReceiver mBleScanReceiver;
+    private GattPMCReceiver mGattPMCReceiver;
+    private A2dpReceiver mA2dpReceiver;
+    private TestPlanExecutor mTestPlanExecutor;
+    private ScenarioCoordinator mScenarioCoordinator;
+    private WakeLockManager mWakeLockManager;
+    private final ScanLatencyStats mScanLatency = new ScanLatencyStats();
+    private JsonRpcServer mRpcServer;
+    private AlarmManager mAlarmManager;
+    private PowerManager.WakeLock mWakeLock;
+    private ConnectivityManager mConnManager;
+    private WorkloadExecutor mControlExecutor;
+    private WorkloadExecutor mDownloadExecutor;
+    private WorkloadExecutor mConnScanExecutor;
+    private WorkloadExecutor mGScanExecutor;
+    private WorkloadExecutor mDownloadTaskExecutor;
+    private WorkloadExecutor mConnScanTaskExecutor;
+    private WorkloadExecutor mGScanTaskExecutor;
+    private WorkloadExecutor mIperfExecutor;
+    private WorkloadExecutor mTetheringExecutor;
+    private WorkloadExecutor mTetheredTrafficExecutor;
+
+    @Override
+    public void onCreate() {
+        long startTime = SystemClock.elapsedRealtime();
+        super.onCreate();
+        startForeground(NOTIFICATION_ID, buildNotification("Idle"));
+        mStateStore = new WorkloadStateStore(this);
+        mSettings = getSharedPreferences(SETTINGS_PREFS_NAME, Context.MODE_PRIVATE);
+        loadSettings();
+        mAlarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        mConnManager = (ConnectivityManager)
+                this.getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        mPIGScan = PendingIntent.getBroadcast(this, 0, new Intent(sGScanAction), 0);
+        mPIDownload = PendingIntent.getBroadcast(this, 0, new Intent(sDownloadAction), 0);
+        mPIConnScan = PendingIntent.getBroadcast(this, 0, new Intent(sConnScanAction), 0);
+        mWakeLockManager = new WakeLockManager(this);
+        mControlExecutor = new WorkloadExecutor("Control");
+        mDownloadExecutor = new WorkloadExecutor(WORKLOAD_DOWNLOAD);
+        mConnScanExecutor = new WorkloadExecutor(WORKLOAD_CONN_SCAN);
+        mGScanExecutor = new WorkloadExecutor(WORKLOAD_GSCAN);
+        // The blocking work of every tick runs on its own thread, so the alarms keep firing
+        mDownloadTaskExecutor = new WorkloadExecutor(WORKLOAD_DOWNLOAD + "Task");
+        mConnScanTaskExecutor = new WorkloadExecutor(WORKLOAD_CONN_SCAN + "Task");
+        mGScanTaskExecutor = new WorkloadExecutor(WORKLOAD_GSCAN + "Task");
+        mIperfExecutor = new WorkloadExecutor(WORKLOAD_IPERF);
+        mTetheringExecutor = new WorkloadExecutor(WORKLOAD_TETHERING);
+        mTetheredTrafficExecutor = new WorkloadExecutor(WORKLOAD_TETHERED_TRAFFIC);
+        // Nothing created here may touch a radio, radio components are registered lazily
+        mUsbTethering = mWorkloads.register("UsbTethering",
+                () -> new UsbTethering(this, mConnManager, mTetheringExecutor.getHandler()));
+        mTetheredTrafficClient = mWorkloads.register("TetheredTrafficClient",
+                () -> new TetheredTrafficClient(this, mTetheredTrafficExecutor.getHandler()));
+        mPMCReceiver = new PMCReceiver();
+        mBleScanReceiver = mWorkloads.createNow("BleScanReceiver",
+                () -> new BleScanReceiver(this, mAlarmManager, mWorkloads));
+        mGattPMCReceiver = mWorkloads.createNow("GattPMCReceiver",
+                () -> new GattPMCReceiver(this, mAlarmManager, mWorkloads));
+        mA2dpReceiver = mWorkloads.createNow("A2dpReceiver",
+                () -> new A2dpReceiver(this, mAlarmManager, mWorkloads));
+        registerCommands();
+        mBleScanReceiver.registerCommands(mCommandRegistry);
+        mGattPMCReceiver.registerCommands(mCommandRegistry);
+        mA2dpReceiver.registerCommands(mCommandRegistry);
+        mTestPlanExecutor = mWorkloads.createNow("TestPlanExecutor",
+                () -> new TestPlanExecutor(this, mAlarmManager, mCommandRegistry,
+                        mWakeLockManager));
+        mTestPlanExecutor.registerCommands();
+        mScenarioCoordinator = mWorkloads.createNow("ScenarioCoordinator",
+                () -> new ScenarioCoordinator(this, mAlarmManager, mCommandRegistry,
+                        mWakeLockManager));
+        mScenarioCoordinator.registerCommands();
+        registerReceiver(mPMCReceiver, new IntentFilter(AUTOPOWER_INTENT_STRING));
+        registerReceiver(mPMCReceiver, new IntentFilter(SETPARAMS_INTENT_STRING));
+        registerReceiver(mBleScanReceiver, new IntentFilter(BleScanReceiver.BLE_SCAN_INTENT));
+        registerReceiver(mGattPMCReceiver, new IntentFilter(GattPMCReceiver.GATTPMC_INTENT));
+        registerReceiver(mA2dpReceiver, new IntentFilter(A2dpReceiver.A2DP_INTENT));
+        Log.i(TAG, "PMC service started in " + (SystemClock.elapsedRealtime() - startTime)
+                + " ms");
+        resumeWorkloads();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Restarted with a null intent after the process was killed, onCreate() resumed
+        // the workloads already
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mTestPlanExecutor.release();
+        mScenarioCoordinator.release();
+        unregisterReceiver(mPMCReceiver);
+        unregisterReceiver(mBleScanReceiver);
+        unregisterReceiver(mGattPMCReceiver);
+        unregisterReceiver(mA2dpReceiver);
+        mControlExecutor.execute("StopRpcServer", this::stopRpcServer);
+        mControlExecutor.quit();
+        // The stops cancel the tasks on the task threads, which are only quit after them so
+        // that what the stops post there still runs
+        mDownloadExecutor.execute("StopDownload", () -> {
+            stopDownloadFile();
+            mDownloadTaskExecutor.quit();
+        });
+        mDownloadExecutor.quit();
+        mConnScanExecutor.execute("StopConnectivityScan", () -> {
+            stopConnectivityScan();
+            mConnScanTaskExecutor.quit();
+        });
+        mConnScanExecutor.quit();
+        mGScanExecutor.execute("StopGScan", () -> {
+            stopGScan();
+            mGScanTaskExecutor.quit();
+        });
+        mGScanExecutor.quit();
+        mIperfExecutor.execute("StopIperfClient", this::stopIperfClient);
+        mIperfExecutor.quit();
+        final TetheredTrafficClient trafficClient = mTetheredTrafficClient.peek();
+        if (trafficClient != null) {
+            mTetheredTrafficExecutor.execute("StopTetheredTraffic", trafficClient::stop);
+        }
+        mTetheredTrafficExecutor.quit();
+        mTetheringExecutor.quit();
+        mBleScanReceiver.release();
+        mGattPMCReceiver.release();
+        mA2dpReceiver.release();
+        stopForeground(true);
+    }
+
+    public CommandRegistry getCommandRegistry() {
+        return mCommandRegistry;
+    }
+
+    public WakeLockManager getWakeLockManager() {
+        return mWakeLockManager;
+    }
+
+    /**
+     * Set the listener receiving the status of the workloads, the last status is replayed to
+     * it right away.
+     *
+     * @param listener - listener, null to remove it
+     */
+    public void setStatusListener(StatusListener listener) {
+        mStatusListener = listener;
+        if (listener != null) {
+            listener.onStatus(mLastStatus, mRunning);
+        }
+    }
+
+    /**
+     * Report progress of the running workload. May be called from any thread.
+     *
+     * @param status - status text
+     */
+    public void updateProgressStatus(String status) {
+        mLastStatus = status;
+        mScenarioCoordinator.onWorkloadStatus(status);
+        StatusListener listener = mStatusListener;
+        if (listener != null) listener.onStatus(status, mRunning);
+    }
+
+    /**
+     * Report that a workload started or stopped. May be called from any thread.
+     *
+     * @param status - status text
+     * @param running - true if a workload is now running
+     */
+    void renderStatus(String status, boolean running) {
+        mRunning = running;
+        updateProgressStatus(status);
+        NotificationManager nm =
+                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        nm.notify(NOTIFICATION_ID, buildNotification(status));
+    }
+
+    public String getServerIP() {
+        return mServerIP;
+    }
+
+    public String getServerPort() {
+        return mServerPort;
+    }
+
+    public int getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    public String getIperfBandwidth() {
+        return mIperfBandwidth;
+    }
+
+    public String getIperfLogFile() {
+        return mIperfLogFile;
+    }
+
+    private Notification buildNotification(String status) {
+        Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager nm =
+                    (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            nm.createNotificationChannel(new NotificationChannel(NOTIFICATION_CHANNEL,
+                    NOTIFICATION_CHANNEL, NotificationManager.IMPORTANCE_LOW));
+            builder = new Notification.Builder(this, NOTIFICATION_CHANNEL);
+        } else {
+            builder = new Notification.Builder(this);
+        }
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, PMCMainActivity.class), 0);
+        return builder.setContentTitle(TAG)
+                .setContentText(status)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .build();
+    }
+
+    /**
+     * Start again the workloads that were running when the process died.
+     */
+    private void resumeWorkloads() {
+        for (Map.Entry<String, WorkloadStateStore.Entry> entry
+                : mStateStore.load().entrySet()) {
+            final String workload = entry.getKey();
+            final WorkloadStateStore.Entry state = entry.getValue();
+            Log.i(TAG, "Resuming " + workload + " with " + state.mCommand + " " + state.mParams
+                    + ", started at " + state.mStartedAt + " ms");
+            mCommandRegistry.dispatchAsync(state.mCommand, state.mParams, (result, error) -> {
+                if (error != null) {
+                    Log.e(TAG, "Resuming " + workload + " failed: " + error);
+                    mStateStore.saveStopped(workload);
+                }
+            });
+        }
+    }
+
+    /**
+     * Wrap the handler of a command starting a long-running workload, so the workload is saved
+     * for resumption once it started.
+     */
+    private CommandHandler resumable(final String workload, final CommandHandler handler) {
+        return args -> {
+            String result = handler.handle(args);
+            mStateStore.saveStarted(workload, args.getCommand(), args.getSuppliedParams());
+            return result;
+        };
+    }
+
+    /**
+     * Wrap the handler of a command stopping a long-running workload, so the workload is not
+     * resumed anymore.
+     */
+    private CommandHandler stopping(final String workload, final CommandHandler handler) {
+        return args -> {
+            mStateStore.saveStopped(workload);
+            return handler.handle(args);
+        };
+    }
+
+    private void loadSettings() {
+        mServerIP = mSettings.getString(PMCMainActivity.SETTING_SERVER_IP_KEY, mServerIP);
+        mServerPort = mSettings.getString(PMCMainActivity.SETTING_SERVER_PORT_KEY, mServerPort);
+        setIntervalFromUser(mSettings.getString(PMCMainActivity.SETTING_INTERVAL_KEY, ""));
+        mIperfBandwidth = mSettings.getString(PMCMainActivity.SETTING_IPERF_BANDWIDTH_KEY,
+                mIperfBandwidth);
+        mIperfLogFile = mSettings.getString(PMCMainActivity.SETTING_IPERF_LOGFILE_KEY,
+                mIperfLogFile);
+        mGScanChannels = mSettings.getString(GScanConfig.CHANNELS_KEY, mGScanChannels);
+        mGScanPeriodMs = mSettings.getString(GScanConfig.PERIOD_KEY, mGScanPeriodMs);
+        mGScanMaxScansToCache = mSettings.getString(GScanConfig.MAX_SCANS_TO_CACHE_KEY,
+                mGScanMaxScansToCache);
+        mGScanReportEvents = mSettings.getString(GScanConfig.REPORT_EVENTS_KEY,
+                mGScanReportEvents);
+    }
+
+    private void saveSettings() {
+        mSettings.edit()
+                .putString(PMCMainActivity.SETTING_SERVER_IP_KEY, mServerIP)
+                .putString(PMCMainActivity.SETTING_SERVER_PORT_KEY, mServerPort)
+                .putString(PMCMainActivity.SETTING_INTERVAL_KEY,
+                        String.valueOf(mIntervalMillis / 1000))
+                .putString(PMCMainActivity.SETTING_IPERF_BANDWIDTH_KEY, mIperfBandwidth)
+                .putString(PMCMainActivity.SETTING_IPERF_LOGFILE_KEY, mIperfLogFile)
+                .putString(GScanConfig.CHANNELS_KEY, mGScanChannels)
+                .putString(GScanConfig.PERIOD_KEY, mGScanPeriodMs)
+                .putString(GScanConfig.MAX_SCANS_TO_CACHE_KEY, mGScanMaxScansToCache)
+                .putString(GScanConfig.REPORT_EVENTS_KEY, mGScanReportEvents)
+                .apply();
+    }
+
+    private String startDownloadFile(String filename, CommandArgs args)
+            throws CommandException {
+        OverlapPolicy overlap = overlapPolicy(WORKLOAD_DOWNLOAD, args, mDownloadExecutor);
+        // Stop any ongoing download sessions before starting a new instance.
+        stopDownloadFile();
+        Log.d(TAG, "serverIP ::" + mServerIP + " Port ::" + mServerPort
+                + ". Interval: " + mIntervalMillis);
+        if (mServerIP.length() == 0 || mServerPort.length() == 0) {
+            throw new CommandException("Provide server IP and Port information in Setting");
+        }
+        mDR = new WifiDownloadReceiver(this,
+                "http://" + mServerIP + ":" + mServerPort + "/" + filename,
+                new PeriodicScheduler(WORKLOAD_DOWNLOAD, mAlarmManager, mPIDownload,
+                        mIntervalMillis, args.getFlag(EXACT_ALARM_PARAM)),
+                overlap, mDownloadTaskExecutor);
+        registerReceiver(mDR, new IntentFilter(sDownloadAction), null,
+                mDownloadExecutor.getHandler());
+        Log.d(TAG, "Setting download data alarm. Interval: " + mIntervalMillis);
+        mDR.scheduleDownload();
+        renderStatus("Started downloadng " + filename, true);
+        return null;
+    }
+
+    private void stopDownloadFile() {
+        if (mDR != null) {
+            unregisterReceiver(mDR);
+            mDR.cancelDownload();
+            mDR = null;
+            renderStatus("Stopped download", false);
+        }
+    }
+
+    private void startConnectivityScan(CommandArgs args) throws CommandException {
+        OverlapPolicy overlap = overlapPolicy(WORKLOAD_CONN_SCAN, args, mConnScanExecutor);
+        // Stop any ongoing scans before starting a new instance.
+        stopConnectivityScan();
+        createConnScanReceiver(args.getFlag(EXACT_ALARM_PARAM), overlap, "all channels",
+                args.getInt(DIFF_RSSI_PARAM));
+        Log.d(TAG, "Setting connectivity scan alarm. Interval: " + mIntervalMillis);
+        mConnSR.scheduleConnScan();
+        renderStatus("Started connectivity scan", true);
+    }
+
+    /**
+     * Scan back to back, as fast as the framework allows, backing off while it throttles.
+     *
+     * @param args - arguments of the command
+     */
+    private void startConnectivityScanStress(CommandArgs args) throws CommandException {
+        long initialBackoffMs = args.getLong(INITIAL_BACKOFF_PARAM);
+        long maxBackoffMs = args.getLong(MAX_BACKOFF_PARAM);
+        if (initialBackoffMs <= 0 || maxBackoffMs <= 0) {
+            throw new CommandException("Backoff must be positive");
+        }
+        stopConnectivityScan();
+        createConnScanReceiver(false, new OverlapPolicy(WORKLOAD_CONN_SCAN,
+                OverlapPolicy.Mode.SKIP, mConnScanExecutor.getHandler()),
+                "all channels back to back", args.getInt(DIFF_RSSI_PARAM));
+        mConnSR.startStress(initialBackoffMs, maxBackoffMs);
+        renderStatus("Started back to back connectivity scans", true);
+    }
+
+    private void createConnScanReceiver(boolean exactAlarm, OverlapPolicy overlap,
+            String config, int rssiThreshold) {
+        mConnSR = new WifiConnScanReceiver(this, new PeriodicScheduler(WORKLOAD_CONN_SCAN,
+                mAlarmManager, mPIConnScan, mIntervalMillis, exactAlarm),
+                overlap, mConnScanTaskExecutor, mScanLatency.getEntry(WORKLOAD_CONN_SCAN, config),
+                rssiThreshold);
+        registerReceiver(mConnSR, new IntentFilter(sConnScanAction), null,
+                mConnScanExecutor.getHandler());
+    }
+
+    private String stopConnectivityScan() {
+        if (mConnSR != null) {
+            unregisterReceiver(mConnSR);
+            mConnSR.cancelConnScan();
+            mConnSR.getDiffEngine().flush();
+            String summary = "Stopped connectivity scan after " + mConnSR.getScanSummary()
+                    + "\n" + mConnSR.getResultStore().export(PMCStatusLogger.LOG_DIR);
+            String stress = mConnSR.getStressSummary();
+            if (stress != null) summary += "\n" + stress;
+            mConnSR = null;
+            renderStatus(summary, false);
+            return summary;
+        }
+        return null;
+    }
+
+    private GScanConfig gScanConfig() throws CommandException {
+        return GScanConfig.parse(mGScanChannels, mGScanPeriodMs, mGScanMaxScansToCache,
+                mGScanReportEvents);
+    }
+
+    /**
+     * Start a GScan on every alarm, reported after each scan unless configured otherwise.
+     *
+     * @param band - band to scan, WIFI_BAND_UNSPECIFIED for the configured channels, or the
+     *        social channels if none are configured
+     * @param args - arguments of the command
+     */
+    private void startGscan(int band, CommandArgs args) throws CommandException {
+        OverlapPolicy overlap = overlapPolicy(WORKLOAD_GSCAN, args, mGScanExecutor);
+        GScanConfig config = gScanConfig();
+        // Stop any ongoing scans before starting a new instance.
+        stopGScan();
+        int[] channels = config.getChannels() != null ? config.getChannels()
+                : SOCIAL_CHANNELS;
+        ScanSettings scanSettings = config.buildSettings(band, channels, mIntervalMillis,
+                WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN);
+        String message = "Started Gscan for " + GScanConfig.describe(scanSettings);
+        mGScanR = new WifiGScanReceiver(this, scanSettings, new PeriodicScheduler(
+                WORKLOAD_GSCAN, mAlarmManager, mPIGScan, mIntervalMillis,
+                args.getFlag(EXACT_ALARM_PARAM)), overlap, mGScanTaskExecutor,
+                mScanLatency.getEntry(WORKLOAD_GSCAN, ScanLatencyStats.describe(scanSettings)),
+                args.getInt(DIFF_RSSI_PARAM));
+        registerReceiver(mGScanR, new IntentFilter(sGScanAction), null,
+                mGScanExecutor.getHandler());
+        Log.d(TAG, "Setting Gscan alarm. Interval: " + mIntervalMillis);
+        mGScanR.scheduleGscan();
+        renderStatus(message, true);
+    }
+
+    /**
+     * Start one background scan left running until StopGScan, PMC only wakes up when the
+     * firmware delivers a batch. Scans the configured channels, or both bands if none.
+     *
+     * @param args - arguments of the command
+     */
+    private void startGscanBatched(CommandArgs args) throws CommandException {
+        GScanConfig config = gScanConfig();
+        stopGScan();
+        int band = config.getChannels() != null ? WifiScanner.WIFI_BAND_UNSPECIFIED
+                : WifiScanner.WIFI_BAND_BOTH;
+        ScanSettings scanSettings = config.buildSettings(band, config.getChannels(),
+                mIntervalMillis, WifiScanner.REPORT_EVENT_AFTER_BUFFER_FULL);
+        mGScanBatch = new GScanBatchSession(this, WORKLOAD_GSCAN,
+                (WifiScanner) getSystemService(Context.WIFI_SCANNING_SERVICE), scanSettings,
+                args.getInt(DIFF_RSSI_PARAM));
+        mGScanBatch.start();
+        renderStatus("Started batched Gscan for " + GScanConfig.describe(scanSettings), true);
+    }
+
+    private String stopGScan() {
+        if (mGScanBatch != null) {
+            String summary = "Stopped batched Gscan: " + mGScanBatch.stop();
+            mGScanBatch = null;
+            renderStatus(summary, false);
+            return summary;
+        }
+        if (mGScanR != null) {
+            unregisterReceiver(mGScanR);
+            mGScanR.cancelGScan();
+            mGScanR.getDiffEngine().flush();
+            String summary = "Stopped Gscan after " + mGScanR.getScanSummary()
+                    + "\n" + mGScanR.getResultStore().export(PMCStatusLogger.LOG_DIR)
+                    + "\n" + mGScanR.getFullResults().flush();
+            mGScanR = null;
+            renderStatus(summary, false);
+            return summary;
+        }
+        return null;
+    }
+
+    private void startIperfClient() {
+        // Stop any ongoing iperf sessions before starting a new instance.
+        stopIperfClient();
+        mIperfClient =
+                new IperfClient(this, mServerIP, mServerPort, mIperfBandwidth, mIperfLogFile);
+        mIperfClient.startClient();
+        renderStatus("Started iperf client", true);
+    }
+
+    private void stopIperfClient() {
+        if (mIperfClient != null) {
+            mIperfClient.stopClient();
+            mIperfClient = null;
+            renderStatus("Stopped iperf client", false);
+        }
+    }
+
+    private String startRpcServer(int port) throws CommandException {
+        // Restart the server in case the port changed
+        stopRpcServer();
+        mRpcServer = new JsonRpcServer(port, JsonRpcServer.registryDispatcher(mCommandRegistry));
+        try {
+            mRpcServer.start();
+        } catch (IOException e) {
+            mRpcServer = null;
+            throw new CommandException("Can't start JSON-RPC server on port " + port + ": " + e);
+        }
+        return "JSON-RPC server listening on port " + mRpcServer.getPort();
+    }
+
+    private void stopRpcServer() {
+        if (mRpcServer != null) {
+            mRpcServer.stop();
+            mRpcServer = null;
+        }
+    }
+
+    private void turnScreenOn(Context context) {
+        if (mWakeLock == null) {
+            PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            mWakeLock = pm.newWakeLock(
+                    PowerManager.SCREEN_DIM_WAKE_LOCK | PowerManager.ACQUIRE_CAUSES_WAKEUP, TAG);
+        }
+        if (mWakeLock != null && !mWakeLock.isHeld()) {
+            Log.i(TAG, "Turning screen on");
+            mWakeLock.acquire();
+        }
+    }
+
+    private void turnScreenOff() {
+        if (mWakeLock != null && mWakeLock.isHeld()) {
+            Log.i(TAG, "Turning screen off");
+            mWakeLock.release();
+        }
+    }
+
+    private void setIntervalFromUser(String newValueInSeconds) {
+        if (newValueInSeconds.length() != 0 && Integer.parseInt(newValueInSeconds) > 0) {
+            mIntervalMillis = Integer.parseInt(newValueInSeconds) * 1000;
+        }
+    }
+
+    /**
+     * Returns the parameters shared by the commands starting a periodic Wi-Fi workload.
+     */
+    private static ParamSpec[] periodicParams() {
+        return new ParamSpec[] {
+                ParamSpec.flag(EXACT_ALARM_PARAM),
+                ParamSpec.optionalString(OVERLAP_PARAM, OverlapPolicy.Mode.SKIP.name())};
+    }
+
+    /**
+     * Returns the parameters of the commands starting a periodic Wi-Fi scan.
+     */
+    private static ParamSpec[] scanParams() {
+        return new ParamSpec[] {
+                ParamSpec.flag(EXACT_ALARM_PARAM),
+                ParamSpec.optionalString(OVERLAP_PARAM, OverlapPolicy.Mode.SKIP.name()),
+                ParamSpec.optionalInt(DIFF_RSSI_PARAM, ScanDiffEngine.DEFAULT_RSSI_THRESHOLD_DB)};
+    }
+
+    private static OverlapPolicy overlapPolicy(String workload, CommandArgs args,
+            WorkloadExecutor executor) throws CommandException {
+        return new OverlapPolicy(workload, OverlapPolicy.parseMode(args.getString(OVERLAP_PARAM)),
+                executor.getHandler());
+    }
+
+    /**
+     * Register all the commands PMC service handles with the command registry.
+     */
+    private void registerCommands() {
+        CommandRegistry r = mCommandRegistry;
+        r.register("StartConnectivityScan", mConnScanExecutor,
+                resumable(WORKLOAD_CONN_SCAN, args -> {
+                    startConnectivityScan(args);
+                    return null;
+                }), scanParams());
+        r.register("StartConnectivityScanStress", mConnScanExecutor,
+                resumable(WORKLOAD_CONN_SCAN, args -> {
+                    startConnectivityScanStress(args);
+                    return null;
+                }), ParamSpec.optionalLong(INITIAL_BACKOFF_PARAM, 1000),
+                ParamSpec.optionalLong(MAX_BACKOFF_PARAM, 60 * 1000),
+                ParamSpec.optionalInt(DIFF_RSSI_PARAM, ScanDiffEngine.DEFAULT_RSSI_THRESHOLD_DB));
+        r.register("GetConnectivityScanStress", mConnScanExecutor, args -> mConnSR == null
+                || mConnSR.getStressSummary() == null
+                ? "No back to back connectivity scan running" : mConnSR.getStressSummary());
+        r.register("StopConnectivityScan", mConnScanExecutor,
+                stopping(WORKLOAD_CONN_SCAN, args -> stopConnectivityScan()));
+        r.register("Download1KB", mDownloadExecutor, resumable(WORKLOAD_DOWNLOAD,
+                args -> startDownloadFile("1kb.txt", args)), periodicParams());
+        r.register("Download10KB", mDownloadExecutor, resumable(WORKLOAD_DOWNLOAD,
+                args -> startDownloadFile("10kb.txt", args)), periodicParams());
+        r.register("Download100KB", mDownloadExecutor, resumable(WORKLOAD_DOWNLOAD,
+                args -> startDownloadFile("100kb.txt", args)), periodicParams());
+        r.register("Download1MB", mDownloadExecutor, resumable(WORKLOAD_DOWNLOAD,
+                args -> startDownloadFile("1mb.txt", args)), periodicParams());
+        r.register("StopDownload", mDownloadExecutor, stopping(WORKLOAD_DOWNLOAD, args -> {
+            stopDownloadFile();
+            return null;
+        }));
+        r.register("StartGScanChannel", mGScanExecutor, resumable(WORKLOAD_GSCAN, args -> {
+            startGscan(WifiScanner.WIFI_BAND_UNSPECIFIED, args);
+            return null;
+        }), scanParams());
+        r.register("StartGScanBand", mGScanExecutor, resumable(WORKLOAD_GSCAN, args -> {
+            startGscan(WifiScanner.WIFI_BAND_BOTH, args);
+            return null;
+        }), scanParams());
+        r.register("StartGScanBatched", mGScanExecutor, resumable(WORKLOAD_GSCAN, args -> {
+            startGscanBatched(args);
+            return null;
+        }), ParamSpec.optionalInt(DIFF_RSSI_PARAM, ScanDiffEngine.DEFAULT_RSSI_THRESHOLD_DB));
+        // Only filled when GScanReportEvents includes FULL_SCAN_RESULT, see SETPARAMS
+        r.register("GetGScanFullResults", mGScanExecutor, args -> mGScanR == null
+                ? "No Gscan running" : mGScanR.getFullResults().getSummary());
+        r.register("GetGScanBatchStatus", mGScanExecutor, args -> mGScanBatch == null
+                ? "No batched Gscan running" : mGScanBatch.getStatus());
+        r.register("StopGScan", mGScanExecutor, stopping(WORKLOAD_GSCAN, args -> stopGScan()));
+        r.register("GetDownloadSchedule", mDownloadExecutor,
+                args -> mDR == null ? "No download running" : mDR.getScheduler().getStatus());
+        r.register("GetConnectivityScanSchedule", mConnScanExecutor, args -> mConnSR == null
+                ? "No connectivity scan running" : mConnSR.getScheduler().getStatus());
+        r.register("GetGScanSchedule", mGScanExecutor,
+                args -> mGScanR == null ? "No Gscan running" : mGScanR.getScheduler().getStatus());
+        r.register("GetDownloadOverlap", mDownloadExecutor, args -> mDR == null
+                ? "No download running" : mDR.getOverlapPolicy().getStatus());
+        r.register("GetConnectivityScanOverlap", mConnScanExecutor, args -> mConnSR == null
+                ? "No connectivity scan running" : mConnSR.getOverlapPolicy().getStatus());
+        r.register("GetGScanOverlap", mGScanExecutor, args -> mGScanR == null
+                ? "No Gscan running" : mGScanR.getOverlapPolicy().getStatus());
+        r.register("GetConnectivityScanDiff", mConnScanExecutor, args -> mConnSR == null
+                ? "No connectivity scan running" : mConnSR.getDiffEngine().getStatus());
+        r.register("GetGScanDiff", mGScanExecutor, args -> mGScanR == null
+                ? "No Gscan running" : mGScanR.getDiffEngine().getStatus());
+        r.register("GetScanLatency", args -> mScanLatency.getSummary());
+        r.register("ResetScanLatency", args -> {
+            mScanLatency.reset();
+            return null;
+        });
+        r.register("GetDownloadRate", mDownloadExecutor, args -> {
+            if (mDR == null) {
+                return "No download running";
+            }
+            return "Data Rate: " + Integer.toString(mDR.getDownloadRate()) + " bytes/sec";
+        });
+        r.register("StartIperfClient", mIperfExecutor, resumable(WORKLOAD_IPERF, args -> {
+            startIperfClient();
+            return null;
+        }));
+        r.register("StopIperfClient", mIperfExecutor, stopping(WORKLOAD_IPERF, args -> {
+            stopIperfClient();
+            return null;
+        }));
+        r.register("StartUSBTethering", mTetheringExecutor, resumable(WORKLOAD_TETHERING,
+                args -> mUsbTethering.get().start(args.getInt("TimeoutMs"))),
+                ParamSpec.optionalInt("TimeoutMs", UsbTethering.DEFAULT_TIMEOUT_MS).min(1));
+        r.register("StopUSBTethering", mTetheringExecutor,
+                stopping(WORKLOAD_TETHERING, args -> mUsbTethering.get().stop()));
+        r.register("GetUSBTetheringStatus", mTetheringExecutor,
+                args -> mUsbTethering.get().getStatus());
+        r.register("StartTetheredTraffic", mTetheredTrafficExecutor,
+                resumable(WORKLOAD_TETHERED_TRAFFIC, args -> {
+                    String iface = mUsbTethering.get().findTetheredInterface();
+                    if (iface == null) {
+                        throw new CommandException("USB tethering is not up");
+                    }
+                    return mTetheredTrafficClient.get().start(iface, args.getString("TargetIP"),
+                            args.getInt("TargetPort"), args.getInt("RateKbps"),
+                            args.getInt("PacketSize"), args.getLong("DurationMs"));
+                }), ParamSpec.requiredString("TargetIP"),
+                ParamSpec.optionalInt("TargetPort", 5001).range(1, 65535),
+                ParamSpec.optionalInt("RateKbps", 1000).min(1),
+                ParamSpec.optionalInt("PacketSize", 1400).range(1, 65507),
+                ParamSpec.optionalLong("DurationMs", 0).min(0));
+        r.register("StopTetheredTraffic", mTetheredTrafficExecutor,
+                stopping(WORKLOAD_TETHERED_TRAFFIC, args -> mTetheredTrafficClient.get().stop()));
+        r.register("GetTetheredTrafficStatus", mTetheredTrafficExecutor,
+                args -> mTetheredTrafficClient.get().getStatus());
+        r.register("TurnScreenOn", mControlExecutor, args -> {
+            turnScreenOn(this);
+            return null;
+        });
+        r.register("TurnScreenOff", mControlExecutor, args -> {
+            turnScreenOff();
+            return null;
+        });
+        r.register("StartRpcServer", mControlExecutor, args -> startRpcServer(args.getInt("Port")),
+                ParamSpec.optionalInt("Port", JsonRpcServer.DEFAULT_PORT).range(0, 65535));
+        r.register("StopRpcServer", mControlExecutor, args -> {
+            stopRpcServer();
+            return null;
+        });
+        r.register("GetCommandLatency", args -> WorkloadExecutor.getAllStatsSummary());
+        r.register("GetStartupTimes", args -> mWorkloads.getStartupSummary());
+        r.register("GetWakeLockReport", args -> mWakeLockManager.getReport());
+        r.register("ResetWakeLockReport", args -> {
+            mWakeLockManager.reset();
+            return null;
+        });
+        r.register(AlarmLatencyTracker.QUERY_COMMAND, args -> AlarmLatencyTracker.getSummary());
+        r.register(AlarmLatencyTracker.RESET_COMMAND, args -> {
+            AlarmLatencyTracker.reset();
+            return null;
+        });
+        r.register("GetWorkloadState", args -> mStateStore.getSummary());
+        r.register("StopPMCService", mControlExecutor, args -> {
+            // Stopping on purpose, nothing must be resumed
+            for (String workload : mStateStore.load().keySet()) {
+                mStateStore.saveStopped(workload);
+            }
+            stopSelf();
+            return "PMC service stopping";
+        });
+        r.register(SETPARAMS_COMMAND, mControlExecutor, args -> {
+            // Interval was parsed and range checked by the registry, and setGScanConfig assigns
+            // nothing unless all the GScan settings parse, so invalid settings leave all of
+            // them unchanged
+            setGScanConfig(args);
+            if (args.isSupplied(PMCMainActivity.SETTING_INTERVAL_KEY)) {
+                mIntervalMillis = args.getInt(PMCMainActivity.SETTING_INTERVAL_KEY) * 1000;
+            }
+            if (args.isSupplied(PMCMainActivity.SETTING_SERVER_IP_KEY)) {
+                mServerIP = args.getString(PMCMainActivity.SETTING_SERVER_IP_KEY);
+            }
+            if (args.isSupplied(PMCMainActivity.SETTING_SERVER_PORT_KEY)) {
+                mServerPort = args.getString(PMCMainActivity.SETTING_SERVER_PORT_KEY);
+            }
+            if (args.isSupplied(PMCMainActivity.SETTING_IPERF_BANDWIDTH_KEY)) {
+                mIperfBandwidth = args.getString(PMCMainActivity.SETTING_IPERF_BANDWIDTH_KEY);
+            }
+            if (args.isSupplied(PMCMainActivity.SETTING_IPERF_LOGFILE_KEY)) {
+                mIperfLogFile = args.getString(PMCMainActivity.SETTING_IPERF_LOGFILE_KEY);
+            }
+            // Resumed workloads must run with the same settings
+            saveSettings();
+            return null;
+        }, ParamSpec.optionalInt(PMCMainActivity.SETTING_INTERVAL_KEY, 0)
+                        .range(1, Integer.MAX_VALUE / 1000),
+                ParamSpec.optionalString(PMCMainActivity.SETTING_SERVER_IP_KEY, null),
+                ParamSpec.optionalString(PMCMainActivity.SETTING_SERVER_PORT_KEY, null),
+                ParamSpec.optionalString(PMCMainActivity.SETTING_IPERF_BANDWIDTH_KEY, null),
+                ParamSpec.optionalString(PMCMainActivity.SETTING_IPERF_LOGFILE_KEY, null),
+                ParamSpec.optionalString(GScanConfig.CHANNELS_KEY, null),
+                ParamSpec.optionalString(GScanConfig.PERIOD_KEY, null),
+                ParamSpec.optionalString(GScanConfig.MAX_SCANS_TO_CACHE_KEY, null),
+                ParamSpec.optionalString(GScanConfig.REPORT_EVENTS_KEY, null));
+    }
+
+    /**
+     * Take the GScan settings supplied to SETPARAMS, only if all of them are valid. They apply
+     * to the next GScan started.
+     */
+    private void setGScanConfig(CommandArgs args) throws CommandException {
+        String channels = supplied(args, GScanConfig.CHANNELS_KEY, mGScanChannels);
+        String periodMs = supplied(args, GScanConfig.PERIOD_KEY, mGScanPeriodMs);
+        String maxScansToCache = supplied(args, GScanConfig.MAX_SCANS_TO_CACHE_KEY,
+                mGScanMaxScansToCache);
+        String reportEvents = supplied(args, GScanConfig.REPORT_EVENTS_KEY, mGScanReportEvents);
+        GScanConfig.parse(channels, periodMs, maxScansToCache, reportEvents);
+        mGScanChannels = channels;
+        mGScanPeriodMs = periodMs;
+        mGScanMaxScansToCache = maxScansToCache;
+        mGScanReportEvents = reportEvents;
+    }
+
+    private static String supplied(CommandArgs args, String name, String current) {
+        return args.isSupplied(name) ? args.getString(name) : current;
+    }
+
+    /**
+     * Convert the extras of a command intent into string parameters for the command registry.
+     *
+     * @param extras - extras of the intent, may be null
+     */
+    static Map<String, String> paramsFromExtras(Bundle extras) {
+        Map<String, String> params = new HashMap<String, String>();
+        if (extras != null) {
+            for (String key : extras.keySet()) {
+                Object value = extras.get(key);
+                if (value != null) params.put(key, value.toString());
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Dispatch a command received as a broadcast without blocking the main thread. The
+     * broadcast is kept pending until the workload ran the command, then its result is set
+     * as result data of the broadcast. Commands queue behind each other on their workload and
+     * some block for long (e.g. an A2DP codec change), so the broadcast is answered with
+     * RESULT_ACCEPTED after BROADCAST_RESULT_TIMEOUT_MS rather than risking an ANR. The
+     * outcome of such a command is only logged; the JSON-RPC socket returns it.
+     *
+     * @param receiver - receiver currently handling the broadcast, in onReceive()
+     * @param registry - registry the command is dispatched to
+     * @param command - name of the command
+     * @param extras - extras of the intent, used as parameters of the command
+     */
+    static void dispatchBroadcast(BroadcastReceiver receiver, CommandRegistry registry,
+            final String command, Bundle extras) {
+        final BroadcastReceiver.PendingResult pendingResult = receiver.goAsync();
+        // Finished once, by the command or by the timeout, whichever comes first
+        final AtomicBoolean finished = new AtomicBoolean();
+        final Runnable timeout = () -> {
+            if (!finished.compareAndSet(false, true)) return;
+            Log.i(TAG, command + " still running, broadcast answered " + RESULT_ACCEPTED);
+            pendingResult.setResultData(RESULT_ACCEPTED);
+            pendingResult.finish();
+        };
+        sMainHandler.postDelayed(timeout, BROADCAST_RESULT_TIMEOUT_MS);
+        registry.dispatchAsync(command, paramsFromExtras(extras), (result, error) -> {
+            if (error != null) {
+                Log.e(TAG, command + " failed: " + error);
+            } else if (result != null) {
+                Log.i(TAG, command + " result: " + result);
+            }
+            if (!finished.compareAndSet(false, true)) return;
+            sMainHandler.removeCallbacks(timeout);
+            if (error != null) {
+                pendingResult.setResultData(CommandRegistry.RESULT_ERROR_PREFIX + error);
+            } else if (result != null) {
+                pendingResult.setResultData(result);
+            }
+            pendingResult.finish();
+        });
+    }
+
+    class PMCReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String command;
+            if (intent.getAction().equals(AUTOPOWER_INTENT_STRING)) {
+                Bundle extras = intent.getExtras();
+                if (extras == null || !extras.containsKey(POWER_ACTION_KEY)) {
+                    setResultData(CommandRegistry.RESULT_ERROR_PREFIX + "No "
+                            + POWER_ACTION_KEY + " specified");
+                    return;
+                }
+                command = extras.getString(POWER_ACTION_KEY);
+                Log.d(TAG, "PowerAction = " + command);
+                intent.removeExtra(POWER_ACTION_KEY);
+            } else if (intent.getAction().equals(SETPARAMS_INTENT_STRING)) {
+                command = SETPARAMS_COMMAND;
+            } else {
+                return;
+            }
+            dispatchBroadcast(this, mCommandRegistry, command, intent.getExtras());
+        }
+    }
+}
@@ -37,6 +37,7 @@ public class PMCStatusLogger {
     public static String LOG_DIR = "/mnt/sdcard/Download";
     public static JSONObject mJObject;
     public static JSONArray mJArray;
+    private JSONArray mSegments = new JSONArray();
 
     /**
      * Construtor - check if the file exist. If it is delete and create a new.
@@ -91,6 +92,32 @@ public class PMCStatusLogger {
         }
     }
 
+    /**
+     * Function to add one segment of a duty cycle into the segments JSONArray object
+     *
+     * @param index - index of the segment, from 0
+     * @param mode - mode of the segment, e.g. BLE scan mode
+     * @param startTime - Start time of the segment
+     * @param endTime - End time of the segment
+     * @param cycles - number of cycles the segment ran
+     * @param maxLateMs - latest alarm of the segment after its planned boundary
+     */
+    public void logSegment(int index, int mode, double startTime, double endTime, int cycles,
+            long maxLateMs) {
+        JSONObject obj = new JSONObject();
+        try {
+            obj.put("Segment", index);
+            obj.put("Mode", mode);
+            obj.put("StartTime", startTime);
+            obj.put("EndTime", endTime);
+            obj.put("Cycles", cycles);
+            obj.put("MaxLateMs", maxLateMs);
+            mSegments.put(obj);
+        } catch (JSONException e) {
+            Log.e(TAG, "Exception to put Segment into JSONArray: " + e);
+        }
+    }
+
     /**
      * Function to save Json object into log file
      *
@@ -98,6 +125,7 @@ public class PMCStatusLogger {
     public void flash() {
         try {
             mJObject.put("AlarmTimes", mJArray);
+            if (mSegments.length() > 0) mJObject.put("Segments", mSegments);
 
             FileWriter fos = new FileWriter(mFile);
             BufferedWriter bw = new BufferedWriter(fos);
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Timeline of PMC events so the Python client can line them up with the power trace.
+ *
+ * All times are elapsedRealtime() in milliseconds, relative to the start of the timeline.
+ * An event may carry the time it was intended to happen, so that late delivery can be told
+ * apart from the event itself.
+ *
+ * Events are kept in memory until flush(). A timeline reset for each run keeps all of them,
+ * while one that is never reset, e.g. that of the alarms over a run of several hours, can be
+ * given a capacity: it then keeps its most recent events in a ring and counts the ones it
+ * dropped.
+ */
+public class PMCTimeline {
+    public static final long NO_INTENDED_TIME = -1;
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private final String mName;
+    private final int mMaxEvents;
+    private long mStartTime;
+    private final ArrayList<JSONObject> mEvents = new ArrayList<JSONObject>();
+    // Index of the oldest event once the ring is full
+    private int mOldest;
+    private long mDropped;
+
+    /**
+     * Constructor of a timeline keeping all its events.
+     *
+     * @param name - name of the timeline, also used for its log file
+     */
+    public PMCTimeline(String name) {
+        this(name, UNBOUNDED);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name - name of the timeline, also used for its log file
+     * @param maxEvents - number of most recent events kept, or UNBOUNDED
+     */
+    public PMCTimeline(String name, int maxEvents) {
+        if (maxEvents < 1) throw new IllegalArgumentException("maxEvents " + maxEvents);
+        mName = name;
+        mMaxEvents = maxEvents;
+        reset();
+    }
+
+    /**
+     * Drop all the events and restart the timeline from now.
+     */
+    public synchronized void reset() {
+        mStartTime = SystemClock.elapsedRealtime();
+        mEvents.clear();
+        mOldest = 0;
+        mDropped = 0;
+    }
+
+    /**
+     * Returns elapsedRealtime() of the start of the timeline.
+     */
+    public synchronized long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * Record an event that happened now.
+     *
+     * @param source - workload or phase that generated the event
+     * @param event - what happened
+     * @param detail - free form detail, may be null
+     */
+    public void record(String source, String event, String detail) {
+        record(source, event, NO_INTENDED_TIME, detail);
+    }
+
+    /**
+     * Record an event that happened now but was intended for a given time.
+     *
+     * @param source - workload or phase that generated the event
+     * @param event - what happened
+     * @param intendedTime - elapsedRealtime() the event was meant to happen at, or
+     *        NO_INTENDED_TIME
+     * @param detail - free form detail, may be null
+     */
+    public synchronized void record(String source, String event, long intendedTime,
+            String detail) {
+        long now = SystemClock.elapsedRealtime();
+        JSONObject obj = new JSONObject();
+        try {
+            obj.put("Time", now - mStartTime);
+            if (intendedTime != NO_INTENDED_TIME) {
+                obj.put("Intended", intendedTime - mStartTime);
+                obj.put("Late", now - intendedTime);
+            }
+            obj.put("Source", source);
+            obj.put("Event", event);
+            if (detail != null) obj.put("Detail", detail);
+            if (mEvents.size() < mMaxEvents) {
+                mEvents.add(obj);
+            } else {
+                mEvents.set(mOldest, obj);
+                mOldest = (mOldest + 1) % mMaxEvents;
+                mDropped++;
+            }
+        } catch (JSONException e) {
+            Log.e(PMCMainActivity.TAG, "Exception to put event into timeline: " + e);
+        }
+    }
+
+    /**
+     * Write the timeline as one JSON object into PMC log directory.
+     */
+    public synchronized void flush() {
+        File file = new File(PMCStatusLogger.LOG_DIR + "/" + mName + "_timeline.json");
+        try {
+            JSONObject obj = new JSONObject();
+            obj.put("Name", mName);
+            JSONArray events = new JSONArray();
+            for (int i = 0; i < mEvents.size(); i++) {
+                events.put(mEvents.get((mOldest + i) % mEvents.size()));
+            }
+            obj.put("Events", events);
+            obj.put("Dropped", mDropped);
+            BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+            bw.write(obj.toString());
+            bw.newLine();
+            bw.close();
+        } catch (JSONException e) {
+            Log.e(PMCMainActivity.TAG, "Exception to build timeline JSON: " + e);
+        } catch (IOException e) {
+            Log.e(PMCMainActivity.TAG, "Exception writing timeline to " + file + ": " + e);
+        }
+    }
+}
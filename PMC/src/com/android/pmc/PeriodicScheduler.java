@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Fixed-rate alarm schedule of a periodic workload.
+ *
+ * Tick n is due at epoch + n * period, the epoch being the time start() was called, so a late
+ * alarm delays one tick but never shifts the ticks after it. Ticks that are already overdue
+ * when an alarm is handled are skipped rather than fired back to back, and counted.
+ * For every tick the intended and actual fire times are recorded in the timeline of the
+ * workload, and summarized as lateness (actual - intended) and jitter (deviation of the
+ * interval between two ticks from the period). The lateness also goes to AlarmLatencyTracker.
+ *
+ * Not thread safe, meant to be used from the thread the alarm receiver runs on.
+ */
+public class PeriodicScheduler {
+    private static final String TAG = "PMCSCHEDULE";
+
+    private final String mName;
+    private final AlarmManager mAlarmManager;
+    private final PendingIntent mAlarmIntent;
+    private final long mPeriodMs;
+    private final boolean mExact;
+    private final LatencyHistogram mLateness = new LatencyHistogram();
+    private final LatencyHistogram mJitter = new LatencyHistogram();
+    private final PMCTimeline mTimeline;
+    private long mEpoch = -1;
+    private long mNextTick;
+    private long mLastFireTime = -1;
+    private long mLastLateMs;
+    private long mFiredTicks;
+    private long mSkippedTicks;
+
+    /**
+     * Constructor
+     *
+     * @param name - name of the workload, used for the timeline and logs
+     * @param alarmManager - alarm manager the ticks are armed with
+     * @param alarmIntent - intent broadcast at every tick
+     * @param periodMs - period of the ticks in milliseconds
+     * @param exact - true for exact alarms, false to let the system batch them
+     */
+    public PeriodicScheduler(String name, AlarmManager alarmManager, PendingIntent alarmIntent,
+            long periodMs, boolean exact) {
+        if (periodMs <= 0) {
+            throw new IllegalArgumentException("Period must be positive: " + periodMs);
+        }
+        mName = name;
+        mAlarmManager = alarmManager;
+        mAlarmIntent = alarmIntent;
+        mPeriodMs = periodMs;
+        mExact = exact;
+        mTimeline = new PMCTimeline(name + "_schedule");
+    }
+
+    /**
+     * Start the schedule from now, the first tick is due one period later.
+     */
+    public void start() {
+        mEpoch = SystemClock.elapsedRealtime();
+        mNextTick = 1;
+        mTimeline.reset();
+        mTimeline.record(mName, "start", (mExact ? "exact" : "inexact") + " period "
+                + mPeriodMs + " ms");
+        Log.i(TAG, mName + ": scheduling every " + mPeriodMs + " ms, exact " + mExact);
+        arm();
+    }
+
+    /**
+     * Record the tick being handled and arm the next one. Call first thing in the alarm
+     * receiver, so the recorded time is not delayed by the work of the tick.
+     *
+     * @return index of the tick being handled, starting from 1
+     */
+    public long onAlarm() {
+        if (mEpoch < 0) {
+            Log.w(TAG, mName + ": alarm received while not started");
+            return 0;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long tick = mNextTick;
+        long intended = getTickTime(tick);
+        mLastLateMs = now - intended;
+        mLateness.record(mLastLateMs);
+        AlarmLatencyTracker.onDelivered(mName, intended);
+        if (mLastFireTime >= 0) {
+            mJitter.record(Math.abs(now - mLastFireTime - mPeriodMs));
+        }
+        mLastFireTime = now;
+        mFiredTicks++;
+        mTimeline.record(mName, "tick " + tick, intended, null);
+        long next = tick + 1;
+        if (getTickTime(next) <= now) {
+            // Fire once for all the ticks that are overdue, at the next one still in the future
+            long skip = (now - mEpoch) / mPeriodMs + 1 - next;
+            mSkippedTicks += skip;
+            mTimeline.record(mName, "skipped", skip + " ticks");
+            next += skip;
+        }
+        mNextTick = next;
+        arm();
+        return tick;
+    }
+
+    /**
+     * Cancel the pending tick and write the timeline.
+     */
+    public void stop() {
+        mAlarmManager.cancel(mAlarmIntent);
+        if (mEpoch < 0) return;
+        mTimeline.record(mName, "stop", getStatus());
+        mTimeline.flush();
+        mEpoch = -1;
+    }
+
+    /**
+     * Returns elapsedRealtime() the given tick is due at.
+     *
+     * @param tick - index of the tick
+     */
+    public long getTickTime(long tick) {
+        return mEpoch + tick * mPeriodMs;
+    }
+
+    /**
+     * Returns a one line summary of the ticks fired, skipped, their lateness and jitter.
+     */
+    public String getStatus() {
+        return mName + (mExact ? " exact" : " inexact") + " period " + mPeriodMs + " ms"
+                + " fired " + mFiredTicks + " skipped " + mSkippedTicks
+                + " last late " + mLastLateMs + " ms"
+                + " late[" + mLateness.toSummary("ms") + "]"
+                + " jitter[" + mJitter.toSummary("ms") + "]";
+    }
+
+    private void arm() {
+        long time = getTickTime(mNextTick);
+        if (mExact) {
+            mAlarmManager.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, time,
+                    mAlarmIntent);
+        } else {
+            mAlarmManager.setAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, time,
+                    mAlarmIntent);
+        }
+    }
+}
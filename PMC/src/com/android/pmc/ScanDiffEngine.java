@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.net.wifi.ScanResult;
+
+import java.util.List;
+
+/**
+ * Changes between consecutive Wi-Fi scans of a workload, recorded into its timeline.
+ *
+ * The BSSIDs of the previous and of the current scan are kept in two LongIntMaps from packed
+ * BSSID to RSSI, swapped after every scan. A scan costs one lookup per result plus one per
+ * BSSID of the previous scan, and allocates nothing but the events it records: a new BSSID, a
+ * lost BSSID, or an RSSI that moved by at least the threshold since the previous scan. The
+ * first scan only records how many BSSIDs it saw.
+ */
+public class ScanDiffEngine {
+    public static final int DEFAULT_RSSI_THRESHOLD_DB = 5;
+    private static final int EXPECTED_BSSIDS = 64;
+
+    private final String mName;
+    private final int mRssiThreshold;
+    private final PMCTimeline mTimeline;
+    private LongIntMap mPrevious = new LongIntMap(EXPECTED_BSSIDS);
+    private LongIntMap mCurrent = new LongIntMap(EXPECTED_BSSIDS);
+    private long mScans;
+    private long mNew;
+    private long mLost;
+    private long mRssiChanges;
+
+    /**
+     * Constructor
+     *
+     * @param name - name of the workload, source of the events and name of the timeline
+     * @param rssiThreshold - smallest RSSI change reported, in dB
+     */
+    public ScanDiffEngine(String name, int rssiThreshold) {
+        mName = name;
+        mRssiThreshold = rssiThreshold;
+        mTimeline = new PMCTimeline(name + "_scan_diff");
+    }
+
+    /**
+     * Diff the results of a scan against the previous scan.
+     *
+     * @param results - results of the scan, may be null
+     */
+    public synchronized void onScan(List<ScanResult> results) {
+        if (results != null) {
+            for (int i = 0; i < results.size(); i++) add(results.get(i));
+        }
+        endScan();
+    }
+
+    /**
+     * Diff the results of a scan against the previous scan.
+     *
+     * @param results - results of the scan, may be null
+     */
+    public synchronized void onScan(ScanResult[] results) {
+        if (results != null) {
+            for (ScanResult result : results) add(result);
+        }
+        endScan();
+    }
+
+    /**
+     * Returns a one line summary of the changes seen so far.
+     */
+    public synchronized String getStatus() {
+        return mName + " " + mScans + " scans, " + mNew + " new, " + mLost + " lost, "
+                + mRssiChanges + " RSSI changes of " + mRssiThreshold + " dB or more";
+    }
+
+    /**
+     * Record the summary and write the timeline into PMC log directory.
+     */
+    public synchronized void flush() {
+        mTimeline.record(mName, "stop", getStatus());
+        mTimeline.flush();
+    }
+
+    private void add(ScanResult result) {
+        if (result == null) return;
+        long bssid = ScanResultStore.packBssid(result.BSSID);
+        if (bssid < 0) return;
+        int rssi = result.level;
+        // A BSSID seen on several channels of one scan keeps its first RSSI
+        if (mCurrent.containsKey(bssid)) return;
+        mCurrent.put(bssid, rssi);
+        if (mScans == 0) return;
+        int previous = mPrevious.get(bssid);
+        if (previous == LongIntMap.NO_VALUE) {
+            mNew++;
+            mTimeline.record(mName, "new", ScanResultStore.formatBssid(bssid) + " " + rssi
+                    + " dBm " + result.frequency + " MHz");
+        } else if (Math.abs(rssi - previous) >= mRssiThreshold) {
+            mRssiChanges++;
+            mTimeline.record(mName, "rssi", ScanResultStore.formatBssid(bssid) + " "
+                    + previous + " -> " + rssi + " dBm");
+        }
+    }
+
+    private void endScan() {
+        if (mScans == 0) {
+            mTimeline.record(mName, "baseline", mCurrent.size() + " BSSIDs");
+        } else {
+            for (int i = 0; i < mPrevious.size(); i++) {
+                long bssid = mPrevious.keyAt(i);
+                if (!mCurrent.containsKey(bssid)) {
+                    mLost++;
+                    mTimeline.record(mName, "lost", ScanResultStore.formatBssid(bssid) + " "
+                            + mPrevious.valueAt(i) + " dBm");
+                }
+            }
+        }
+        mScans++;
+        LongIntMap previous = mPrevious;
+        mPrevious = mCurrent;
+        mCurrent = previous;
+        mCurrent.clear();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.net.wifi.WifiScanner;
+import android.net.wifi.WifiScanner.ChannelSpec;
+import android.net.wifi.WifiScanner.ScanSettings;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Request to results latency of the Wi-Fi scans, per workload and scan configuration.
+ *
+ * The entry of a configuration is created when the workload starts, so recording a scan only
+ * touches its histogram and never allocates. Entries outlive the workloads, the latency of all
+ * the runs of a configuration is reported until reset().
+ */
+public class ScanLatencyStats {
+    private static final int[] SOCIAL_CHANNELS = {2412, 2437, 2462};
+
+    private final Map<String, Entry> mEntries = new TreeMap<String, Entry>();
+
+    /**
+     * Latency, timeouts and failures of one scan configuration.
+     */
+    public static class Entry {
+        private final LatencyHistogram mLatency = new LatencyHistogram();
+        private volatile long mTimeouts;
+        private volatile long mFailures;
+
+        /**
+         * @param latencyMs - time from the scan request to its results
+         */
+        public void recordScan(long latencyMs) {
+            mLatency.record(latencyMs);
+        }
+
+        /**
+         * Count a scan whose results never came. Called from the scanning thread only.
+         */
+        public void recordTimeout() {
+            mTimeouts++;
+        }
+
+        /**
+         * Count a scan the framework reported as failed. Called from the scanning thread only.
+         */
+        public void recordFailure() {
+            mFailures++;
+        }
+
+        /**
+         * Returns a one line summary of the latency percentiles, the timeouts and failures.
+         */
+        public String getSummary() {
+            return mLatency.toSummary("ms") + " timeouts=" + mTimeouts + " failures="
+                    + mFailures;
+        }
+
+        private void reset() {
+            mLatency.reset();
+            mTimeouts = 0;
+            mFailures = 0;
+        }
+    }
+
+    /**
+     * Returns the entry of a configuration, created on first use.
+     *
+     * @param workload - name of the scanning workload
+     * @param config - description of the scan configuration, see describe()
+     */
+    public synchronized Entry getEntry(String workload, String config) {
+        String key = workload + "/" + config;
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the name of the band or channel set scanned with the given settings.
+     *
+     * @param settings - settings of a GScan
+     */
+    public static String describe(ScanSettings settings) {
+        if (settings.band != WifiScanner.WIFI_BAND_UNSPECIFIED) {
+            return describeBand(settings.band);
+        }
+        ChannelSpec[] channels = settings.channels == null ? new ChannelSpec[0]
+                : settings.channels;
+        boolean social = channels.length == SOCIAL_CHANNELS.length;
+        StringBuilder sb = new StringBuilder("channels");
+        for (int i = 0; i < channels.length; i++) {
+            social &= channels[i].frequency == SOCIAL_CHANNELS[i];
+            sb.append(i == 0 ? " " : ",").append(channels[i].frequency);
+        }
+        return social ? "2.4GHz social channels" : sb.toString();
+    }
+
+    private static String describeBand(int band) {
+        switch (band) {
+            case WifiScanner.WIFI_BAND_24_GHZ:
+                return "WIFI_BAND_24_GHZ";
+            case WifiScanner.WIFI_BAND_5_GHZ:
+                return "WIFI_BAND_5_GHZ";
+            case WifiScanner.WIFI_BAND_BOTH:
+                return "WIFI_BAND_BOTH";
+            case WifiScanner.WIFI_BAND_BOTH_WITH_DFS:
+                return "WIFI_BAND_BOTH_WITH_DFS";
+            default:
+                return "band " + band;
+        }
+    }
+
+    /**
+     * Returns the summary of every configuration scanned since the last reset.
+     */
+    public synchronized String getSummary() {
+        if (mEntries.isEmpty()) return "No scan recorded";
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(entry.getKey()).append(": ").append(entry.getValue().getSummary());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Clear the latency of all configurations, the entries in use keep recording.
+     */
+    public synchronized void reset() {
+        for (Entry entry : mEntries.values()) entry.reset();
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.net.wifi.ScanResult;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar store of the Wi-Fi scan results of one workload run.
+ *
+ * Every result is one row of primitive columns: the BSSID packed into a long, the frequency as
+ * a short, the RSSI as a byte, the time relative to the creation of the store and the index of
+ * the scan. SSIDs are interned in a table and referenced by index. A row takes 23 bytes, so a
+ * scan of 30 BSSIDs every 10 seconds needs about 250 KB per hour. Columns grow by doubling, up
+ * to MAX_ROWS, past which results are counted as dropped.
+ *
+ * Rows may be added from the scanning thread and exported from another, all methods are
+ * synchronized.
+ */
+public class ScanResultStore {
+    private static final String TAG = "PMCSCANSTORE";
+    // "PMCS", start of the binary export
+    private static final int BINARY_MAGIC = 0x504d4353;
+    private static final int BINARY_VERSION = 1;
+    private static final int INITIAL_ROWS = 1024;
+    // About 6 MB of columns
+    static final int MAX_ROWS = 256 * 1024;
+
+    private final String mName;
+    // Time base of the rows, in microseconds of elapsedRealtime() like ScanResult.timestamp
+    private final long mBaseTimeUs;
+    private long[] mBssids = new long[INITIAL_ROWS];
+    private short[] mFrequencies = new short[INITIAL_ROWS];
+    private byte[] mRssis = new byte[INITIAL_ROWS];
+    private int[] mTimeDeltasMs = new int[INITIAL_ROWS];
+    private int[] mScanIndexes = new int[INITIAL_ROWS];
+    private int[] mSsidIndexes = new int[INITIAL_ROWS];
+    private int mRows;
+    private int mScans;
+    private long mDropped;
+    private final Map<String, Integer> mSsidIndex = new HashMap<String, Integer>();
+    private final List<String> mSsids = new ArrayList<String>();
+
+    /**
+     * Constructor
+     *
+     * @param name - name of the workload, used for the names of the exported files
+     */
+    public ScanResultStore(String name) {
+        mName = name;
+        mBaseTimeUs = SystemClock.elapsedRealtime() * 1000L;
+    }
+
+    /**
+     * Add the results of one scan.
+     *
+     * @param results - results of the scan, may be null
+     * @return index of the scan in the store
+     */
+    public synchronized int addScan(ScanResult[] results) {
+        int scan = mScans++;
+        if (results != null) {
+            for (ScanResult result : results) add(scan, result);
+        }
+        return scan;
+    }
+
+    /**
+     * Add the results of one scan.
+     *
+     * @param results - results of the scan, may be null
+     * @return index of the scan in the store
+     */
+    public synchronized int addScan(List<ScanResult> results) {
+        int scan = mScans++;
+        if (results != null) {
+            for (int i = 0; i < results.size(); i++) add(scan, results.get(i));
+        }
+        return scan;
+    }
+
+    public synchronized int getRowCount() {
+        return mRows;
+    }
+
+    public synchronized int getScanCount() {
+        return mScans;
+    }
+
+    /**
+     * Returns a one line summary of the rows, scans, SSIDs and dropped results.
+     */
+    public synchronized String getSummary() {
+        return mName + ": " + mRows + " results of " + mScans + " scans, " + mSsids.size()
+                + " SSIDs, " + mDropped + " dropped, " + getFootprintBytes() / 1024 + " KB";
+    }
+
+    /**
+     * Write the rows as CSV, one line per result.
+     *
+     * @param file - file to write, replaced if it exists
+     */
+    public synchronized void exportCsv(File file) throws IOException {
+        BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+        try {
+            bw.write("scan,time_ms,bssid,frequency,rssi,ssid");
+            bw.newLine();
+            for (int i = 0; i < mRows; i++) {
+                bw.write(mScanIndexes[i] + "," + mTimeDeltasMs[i] + ","
+                        + formatBssid(mBssids[i]) + "," + mFrequencies[i] + "," + mRssis[i]
+                        + "," + csvField(mSsids.get(mSsidIndexes[i])));
+                bw.newLine();
+            }
+        } finally {
+            bw.close();
+        }
+    }
+
+    /**
+     * Write the store in binary, big endian: magic, version, base time in microseconds, the
+     * SSID table as a count and modified UTF-8 strings, the row count, then every column in
+     * turn: BSSIDs, frequencies, RSSIs, time deltas, scan indexes and SSID indexes.
+     *
+     * @param file - file to write, replaced if it exists
+     */
+    public synchronized void exportBinary(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(BINARY_MAGIC);
+            out.writeInt(BINARY_VERSION);
+            out.writeLong(mBaseTimeUs);
+            out.writeInt(mSsids.size());
+            for (String ssid : mSsids) out.writeUTF(ssid);
+            out.writeInt(mRows);
+            for (int i = 0; i < mRows; i++) out.writeLong(mBssids[i]);
+            for (int i = 0; i < mRows; i++) out.writeShort(mFrequencies[i]);
+            for (int i = 0; i < mRows; i++) out.writeByte(mRssis[i]);
+            for (int i = 0; i < mRows; i++) out.writeInt(mTimeDeltasMs[i]);
+            for (int i = 0; i < mRows; i++) out.writeInt(mScanIndexes[i]);
+            for (int i = 0; i < mRows; i++) out.writeInt(mSsidIndexes[i]);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Export the store as <name>_scan_results.csv and .bin into dir.
+     *
+     * @param dir - directory of the files
+     * @return summary of the export, or of the failure
+     */
+    public String export(String dir) {
+        String base = dir + "/" + mName + "_scan_results";
+        try {
+            exportCsv(new File(base + ".csv"));
+            exportBinary(new File(base + ".bin"));
+        } catch (IOException e) {
+            Log.e(TAG, "Exception exporting scan results to " + base + ": " + e);
+            return "Scan results not exported: " + e;
+        }
+        return getSummary() + ", exported to " + base + ".csv/.bin";
+    }
+
+    /**
+     * Pack a BSSID in the aa:bb:cc:dd:ee:ff form into the low 48 bits of a long.
+     *
+     * @param bssid - BSSID, may be null
+     * @return packed BSSID, -1 if it can't be parsed
+     */
+    public static long packBssid(String bssid) {
+        if (bssid == null || bssid.length() != 17) return -1;
+        long packed = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = bssid.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') return -1;
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) return -1;
+            packed = (packed << 4) | digit;
+        }
+        return packed;
+    }
+
+    /**
+     * Returns a packed BSSID in the aa:bb:cc:dd:ee:ff form.
+     *
+     * @param packed - BSSID packed by packBssid()
+     */
+    public static String formatBssid(long packed) {
+        if (packed < 0) return "";
+        StringBuilder sb = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int octet = (int) (packed >>> shift) & 0xff;
+            if (shift != 40) sb.append(':');
+            sb.append(Character.forDigit(octet >> 4, 16))
+                    .append(Character.forDigit(octet & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private void add(int scan, ScanResult result) {
+        if (result == null) return;
+        if (mRows == mBssids.length && !grow()) {
+            mDropped++;
+            return;
+        }
+        long timeUs = result.timestamp > 0 ? result.timestamp
+                : SystemClock.elapsedRealtime() * 1000L;
+        int row = mRows++;
+        mBssids[row] = packBssid(result.BSSID);
+        mFrequencies[row] = (short) result.frequency;
+        mRssis[row] = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, result.level));
+        mTimeDeltasMs[row] = (int) ((timeUs - mBaseTimeUs) / 1000L);
+        mScanIndexes[row] = scan;
+        mSsidIndexes[row] = intern(result.SSID);
+    }
+
+    private boolean grow() {
+        if (mRows >= MAX_ROWS) return false;
+        int capacity = Math.min(mRows * 2, MAX_ROWS);
+        mBssids = Arrays.copyOf(mBssids, capacity);
+        mFrequencies = Arrays.copyOf(mFrequencies, capacity);
+        mRssis = Arrays.copyOf(mRssis, capacity);
+        mTimeDeltasMs = Arrays.copyOf(mTimeDeltasMs, capacity);
+        mScanIndexes = Arrays.copyOf(mScanIndexes, capacity);
+        mSsidIndexes = Arrays.copyOf(mSsidIndexes, capacity);
+        return true;
+    }
+
+    private int intern(String ssid) {
+        if (ssid == null) ssid = "";
+        Integer index = mSsidIndex.get(ssid);
+        if (index == null) {
+            index = mSsids.size();
+            mSsids.add(ssid);
+            mSsidIndex.put(ssid, index);
+        }
+        return index;
+    }
+
+    private long getFootprintBytes() {
+        return mBssids.length * 23L;
+    }
+
+    private static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import java.util.Locale;
+
+/**
+ * Splits a run of back-to-back scans into unthrottled and throttled intervals.
+ *
+ * A scan is throttled when the framework rejects the request, never delivers its results, or
+ * delivers stale ones. The first throttled scan opens a throttled interval, the next scan
+ * delivered fresh closes it. Each throttled scan doubles the backoff before the next request,
+ * from the initial backoff up to the maximum, and a fresh scan resets it. Scans per second and
+ * latency are only accounted for the unthrottled time, so that the power drawn while throttled
+ * can be told apart.
+ *
+ * Times are in milliseconds of any monotonic clock. Not thread safe.
+ */
+public class ScanThrottleTracker {
+    /**
+     * How the throttling of a request showed: rejected by the framework, results never
+     * delivered, or results older than the request.
+     */
+    public enum Reason { REJECTED, TIMEOUT, STALE }
+
+    private final long mInitialBackoffMs;
+    private final long mMaxBackoffMs;
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final LatencyHistogram mThrottledIntervals = new LatencyHistogram();
+    private long mStartTime = -1;
+    private long mEndTime = -1;
+    private long mThrottledSince = -1;
+    private long mThrottledMs;
+    private long mBackoffMs;
+    private long mScans;
+    private long mRejected;
+    private long mTimeouts;
+    private long mStale;
+
+    /**
+     * Constructor
+     *
+     * @param initialBackoffMs - wait after the first throttled scan
+     * @param maxBackoffMs - longest wait between two throttled scans
+     */
+    public ScanThrottleTracker(long initialBackoffMs, long maxBackoffMs) {
+        mInitialBackoffMs = initialBackoffMs;
+        mMaxBackoffMs = Math.max(maxBackoffMs, initialBackoffMs);
+    }
+
+    /**
+     * Start the run.
+     *
+     * @param now - current time
+     */
+    public void start(long now) {
+        mStartTime = now;
+        mEndTime = -1;
+    }
+
+    /**
+     * Account a scan delivered fresh.
+     *
+     * @param now - current time
+     * @param latencyMs - time from the request to the results
+     * @return true if this scan ended a throttled interval
+     */
+    public boolean onScan(long now, long latencyMs) {
+        mScans++;
+        mLatency.record(latencyMs);
+        mBackoffMs = 0;
+        if (mThrottledSince < 0) return false;
+        long throttled = now - mThrottledSince;
+        mThrottledMs += throttled;
+        mThrottledIntervals.record(throttled);
+        mThrottledSince = -1;
+        return true;
+    }
+
+    /**
+     * Account a throttled request.
+     *
+     * @param now - current time
+     * @param reason - how the throttling showed
+     * @return time to wait before the next request
+     */
+    public long onThrottled(long now, Reason reason) {
+        switch (reason) {
+            case REJECTED:
+                mRejected++;
+                break;
+            case TIMEOUT:
+                mTimeouts++;
+                break;
+            default:
+                mStale++;
+                break;
+        }
+        if (mThrottledSince < 0) mThrottledSince = now;
+        mBackoffMs = mBackoffMs == 0 ? mInitialBackoffMs
+                : Math.min(mBackoffMs * 2, mMaxBackoffMs);
+        return mBackoffMs;
+    }
+
+    /**
+     * End the run, closing the throttled interval in progress if any.
+     *
+     * @param now - current time
+     */
+    public void stop(long now) {
+        if (mThrottledSince >= 0) {
+            mThrottledMs += now - mThrottledSince;
+            mThrottledIntervals.record(now - mThrottledSince);
+            mThrottledSince = -1;
+        }
+        mEndTime = now;
+    }
+
+    public boolean isThrottled() {
+        return mThrottledSince >= 0;
+    }
+
+    /**
+     * Returns a summary of the unthrottled scans and of the throttled intervals.
+     *
+     * @param now - current time, used while the run is in progress
+     */
+    public String getSummary(long now) {
+        long end = mEndTime >= 0 ? mEndTime : now;
+        long throttledMs = mThrottledMs + (mThrottledSince >= 0 ? end - mThrottledSince : 0);
+        long unthrottledMs = Math.max(end - mStartTime - throttledMs, 0);
+        double scansPerSec = unthrottledMs == 0 ? 0 : mScans * 1000.0 / unthrottledMs;
+        return "unthrottled " + unthrottledMs + " ms: " + mScans + " scans, "
+                + String.format(Locale.US, "%.2f", scansPerSec) + " scans/s, latency["
+                + mLatency.toSummary("ms") + "]\nthrottled " + throttledMs + " ms: "
+                + mRejected + " rejected, " + mTimeouts + " timeouts, " + mStale
+                + " stale, intervals[" + mThrottledIntervals.toSummary("ms") + "]";
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.pmc.CommandRegistry.CommandArgs;
+import com.android.pmc.CommandRegistry.ParamSpec;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Runs several workloads at the same time, each with its own lifecycle.
+ *
+ * A scenario is given as a JSON document, for example:
+ * <pre>
+ * {
+ *   "Name": "download_while_ble_scan",
+ *   "Workloads": [
+ *     {"Name": "download", "Command": "Download1KB", "StopCommand": "StopDownload"},
+ *     {"Name": "ble", "Command": "StartBleScan", "Params": {"ScanMode": "2",
+ *      "StartTime": "1", "ScanTime": "30"}, "DurationMs": 60000}
+ *   ]
+ * }
+ * </pre>
+ * Every workload is started through the command registry, so it runs on the executor of its
+ * component, and can be stopped alone or added to the running scenario later. A workload with
+ * a DurationMs is stopped by the coordinator once it elapsed, on one exact
+ * ELAPSED_REALTIME_WAKEUP alarm always armed for the earliest pending stop, so the device may
+ * suspend in between.
+ *
+ * The coordinator holds no wakelock of its own, that would keep the CPU awake for the whole
+ * scenario. The wakelock time of the scenario is the sum of the hold times of the workloads'
+ * own wakelocks while it runs, as accounted by the WakeLockManager under the phase of the
+ * scenario. Workload transitions, their results and the status they report all go to one
+ * timeline, written when the scenario ends.
+ */
+public class ScenarioCoordinator extends BroadcastReceiver {
+    public static final String TAG = "SCENARIO";
+    public static final String START_COMMAND = "StartScenario";
+    public static final String STOP_COMMAND = "StopScenario";
+    public static final String START_WORKLOAD_COMMAND = "StartScenarioWorkload";
+    public static final String STOP_WORKLOAD_COMMAND = "StopScenarioWorkload";
+    public static final String STATUS_COMMAND = "GetScenarioStatus";
+    public static final String SCENARIO_ALARM = "com.android.pmc.SCENARIO.ALARM";
+    private static final String ADHOC_SCENARIO = "adhoc";
+    // Stops due within this window are handled together with the alarm that fired
+    private static final long DUE_SLACK_MS = 5;
+
+    private enum State { STARTING, RUNNING, STOPPING, STOPPED, FAILED }
+
+    private final Context mContext;
+    private final AlarmManager mAlarmManager;
+    private final PendingIntent mAlarmIntent;
+    private final CommandRegistry mCommandRegistry;
+    private final WorkloadExecutor mExecutor;
+    private final WakeLockManager mWakeLockManager;
+    // Timed stops of the workloads, only touched on mExecutor
+    private final PriorityQueue<TimedStop> mTimedStops = new PriorityQueue<TimedStop>();
+    private long mStopSequence;
+    // Workloads of the current scenario, in start order, only touched on mExecutor
+    private final Map<String, ScenarioWorkload> mWorkloads =
+            new LinkedHashMap<String, ScenarioWorkload>();
+    private String mScenarioName;
+    // Phase the WakeLockManager accounts the hold time of the workloads under
+    private String mPhase;
+    private long mScenarioStartTime;
+    private int mActiveCount;
+    private int mMaxActiveCount;
+    // Read by the workload threads reporting their status
+    private volatile PMCTimeline mTimeline;
+
+    /**
+     * One workload of the scenario and its accounting.
+     */
+    private static class ScenarioWorkload {
+        final TestPlan.Phase mPhase;
+        State mState = State.STARTING;
+        long mStartTime;
+        long mActiveMs;
+        String mLastResult;
+        // Tells a pending timed stop from the one of an earlier run of the same workload
+        int mGeneration;
+
+        ScenarioWorkload(TestPlan.Phase phase) {
+            mPhase = phase;
+        }
+
+        boolean isActive() {
+            return mState == State.STARTING || mState == State.RUNNING;
+        }
+    }
+
+    /**
+     * Stop of a workload due at a given elapsedRealtime(), ordered by time then by insertion.
+     */
+    private static class TimedStop implements Comparable<TimedStop> {
+        final long mTime;
+        final long mSequence;
+        final ScenarioWorkload mWorkload;
+        final int mGeneration;
+
+        TimedStop(long time, long sequence, ScenarioWorkload workload) {
+            mTime = time;
+            mSequence = sequence;
+            mWorkload = workload;
+            mGeneration = workload.mGeneration;
+        }
+
+        @Override
+        public int compareTo(TimedStop other) {
+            if (mTime != other.mTime) return mTime < other.mTime ? -1 : 1;
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    /**
+     * Constructor to be called by PMC
+     *
+     * @param context - PMC will provide a context
+     * @param alarmManager - PMC will provide alarmManager
+     * @param registry - registry the workloads of the scenarios are dispatched to
+     * @param wakeLocks - manager accounting the hold time of the workloads' wakelocks
+     */
+    public ScenarioCoordinator(Context context, AlarmManager alarmManager,
+            CommandRegistry registry, WakeLockManager wakeLocks) {
+        mContext = context;
+        mAlarmManager = alarmManager;
+        mCommandRegistry = registry;
+        mExecutor = new WorkloadExecutor(TAG);
+        mWakeLockManager = wakeLocks;
+        mAlarmIntent = PendingIntent.getBroadcast(mContext, 0, new Intent(SCENARIO_ALARM),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        mContext.registerReceiver(this, new IntentFilter(SCENARIO_ALARM), null,
+                mExecutor.getHandler());
+    }
+
+    /**
+     * Stop the running scenario, if any, then release the scenario thread and alarm receiver.
+     */
+    public void release() {
+        mExecutor.execute(STOP_COMMAND, this::stop);
+        mExecutor.quit();
+        mContext.unregisterReceiver(this);
+    }
+
+    /**
+     * Register the scenario commands with PMC command registry
+     */
+    public void registerCommands() {
+        mCommandRegistry.register(START_COMMAND, mExecutor, this::startScenario,
+                ParamSpec.optionalString("Scenario", null),
+                ParamSpec.optionalString("ScenarioFile", null));
+        mCommandRegistry.register(STOP_COMMAND, mExecutor, args -> stop());
+        mCommandRegistry.register(START_WORKLOAD_COMMAND, mExecutor, this::startWorkload,
+                ParamSpec.requiredString("Workload"));
+        mCommandRegistry.register(STOP_WORKLOAD_COMMAND, mExecutor,
+                args -> stopWorkload(args.getString("Name")),
+                ParamSpec.requiredString("Name"));
+        mCommandRegistry.register(STATUS_COMMAND, mExecutor, args -> getStatus());
+    }
+
+    /**
+     * Record the status reported by a workload into the scenario timeline. May be called from
+     * any thread, the name of the calling thread tells which workload reported it.
+     *
+     * @param status - status text
+     */
+    public void onWorkloadStatus(String status) {
+        PMCTimeline timeline = mTimeline;
+        if (timeline != null) {
+            timeline.record(Thread.currentThread().getName(), "status", status);
+        }
+    }
+
+    private String startScenario(CommandArgs args) throws CommandException {
+        String json = args.getString("Scenario");
+        String path = args.getString("ScenarioFile");
+        if (json == null && path == null) {
+            throw new CommandException("Either Scenario or ScenarioFile must be specified");
+        }
+        if (json == null) {
+            json = TestPlanExecutor.readFile(path);
+        }
+        String name;
+        List<TestPlan.Phase> phases;
+        try {
+            JSONObject root = new JSONObject(json);
+            name = root.optString("Name", TAG);
+            phases = TestPlan.parsePhases(root.getJSONArray("Workloads"), "workload",
+                    mCommandRegistry);
+        } catch (JSONException e) {
+            throw new CommandException("Malformed scenario: " + e.getMessage());
+        }
+        if (phases.isEmpty()) {
+            throw new CommandException("Scenario " + name + " has no workload");
+        }
+        for (int i = 0; i < phases.size(); i++) {
+            for (int j = 0; j < i; j++) {
+                if (phases.get(i).mName.equals(phases.get(j).mName)) {
+                    throw new CommandException("Duplicate workload in scenario: "
+                            + phases.get(i).mName);
+                }
+            }
+        }
+        if (mScenarioName != null) {
+            Log.w(TAG, "Scenario " + mScenarioName + " still running, stopping it");
+            stop();
+        }
+        begin(name);
+        for (TestPlan.Phase phase : phases) {
+            launch(phase);
+        }
+        return "READY";
+    }
+
+    private String startWorkload(CommandArgs args) throws CommandException {
+        TestPlan.Phase phase;
+        try {
+            JSONArray array = new JSONArray().put(new JSONObject(args.getString("Workload")));
+            phase = TestPlan.parsePhases(array, "workload" + mWorkloads.size(),
+                    mCommandRegistry).get(0);
+        } catch (JSONException e) {
+            throw new CommandException("Malformed workload: " + e.getMessage());
+        }
+        ScenarioWorkload existing = mWorkloads.get(phase.mName);
+        if (existing != null && existing.mState != State.STOPPED
+                && existing.mState != State.FAILED) {
+            throw new CommandException("Workload " + phase.mName + " is already "
+                    + existing.mState);
+        }
+        if (mScenarioName == null) {
+            begin(ADHOC_SCENARIO);
+        }
+        launch(phase);
+        return "READY";
+    }
+
+    private void begin(String name) {
+        mScenarioName = name;
+        mScenarioStartTime = SystemClock.elapsedRealtime();
+        mWorkloads.clear();
+        mMaxActiveCount = 0;
+        mTimedStops.clear();
+        mAlarmManager.cancel(mAlarmIntent);
+        mTimeline = new PMCTimeline(TAG);
+        mTimeline.record(name, "start", null);
+        mPhase = TAG + ":" + name;
+        mWakeLockManager.setPhase(mPhase);
+        Log.d(TAG, "Starting scenario " + name);
+    }
+
+    private void launch(final TestPlan.Phase phase) {
+        final ScenarioWorkload workload = new ScenarioWorkload(phase);
+        ScenarioWorkload previous = mWorkloads.put(phase.mName, workload);
+        if (previous != null) {
+            workload.mGeneration = previous.mGeneration + 1;
+            workload.mActiveMs = previous.mActiveMs;
+        }
+        workload.mStartTime = SystemClock.elapsedRealtime();
+        onActive(workload);
+        mTimeline.record(phase.mName, "start " + phase.mCommand, null);
+        // The result may come after the scenario stopped, it goes to the timeline it started in
+        final PMCTimeline timeline = mTimeline;
+        mCommandRegistry.dispatchAsync(phase.mCommand, phase.mParams, (result, error) ->
+                mExecutor.execute("Started",
+                        () -> onStarted(workload, timeline, result, error)));
+        if (phase.mDurationMs > 0) {
+            mTimedStops.add(new TimedStop(workload.mStartTime + phase.mDurationMs,
+                    mStopSequence++, workload));
+            armAlarm();
+        }
+    }
+
+    private void armAlarm() {
+        TimedStop next = mTimedStops.peek();
+        if (next == null) {
+            mAlarmManager.cancel(mAlarmIntent);
+            return;
+        }
+        mAlarmManager.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                next.mTime, mAlarmIntent);
+    }
+
+    /**
+     * Callback for AlarmManager, stops the workloads whose duration elapsed
+     *
+     * @param context - system will provide a context to this function
+     * @param intent - system will provide an intent to this function
+     */
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!intent.getAction().equals(SCENARIO_ALARM)) return;
+        TimedStop stop = mTimedStops.peek();
+        if (stop != null) AlarmLatencyTracker.onDelivered(TAG, stop.mTime);
+        while (stop != null && stop.mTime <= SystemClock.elapsedRealtime() + DUE_SLACK_MS) {
+            mTimedStops.poll();
+            // Skip the stop of a workload since stopped, or started again
+            String name = stop.mWorkload.mPhase.mName;
+            if (mWorkloads.get(name) == stop.mWorkload
+                    && stop.mWorkload.mGeneration == stop.mGeneration) {
+                mTimeline.record(name, "timed stop", stop.mTime, null);
+                stopWorkload(name);
+            }
+            stop = mTimedStops.peek();
+        }
+        armAlarm();
+    }
+
+    private void onStarted(ScenarioWorkload workload, PMCTimeline timeline, String result,
+            String error) {
+        String name = workload.mPhase.mName;
+        if (error != null) {
+            workload.mLastResult = CommandRegistry.RESULT_ERROR_PREFIX + error;
+            timeline.record(name, "failed", workload.mLastResult);
+            Log.e(TAG, "Workload " + name + " failed to start: " + error);
+            if (workload.isActive()) {
+                workload.mState = State.FAILED;
+                onInactive(workload);
+            }
+            return;
+        }
+        workload.mLastResult = result;
+        timeline.record(name, "started", result);
+        if (workload.mState == State.STARTING) workload.mState = State.RUNNING;
+    }
+
+    private String stopWorkload(String name) {
+        final ScenarioWorkload workload = mWorkloads.get(name);
+        if (workload == null) {
+            return "Unknown workload " + name;
+        }
+        if (!workload.isActive()) {
+            return "Workload " + name + " is " + workload.mState;
+        }
+        workload.mState = State.STOPPING;
+        onInactive(workload);
+        final TestPlan.Phase phase = workload.mPhase;
+        mTimeline.record(name, "stop", phase.mStopCommand);
+        if (phase.mStopCommand == null) {
+            workload.mState = State.STOPPED;
+            return "STOPPED";
+        }
+        // stop() flushes and drops the timeline before the stop commands complete, their
+        // outcome must not land in the timeline of a later scenario
+        final PMCTimeline timeline = mTimeline;
+        mCommandRegistry.dispatchAsync(phase.mStopCommand, phase.mStopParams,
+                (result, error) -> mExecutor.execute("Stopped", () -> {
+                    String outcome =
+                            error != null ? CommandRegistry.RESULT_ERROR_PREFIX + error : result;
+                    workload.mLastResult = outcome;
+                    workload.mState = error != null ? State.FAILED : State.STOPPED;
+                    timeline.record(name, "stopped", outcome);
+                }));
+        return "STOPPING";
+    }
+
+    /**
+     * Stop every workload of the scenario and write its timeline.
+     */
+    private String stop() {
+        if (mScenarioName == null) {
+            return "No scenario running";
+        }
+        for (String name : new ArrayList<String>(mWorkloads.keySet())) {
+            stopWorkload(name);
+        }
+        mTimedStops.clear();
+        mAlarmManager.cancel(mAlarmIntent);
+        String summary = getStatus() + "\n" + mWakeLockManager.getReport();
+        mWakeLockManager.setPhase(null);
+        mTimeline.record(mScenarioName, "end", summary);
+        mTimeline.flush();
+        Log.d(TAG, "Scenario " + mScenarioName + " finished:\n" + summary);
+        mTimeline = null;
+        mScenarioName = null;
+        return summary;
+    }
+
+    private void onActive(ScenarioWorkload workload) {
+        mActiveCount++;
+        mMaxActiveCount = Math.max(mMaxActiveCount, mActiveCount);
+    }
+
+    private void onInactive(ScenarioWorkload workload) {
+        long now = SystemClock.elapsedRealtime();
+        workload.mActiveMs += now - workload.mStartTime;
+        mActiveCount--;
+    }
+
+    private String getStatus() {
+        if (mScenarioName == null) {
+            return "No scenario running";
+        }
+        long now = SystemClock.elapsedRealtime();
+        long workloadMs = 0;
+        StringBuilder sb = new StringBuilder();
+        sb.append("Scenario ").append(mScenarioName)
+                .append(" elapsed ").append(now - mScenarioStartTime).append(" ms\n");
+        for (ScenarioWorkload workload : mWorkloads.values()) {
+            long activeMs = workload.mActiveMs
+                    + (workload.isActive() ? now - workload.mStartTime : 0);
+            workloadMs += activeMs;
+            sb.append(workload.mPhase.mName).append(": ").append(workload.mState)
+                    .append(" active ").append(activeMs).append(" ms");
+            if (workload.mLastResult != null) {
+                sb.append(" last ").append(workload.mLastResult);
+            }
+            sb.append('\n');
+        }
+        // Workload time above the wakelock time is time the workloads let the device suspend
+        sb.append("Workload wakelocks held ").append(mWakeLockManager.getHeldMs(mPhase))
+                .append(" ms, workloads active ").append(workloadMs)
+                .append(" ms, max concurrent ").append(mMaxActiveCount);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A power test plan: a sequence of steps, each made of one or more phases run in parallel.
+ *
+ * The plan is given as a JSON document, for example:
+ * <pre>
+ * {
+ *   "Name": "scan_then_download",
+ *   "StartDelayMs": 5000,
+ *   "Steps": [
+ *     {"Command": "SetParams", "Params": {"Interval": "10"}},
+ *     {"Name": "scan", "Command": "StartConnectivityScan", "DurationMs": 60000,
+ *      "StopCommand": "StopConnectivityScan", "SettleMs": 10000},
+ *     {"Parallel": [
+ *         {"Command": "Download1KB", "DurationMs": 60000, "StopCommand": "StopDownload"},
+ *         {"Command": "StartBleScan", "Params": {"ScanMode": "2", "StartTime": "1",
+ *          "ScanTime": "30"}}],
+ *      "SettleMs": 5000}
+ *   ]
+ * }
+ * </pre>
+ * A step ends when its longest phase ends, then the plan waits SettleMs before the next step.
+ */
+public class TestPlan {
+    final String mName;
+    final long mStartDelayMs;
+    final List<Step> mSteps;
+
+    private TestPlan(String name, long startDelayMs, List<Step> steps) {
+        mName = name;
+        mStartDelayMs = startDelayMs;
+        mSteps = Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * One command run for a duration, optionally followed by a stop command.
+     */
+    static class Phase {
+        final String mName;
+        final String mCommand;
+        final Map<String, String> mParams;
+        final long mDurationMs;
+        final String mStopCommand;
+        final Map<String, String> mStopParams;
+
+        Phase(String name, String command, Map<String, String> params, long durationMs,
+                String stopCommand, Map<String, String> stopParams) {
+            mName = name;
+            mCommand = command;
+            mParams = params;
+            mDurationMs = durationMs;
+            mStopCommand = stopCommand;
+            mStopParams = stopParams;
+        }
+    }
+
+    /**
+     * Phases started together, followed by a settle time.
+     */
+    static class Step {
+        final List<Phase> mPhases;
+        final long mSettleMs;
+
+        Step(List<Phase> phases, long settleMs) {
+            mPhases = Collections.unmodifiableList(phases);
+            mSettleMs = settleMs;
+        }
+
+        long getDurationMs() {
+            long duration = 0;
+            for (Phase phase : mPhases) {
+                duration = Math.max(duration, phase.mDurationMs);
+            }
+            return duration;
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns the planned length of the whole plan in milliseconds.
+     */
+    public long getTotalDurationMs() {
+        long total = mStartDelayMs;
+        for (Step step : mSteps) {
+            total += step.getDurationMs() + step.mSettleMs;
+        }
+        return total;
+    }
+
+    /**
+     * Parse a plan and check every command it uses is known to the registry.
+     *
+     * @param json - the plan as a JSON document
+     * @param registry - registry the commands of the plan will be dispatched to
+     * @throws CommandException if the plan is malformed or uses an unknown command
+     */
+    public static TestPlan parse(String json, CommandRegistry registry) throws CommandException {
+        try {
+            JSONObject root = new JSONObject(json);
+            JSONArray steps = root.getJSONArray("Steps");
+            List<Step> stepList = new ArrayList<Step>();
+            for (int i = 0; i < steps.length(); i++) {
+                JSONObject step = steps.getJSONObject(i);
+                List<Phase> phases = new ArrayList<Phase>();
+                JSONArray parallel = step.optJSONArray("Parallel");
+                if (parallel != null) {
+                    for (int j = 0; j < parallel.length(); j++) {
+                        phases.add(parsePhase(parallel.getJSONObject(j),
+                                "step" + i + "." + j, registry));
+                    }
+                } else {
+                    phases.add(parsePhase(step, "step" + i, registry));
+                }
+                if (phases.isEmpty()) {
+                    throw new CommandException("Step " + i + " has no phase");
+                }
+                stepList.add(new Step(phases, nonNegative(step, "SettleMs")));
+            }
+            return new TestPlan(root.optString("Name", "TestPlan"),
+                    nonNegative(root, "StartDelayMs"), stepList);
+        } catch (JSONException e) {
+            throw new CommandException("Malformed test plan: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parse a list of phases that are not part of a plan, e.g. the workloads of a scenario.
+     *
+     * @param array - JSON array of phases
+     * @param defaultPrefix - prefix of the names given to phases that have none
+     * @param registry - registry the commands of the phases will be dispatched to
+     * @throws CommandException if a phase is malformed or uses an unknown command
+     */
+    static List<Phase> parsePhases(JSONArray array, String defaultPrefix,
+            CommandRegistry registry) throws CommandException {
+        List<Phase> phases = new ArrayList<Phase>();
+        try {
+            for (int i = 0; i < array.length(); i++) {
+                phases.add(parsePhase(array.getJSONObject(i), defaultPrefix + i, registry));
+            }
+        } catch (JSONException e) {
+            throw new CommandException("Malformed phase: " + e.getMessage());
+        }
+        return phases;
+    }
+
+    private static Phase parsePhase(JSONObject obj, String defaultName,
+            CommandRegistry registry) throws JSONException, CommandException {
+        String command = obj.getString("Command");
+        String stopCommand = obj.optString("StopCommand", null);
+        checkCommand(command, registry);
+        if (stopCommand != null) checkCommand(stopCommand, registry);
+        return new Phase(obj.optString("Name", defaultName), command,
+                parseParams(obj.optJSONObject("Params")), nonNegative(obj, "DurationMs"),
+                stopCommand, parseParams(obj.optJSONObject("StopParams")));
+    }
+
+    private static void checkCommand(String command, CommandRegistry registry)
+            throws CommandException {
+        if (!registry.contains(command)) {
+            throw new CommandException("Unknown command in test plan: " + command);
+        }
+        if (command.equalsIgnoreCase(TestPlanExecutor.RUN_COMMAND)) {
+            throw new CommandException("A test plan can not run another test plan");
+        }
+        if (command.equalsIgnoreCase(ScenarioCoordinator.START_COMMAND)) {
+            throw new CommandException("A scenario can not be nested in a phase");
+        }
+    }
+
+    private static Map<String, String> parseParams(JSONObject obj) throws JSONException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (obj == null) return params;
+        Iterator<String> keys = obj.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            params.put(key, obj.get(key).toString());
+        }
+        return params;
+    }
+
+    private static long nonNegative(JSONObject obj, String key) throws CommandException {
+        long value = obj.optLong(key, 0);
+        if (value < 0) {
+            throw new CommandException(key + " must not be negative: " + value);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.pmc.CommandRegistry.CommandArgs;
+import com.android.pmc.CommandRegistry.ParamSpec;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Runs a whole TestPlan on the device, so the host does not need one adb round-trip per phase.
+ *
+ * Every phase boundary is computed from the plan start time, not from the time the previous
+ * boundary was actually handled, so late alarm delivery does not accumulate over the plan.
+ * Boundaries are driven by one exact ELAPSED_REALTIME_WAKEUP alarm that is always armed for
+ * the earliest pending event. The plan runs on its own WorkloadExecutor and hands each phase
+ * command to the executor of its workload, so a slow command does not shift the plan.
+ *
+ * In doze, the system throttles the setExactAndAllowWhileIdle() alarms of an app to about one
+ * every 9 minutes, so closer boundaries are delivered late. Every step is recorded in the
+ * timeline with its planned time, hence its lateness, and the status reports the worst one.
+ * A plan run with the AlarmClock flag uses setAlarmClock() instead, which is not deferred but
+ * brings the device out of doze shortly before each boundary.
+ */
+public class TestPlanExecutor extends BroadcastReceiver {
+    public static final String TAG = "TESTPLAN";
+    public static final String TESTPLAN_ALARM = "com.android.pmc.TESTPLAN.ALARM";
+    public static final String RUN_COMMAND = "RunTestPlan";
+    public static final String STOP_COMMAND = "StopTestPlan";
+    public static final String STATUS_COMMAND = "GetTestPlanStatus";
+    // Events due within this window are handled together with the alarm that fired
+    private static final long DUE_SLACK_MS = 5;
+
+    private final Context mContext;
+    private final AlarmManager mAlarmManager;
+    private final CommandRegistry mCommandRegistry;
+    private final WakeLockManager mWakeLockManager;
+    private final PendingIntent mAlarmIntent;
+    private final WorkloadExecutor mExecutor;
+    private final PriorityQueue<PlanEvent> mEvents = new PriorityQueue<PlanEvent>();
+    private final List<TestPlan.Phase> mActivePhases = new ArrayList<TestPlan.Phase>();
+    private long mEventSequence;
+    private TestPlan mPlan;
+    private boolean mUseAlarmClock;
+    private long mPlanStartTime;
+    private long mMaxStepLateMs;
+    private int mCurrentStep;
+    private PMCStatusLogger mPMCStatusLogger;
+    private PMCTimeline mTimeline;
+
+    /**
+     * Event of the plan due at a given elapsedRealtime(), ordered by time then by insertion.
+     */
+    private static class PlanEvent implements Comparable<PlanEvent> {
+        final long mTime;
+        final long mSequence;
+        final Runnable mAction;
+
+        PlanEvent(long time, long sequence, Runnable action) {
+            mTime = time;
+            mSequence = sequence;
+            mAction = action;
+        }
+
+        @Override
+        public int compareTo(PlanEvent other) {
+            if (mTime != other.mTime) return mTime < other.mTime ? -1 : 1;
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    /**
+     * Constructor to be called by PMC
+     *
+     * @param context - PMC will provide a context
+     * @param alarmManager - PMC will provide alarmManager
+     * @param registry - registry the phases of the plans are dispatched to
+     * @param wakeLocks - manager the hold time of the wakelocks is accounted by, per phase
+     */
+    public TestPlanExecutor(Context context, AlarmManager alarmManager,
+            CommandRegistry registry, WakeLockManager wakeLocks) {
+        mContext = context;
+        mAlarmManager = alarmManager;
+        mCommandRegistry = registry;
+        mWakeLockManager = wakeLocks;
+        mAlarmIntent = PendingIntent.getBroadcast(mContext, 0, new Intent(TESTPLAN_ALARM),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        mExecutor = new WorkloadExecutor(TAG);
+        mContext.registerReceiver(this, new IntentFilter(TESTPLAN_ALARM), null,
+                mExecutor.getHandler());
+    }
+
+    /**
+     * Stop the running plan, if any, then release the plan thread and alarm receiver.
+     */
+    public void release() {
+        mExecutor.execute(STOP_COMMAND, this::stop);
+        mExecutor.quit();
+        mContext.unregisterReceiver(this);
+    }
+
+    /**
+     * Register the test plan commands with PMC command registry
+     */
+    public void registerCommands() {
+        mCommandRegistry.register(RUN_COMMAND, mExecutor,
+                args -> start(loadPlan(args), args.getFlag("AlarmClock")),
+                ParamSpec.optionalString("TestPlan", null),
+                ParamSpec.optionalString("TestPlanFile", null),
+                ParamSpec.flag("AlarmClock"));
+        mCommandRegistry.register(STOP_COMMAND, mExecutor, args -> stop());
+        mCommandRegistry.register(STATUS_COMMAND, mExecutor, args -> getStatus());
+    }
+
+    private TestPlan loadPlan(CommandArgs args) throws CommandException {
+        String json = args.getString("TestPlan");
+        String path = args.getString("TestPlanFile");
+        if (json == null && path == null) {
+            throw new CommandException("Either TestPlan or TestPlanFile must be specified");
+        }
+        if (json == null) {
+            json = readFile(path);
+        }
+        return TestPlan.parse(json, mCommandRegistry);
+    }
+
+    static String readFile(String path) throws CommandException {
+        StringBuilder sb = new StringBuilder();
+        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                sb.append(line).append('\n');
+            }
+        } catch (IOException e) {
+            throw new CommandException("Can't read test plan " + path + ": " + e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Start running a plan, replacing the one currently running if any.
+     *
+     * @param plan - plan to run
+     * @param useAlarmClock - drive the boundaries with setAlarmClock(), exact even in doze
+     */
+    public String start(TestPlan plan, boolean useAlarmClock) {
+        if (mPlan != null) {
+            Log.w(TAG, "Test plan " + mPlan.getName() + " still running, stopping it");
+            stop();
+        }
+        mPlan = plan;
+        mUseAlarmClock = useAlarmClock;
+        mCurrentStep = -1;
+        mMaxStepLateMs = 0;
+        mPMCStatusLogger = new PMCStatusLogger(TAG + ".log", TAG);
+        mTimeline = new PMCTimeline(TAG);
+        mPlanStartTime = SystemClock.elapsedRealtime() + plan.mStartDelayMs;
+        Log.d(TAG, "Starting test plan " + plan.getName() + " with " + plan.mSteps.size()
+                + " steps, expected duration " + plan.getTotalDurationMs() + " ms");
+        mTimeline.record(plan.getName(), "planned", mPlanStartTime,
+                "duration " + plan.getTotalDurationMs() + " ms");
+        final long stepStart = mPlanStartTime;
+        schedule(stepStart, () -> runStep(0, stepStart));
+        mPMCStatusLogger.logStatus("READY");
+        return "READY";
+    }
+
+    /**
+     * Abort the running plan, stopping the phases that are still active.
+     */
+    public String stop() {
+        if (mPlan == null) {
+            return "No test plan running";
+        }
+        mEvents.clear();
+        mAlarmManager.cancel(mAlarmIntent);
+        for (TestPlan.Phase phase : new ArrayList<TestPlan.Phase>(mActivePhases)) {
+            endPhase(phase, SystemClock.elapsedRealtime());
+        }
+        mTimeline.record(mPlan.getName(), "aborted", null);
+        finish("ABORTED");
+        return "ABORTED";
+    }
+
+    private String getStatus() {
+        if (mPlan == null) {
+            return "No test plan running";
+        }
+        return "Plan " + mPlan.getName() + " step " + (mCurrentStep + 1) + "/"
+                + mPlan.mSteps.size() + " elapsed "
+                + (SystemClock.elapsedRealtime() - mPlanStartTime) + " ms max step late "
+                + mMaxStepLateMs + " ms";
+    }
+
+    private void runStep(int index, long stepStart) {
+        if (index >= mPlan.mSteps.size()) {
+            mTimeline.record(mPlan.getName(), "done", stepStart,
+                    "max step late " + mMaxStepLateMs + " ms");
+            finish("SUCCEED");
+            return;
+        }
+        mCurrentStep = index;
+        TestPlan.Step step = mPlan.mSteps.get(index);
+        StringBuilder phaseNames = new StringBuilder(mPlan.getName());
+        for (TestPlan.Phase phase : step.mPhases) {
+            phaseNames.append(phaseNames.length() == mPlan.getName().length() ? ':' : '+')
+                    .append(phase.mName);
+        }
+        mWakeLockManager.setPhase(phaseNames.toString());
+        mMaxStepLateMs = Math.max(mMaxStepLateMs, SystemClock.elapsedRealtime() - stepStart);
+        mTimeline.record(mPlan.getName(), "step " + (index + 1), stepStart,
+                phaseNames.toString());
+        for (final TestPlan.Phase phase : step.mPhases) {
+            startPhase(phase, stepStart);
+            final long phaseEnd = stepStart + phase.mDurationMs;
+            schedule(phaseEnd, () -> endPhase(phase, phaseEnd));
+        }
+        final long nextStart = stepStart + step.getDurationMs() + step.mSettleMs;
+        schedule(nextStart, () -> runStep(index + 1, nextStart));
+    }
+
+    private void startPhase(TestPlan.Phase phase, long intendedTime) {
+        mActivePhases.add(phase);
+        mTimeline.record(phase.mName, "start " + phase.mCommand, intendedTime, null);
+        dispatch(phase, phase.mCommand, phase.mParams);
+    }
+
+    private void endPhase(TestPlan.Phase phase, long intendedTime) {
+        if (!mActivePhases.remove(phase)) return;
+        mTimeline.record(phase.mName, "end", intendedTime, phase.mStopCommand);
+        if (phase.mStopCommand != null) {
+            dispatch(phase, phase.mStopCommand, phase.mStopParams);
+        }
+    }
+
+    private void dispatch(final TestPlan.Phase phase, final String command,
+            Map<String, String> params) {
+        final PMCTimeline timeline = mTimeline;
+        mCommandRegistry.dispatchAsync(command, params, (result, error) -> {
+            String outcome = error != null ? CommandRegistry.RESULT_ERROR_PREFIX + error : result;
+            Log.d(TAG, "Phase " + phase.mName + " " + command + " done: " + outcome);
+            timeline.record(phase.mName, "done " + command, outcome);
+        });
+    }
+
+    private void finish(String status) {
+        Log.d(TAG, "Test plan " + mPlan.getName() + " finished: " + status);
+        mWakeLockManager.setPhase(null);
+        mTimeline.record(mPlan.getName(), "wakelocks", mWakeLockManager.getReport());
+        mTimeline.flush();
+        mPMCStatusLogger.logStatus(status);
+        mActivePhases.clear();
+        mPlan = null;
+    }
+
+    private void schedule(long time, Runnable action) {
+        mEvents.add(new PlanEvent(time, mEventSequence++, action));
+        armAlarm();
+    }
+
+    private void armAlarm() {
+        PlanEvent next = mEvents.peek();
+        if (next == null) {
+            mAlarmManager.cancel(mAlarmIntent);
+            return;
+        }
+        if (mUseAlarmClock) {
+            // Alarm clocks are set in wall clock time
+            long triggerTime = System.currentTimeMillis()
+                    + (next.mTime - SystemClock.elapsedRealtime());
+            mAlarmManager.setAlarmClock(new AlarmManager.AlarmClockInfo(triggerTime, null),
+                    mAlarmIntent);
+        } else {
+            mAlarmManager.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                    next.mTime, mAlarmIntent);
+        }
+    }
+
+    /**
+     * Callback for AlarmManager, runs every event that is due
+     *
+     * @param context - system will provide a context to this function
+     * @param intent - system will provide an intent to this function
+     */
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!intent.getAction().equals(TESTPLAN_ALARM)) return;
+        PlanEvent event = mEvents.peek();
+        if (event != null) AlarmLatencyTracker.onDelivered(TAG, event.mTime);
+        while (event != null && event.mTime <= SystemClock.elapsedRealtime() + DUE_SLACK_MS) {
+            mEvents.poll();
+            event.mAction.run();
+            event = mEvents.peek();
+        }
+        armAlarm();
+    }
+}
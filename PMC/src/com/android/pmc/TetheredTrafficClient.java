@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Enumeration;
+
+/**
+ * Pushes paced UDP traffic out of the tethered USB interface, so tethering power can be
+ * measured under load.
+ *
+ * Packets are sent in short ticks on the workload thread. The bytes allowed at each tick are
+ * computed from the start of the run, so a late tick catches up instead of lowering the rate,
+ * up to MAX_BURST_MS worth of traffic.
+ */
+public class TetheredTrafficClient {
+    public static final String TAG = "TETHERTRAFFIC";
+    private static final long TICK_MS = 10;
+    private static final long MAX_BURST_MS = 100;
+
+    private final PMCService mPMCService;
+    private final Handler mHandler;
+    private DatagramSocket mSocket;
+    private DatagramPacket mPacket;
+    private WakeLockManager.Lock mWakeLock;
+    private long mWakeLockToken;
+    private long mBytesPerSecond;
+    private long mStartTime;
+    private long mEndTime;
+    // Bytes accounted for by the pacing, including the ones skipped after a stall
+    private long mBytesPaced;
+    private long mBytesSent;
+    private long mPacketsSent;
+    private long mSendErrors;
+
+    private final Runnable mTickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param service - PMC service the status is reported to
+     * @param handler - Handler of the traffic workload thread, all methods must run on it
+     */
+    public TetheredTrafficClient(PMCService service, Handler handler) {
+        mPMCService = service;
+        mHandler = handler;
+    }
+
+    /**
+     * Start sending traffic, replacing the run in progress if any.
+     *
+     * @param iface - name of the tethered interface the traffic is sent from
+     * @param targetAddress - address of the host on the other side of the USB link
+     * @param targetPort - UDP port on the host
+     * @param rateKbps - target rate in kilobits per second
+     * @param packetSize - UDP payload size in bytes
+     * @param durationMillis - duration of the run, 0 to run until stopped
+     */
+    public String start(String iface, String targetAddress, int targetPort, int rateKbps,
+            int packetSize, long durationMillis) throws CommandException {
+        stop();
+        InetAddress localAddress = findIpv4Address(iface);
+        try {
+            InetAddress target = InetAddress.getByName(targetAddress);
+            mSocket = new DatagramSocket(new InetSocketAddress(localAddress, 0));
+            mPacket = new DatagramPacket(new byte[packetSize], packetSize, target, targetPort);
+        } catch (UnknownHostException e) {
+            throw new CommandException("Bad target address " + targetAddress + ": " + e);
+        } catch (SocketException e) {
+            throw new CommandException("Can't open socket on " + iface + ": " + e);
+        }
+        mWakeLock = mPMCService.getWakeLockManager()
+                .getLock(PMCService.WORKLOAD_TETHERED_TRAFFIC);
+        mWakeLockToken = mWakeLock.acquire(durationMillis > 0
+                ? durationMillis + WakeLockManager.TICK_TIMEOUT_MS
+                : WakeLockManager.MAX_TIMEOUT_MS);
+        mBytesPerSecond = rateKbps * 1000L / 8;
+        mBytesPaced = 0;
+        mBytesSent = 0;
+        mPacketsSent = 0;
+        mSendErrors = 0;
+        mStartTime = SystemClock.elapsedRealtime();
+        mEndTime = durationMillis > 0 ? mStartTime + durationMillis : Long.MAX_VALUE;
+        mHandler.post(mTickRunnable);
+        Log.d(TAG, "Sending " + rateKbps + " kbps from " + iface + " to " + targetAddress
+                + ":" + targetPort);
+        mPMCService.renderStatus("Started tethered traffic at " + rateKbps + " kbps", true);
+        return "Tethered traffic started from " + localAddress.getHostAddress();
+    }
+
+    /**
+     * Stop sending traffic, returns the statistics of the run.
+     */
+    public String stop() {
+        if (mSocket == null) {
+            return "No tethered traffic running";
+        }
+        mHandler.removeCallbacks(mTickRunnable);
+        mSocket.close();
+        mSocket = null;
+        mPacket = null;
+        mWakeLock.release(mWakeLockToken);
+        mWakeLock = null;
+        String status = getStatus();
+        Log.d(TAG, "Stopped: " + status);
+        mPMCService.renderStatus("Stopped tethered traffic", false);
+        return status;
+    }
+
+    /**
+     * Returns the amount of traffic sent and the achieved rate.
+     */
+    public String getStatus() {
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - mStartTime);
+        return "Sent " + mPacketsSent + " packets, " + mBytesSent + " bytes in " + elapsed
+                + " ms (" + (mBytesSent * 8 / elapsed) + " kbps), " + mSendErrors + " errors";
+    }
+
+    private void tick() {
+        long now = SystemClock.elapsedRealtime();
+        if (now >= mEndTime) {
+            stop();
+            return;
+        }
+        long allowed = (now - mStartTime) * mBytesPerSecond / 1000;
+        // Do not try to catch up on more than MAX_BURST_MS after a stall
+        long floor = allowed - MAX_BURST_MS * mBytesPerSecond / 1000;
+        if (mBytesPaced < floor) mBytesPaced = floor;
+        int size = mPacket.getLength();
+        while (mBytesPaced + size <= allowed) {
+            try {
+                mSocket.send(mPacket);
+                mPacketsSent++;
+                mBytesSent += size;
+            } catch (IOException e) {
+                mSendErrors++;
+                Log.v(TAG, "Send failed: " + e);
+            }
+            mBytesPaced += size;
+        }
+        mHandler.postDelayed(mTickRunnable, TICK_MS);
+    }
+
+    private static InetAddress findIpv4Address(String iface) throws CommandException {
+        try {
+            NetworkInterface ni = NetworkInterface.getByName(iface);
+            if (ni != null) {
+                Enumeration<InetAddress> addresses = ni.getInetAddresses();
+                while (addresses.hasMoreElements()) {
+                    InetAddress address = addresses.nextElement();
+                    if (address instanceof Inet4Address) return address;
+                }
+            }
+        } catch (SocketException e) {
+            throw new CommandException("Can't query interface " + iface + ": " + e);
+        }
+        throw new CommandException("No IPv4 address on interface " + iface);
+    }
+}
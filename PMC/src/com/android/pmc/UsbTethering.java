@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Event driven USB tethering bring-up.
+ *
+ * Tethering is requested and then completed by onTetheringStarted() or onTetheringFailed(),
+ * or failed by a timeout, instead of sleeping for a fixed provisioning time. The latency from
+ * the request to tethering being up is measured for every bring-up.
+ *
+ * All methods must be called on the thread of the Handler given to the constructor, the
+ * tethering callbacks are delivered on the same thread.
+ */
+public class UsbTethering {
+    public static final String TAG = "USBTETHER";
+    public static final int DEFAULT_TIMEOUT_MS = 5000;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_STARTING = 1;
+    private static final int STATE_TETHERED = 2;
+    private static final int STATE_FAILED = 3;
+    private static final String[] STATE_NAMES = {"IDLE", "STARTING", "TETHERED", "FAILED"};
+
+    private final PMCService mPMCService;
+    private final ConnectivityManager mConnManager;
+    private final Handler mHandler;
+    private final LatencyHistogram mBringUpLatency = new LatencyHistogram();
+    private PMCStatusLogger mPMCStatusLogger;
+    private int mState = STATE_IDLE;
+    // Incremented for every request, so callbacks of an older request are ignored
+    private int mRequestId;
+    private long mRequestTime;
+    private long mLastLatency = -1;
+    private String mLastError;
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mState != STATE_STARTING) return;
+            // Withdraw the request so tethering does not come up behind our back
+            mRequestId++;
+            mConnManager.stopTethering(ConnectivityManager.TETHERING_USB);
+            fail("Timed out after " + (SystemClock.elapsedRealtime() - mRequestTime) + " ms");
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param service - PMC service the status is reported to
+     * @param connManager - ConnectivityManager to request tethering from
+     * @param handler - Handler of the tethering workload thread
+     */
+    public UsbTethering(PMCService service, ConnectivityManager connManager,
+            Handler handler) {
+        mPMCService = service;
+        mConnManager = connManager;
+        mHandler = handler;
+    }
+
+    /**
+     * Request USB tethering, returns without waiting for it to come up.
+     *
+     * @param timeoutMillis - time allowed from the request to tethering being up
+     */
+    public String start(int timeoutMillis) {
+        if (mState == STATE_STARTING || mState == STATE_TETHERED) {
+            return "USB tethering already " + STATE_NAMES[mState];
+        }
+        final int requestId = ++mRequestId;
+        mState = STATE_STARTING;
+        mLastError = null;
+        mPMCStatusLogger = new PMCStatusLogger(TAG + ".log", TAG);
+        mPMCStatusLogger.logStatus("STARTING");
+        mRequestTime = SystemClock.elapsedRealtime();
+        mConnManager.startTethering(ConnectivityManager.TETHERING_USB, true,
+                new ConnectivityManager.OnStartTetheringCallback() {
+                    @Override
+                    public void onTetheringStarted() {
+                        if (requestId == mRequestId) onStarted();
+                    }
+
+                    @Override
+                    public void onTetheringFailed() {
+                        if (requestId == mRequestId) fail("Tethering failed");
+                    }
+                }, mHandler);
+        mHandler.postDelayed(mTimeoutRunnable, timeoutMillis);
+        Log.d(TAG, "USB tethering requested, timeout " + timeoutMillis + " ms");
+        return "USB tethering requested";
+    }
+
+    /**
+     * Stop USB tethering, or withdraw a pending request.
+     */
+    public String stop() {
+        if (mState == STATE_IDLE) {
+            return "USB tethering not started";
+        }
+        mRequestId++;
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mConnManager.stopTethering(ConnectivityManager.TETHERING_USB);
+        mState = STATE_IDLE;
+        mPMCStatusLogger.logStatus("STOPPED");
+        mPMCService.renderStatus("Stopped usb tethering", false);
+        return "USB tethering stopped";
+    }
+
+    public boolean isTethered() {
+        return mState == STATE_TETHERED;
+    }
+
+    /**
+     * Returns the state of tethering and the bring-up latencies measured so far.
+     */
+    public String getStatus() {
+        StringBuilder sb = new StringBuilder(STATE_NAMES[mState]);
+        if (mLastError != null) sb.append(" (").append(mLastError).append(')');
+        if (mLastLatency >= 0) sb.append(" last bring-up ").append(mLastLatency).append(" ms");
+        sb.append(" bring-up[").append(mBringUpLatency.toSummary("ms")).append(']');
+        return sb.toString();
+    }
+
+    /**
+     * Returns the name of the tethered USB interface, or null if there is none.
+     * Only queries ConnectivityManager, so it may be called from any thread.
+     */
+    public String findTetheredInterface() {
+        String[] ifaces = mConnManager.getTetheredIfaces();
+        if (ifaces == null) return null;
+        for (String iface : ifaces) {
+            if (iface.startsWith("rndis") || iface.startsWith("usb")) return iface;
+        }
+        return null;
+    }
+
+    private void onStarted() {
+        if (mState != STATE_STARTING) return;
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mLastLatency = SystemClock.elapsedRealtime() - mRequestTime;
+        mBringUpLatency.record(mLastLatency);
+        mState = STATE_TETHERED;
+        Log.d(TAG, "USB tethering up after " + mLastLatency + " ms");
+        mPMCStatusLogger.logStatus("READY " + mLastLatency);
+        mPMCService.renderStatus("Started usb tethering in " + mLastLatency + " ms", true);
+    }
+
+    private void fail(String error) {
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mState = STATE_FAILED;
+        mLastError = error;
+        Log.e(TAG, "USB tethering: " + error);
+        mPMCStatusLogger.logStatus("FAIL: " + error);
+        mPMCService.renderStatus("USB tethering: " + error, false);
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Owner of the partial wakelocks of all PMC workloads.
+ *
+ * Every workload gets one lock tagged with its name, acquired with a timeout so the system
+ * releases it even if the workload never does. Hold time is accounted per workload and per
+ * phase, the phase being set by whoever drives the run, e.g. the test plan. A lock still held
+ * past its deadline is reported as a leak, and its hold time is only counted up to the
+ * deadline, as the system released it then.
+ */
+public class WakeLockManager {
+    private static final String TAG = "PMCWAKELOCK";
+    // Bound of the locks of workloads running until they are stopped
+    public static final long MAX_TIMEOUT_MS = 24 * 60 * 60 * 1000L;
+    // Bound of the locks held for one tick of a periodic workload
+    public static final long TICK_TIMEOUT_MS = 60 * 1000L;
+    public static final String IDLE_PHASE = "idle";
+
+    private final PowerManager mPowerManager;
+    private final Map<String, Lock> mLocks = new TreeMap<String, Lock>();
+    // Keyed by workload then by phase
+    private final Map<String, Map<String, HoldStats>> mStats =
+            new TreeMap<String, Map<String, HoldStats>>();
+    private final List<String> mLeaks = new ArrayList<String>();
+    private String mPhase = IDLE_PHASE;
+
+    /**
+     * Hold time of one workload in one phase.
+     */
+    private static class HoldStats {
+        long mHeldMs;
+        long mAcquisitions;
+        long mLeaks;
+    }
+
+    /**
+     * Partial wakelock of one workload. Not reference counted: acquiring a held lock only
+     * moves its deadline, and makes the caller its owner. Only the release of the owner
+     * releases the lock, so the late release of a stopped run does not drop the lock the next
+     * run of the workload just acquired.
+     */
+    public class Lock {
+        private final String mWorkload;
+        private final PowerManager.WakeLock mWakeLock;
+        private boolean mHeld;
+        private boolean mLeaked;
+        private long mOwner;
+        private long mAcquiredAt;
+        private long mDeadline;
+        private long mSegmentStart;
+        private String mSegmentPhase;
+
+        private Lock(String workload) {
+            mWorkload = workload;
+            mWakeLock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                    "PMC:" + workload);
+            mWakeLock.setReferenceCounted(false);
+        }
+
+        /**
+         * Acquire the lock, the system releases it after timeoutMs.
+         *
+         * @param timeoutMs - deadline of the hold, from now
+         * @return token of the owner, to be given to release()
+         */
+        public long acquire(long timeoutMs) {
+            synchronized (WakeLockManager.this) {
+                long now = SystemClock.elapsedRealtime();
+                if (!mHeld) {
+                    mHeld = true;
+                    mLeaked = false;
+                    mAcquiredAt = now;
+                    mSegmentStart = now;
+                    mSegmentPhase = mPhase;
+                    getStats(mWorkload, mPhase).mAcquisitions++;
+                } else if (now > mDeadline) {
+                    // Renewed after the system dropped it, the gap is not held time
+                    checkLeak(now);
+                    closeSegment(now);
+                }
+                mDeadline = now + timeoutMs;
+                mWakeLock.acquire(timeoutMs);
+                return ++mOwner;
+            }
+        }
+
+        /**
+         * Release the lock, a lock that is not held or owned by someone else is ignored.
+         *
+         * @param token - token returned by acquire()
+         */
+        public void release(long token) {
+            synchronized (WakeLockManager.this) {
+                if (!mHeld) return;
+                if (token != mOwner) {
+                    Log.d(TAG, mWorkload + ": ignoring the release of a previous owner");
+                    return;
+                }
+                long now = SystemClock.elapsedRealtime();
+                closeSegment(now);
+                checkLeak(now);
+                mHeld = false;
+                if (mWakeLock.isHeld()) mWakeLock.release();
+            }
+        }
+
+        public boolean isHeld() {
+            synchronized (WakeLockManager.this) {
+                return mHeld;
+            }
+        }
+
+        private void closeSegment(long now) {
+            long end = Math.min(now, mDeadline);
+            if (end > mSegmentStart) {
+                getStats(mWorkload, mSegmentPhase).mHeldMs += end - mSegmentStart;
+            }
+            mSegmentStart = now;
+            mSegmentPhase = mPhase;
+        }
+
+        private void checkLeak(long now) {
+            if (now <= mDeadline || mLeaked) return;
+            mLeaked = true;
+            getStats(mWorkload, mSegmentPhase).mLeaks++;
+            String leak = mWorkload + " acquired at " + mAcquiredAt + " ms held "
+                    + (now - mDeadline) + " ms past its deadline in phase " + mSegmentPhase;
+            mLeaks.add(leak);
+            Log.e(TAG, "Leak: " + leak);
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context - context the power manager is obtained from
+     */
+    public WakeLockManager(Context context) {
+        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    }
+
+    /**
+     * Returns the lock of a workload, created on first use.
+     *
+     * @param workload - name of the workload, also used in the tag of the wakelock
+     */
+    public synchronized Lock getLock(String workload) {
+        Lock lock = mLocks.get(workload);
+        if (lock == null) {
+            lock = new Lock(workload);
+            mLocks.put(workload, lock);
+        }
+        return lock;
+    }
+
+    /**
+     * Attribute the hold time from now on to a phase, including that of the locks held now.
+     *
+     * @param phase - name of the phase, null for idle
+     */
+    public synchronized void setPhase(String phase) {
+        mPhase = phase == null ? IDLE_PHASE : phase;
+        long now = SystemClock.elapsedRealtime();
+        for (Lock lock : mLocks.values()) {
+            if (lock.mHeld) lock.closeSegment(now);
+        }
+    }
+
+    /**
+     * Returns the hold time of all the workloads in a phase, including the locks held now.
+     *
+     * @param phase - name of the phase
+     */
+    public synchronized long getHeldMs(String phase) {
+        long now = SystemClock.elapsedRealtime();
+        for (Lock lock : mLocks.values()) {
+            if (lock.mHeld) lock.closeSegment(now);
+        }
+        long heldMs = 0;
+        for (Map<String, HoldStats> phases : mStats.values()) {
+            HoldStats stats = phases.get(phase);
+            if (stats != null) heldMs += stats.mHeldMs;
+        }
+        return heldMs;
+    }
+
+    /**
+     * Returns the hold time per workload and phase, the locks held now and the leaks.
+     */
+    public synchronized String getReport() {
+        long now = SystemClock.elapsedRealtime();
+        StringBuilder sb = new StringBuilder();
+        for (Lock lock : mLocks.values()) {
+            if (!lock.mHeld) continue;
+            lock.closeSegment(now);
+            lock.checkLeak(now);
+            sb.append("Held: ").append(lock.mWorkload).append(" for ")
+                    .append(now - lock.mAcquiredAt).append(" ms, deadline in ")
+                    .append(lock.mDeadline - now).append(" ms\n");
+        }
+        long totalMs = 0;
+        for (Map.Entry<String, Map<String, HoldStats>> workload : mStats.entrySet()) {
+            for (Map.Entry<String, HoldStats> phase : workload.getValue().entrySet()) {
+                HoldStats stats = phase.getValue();
+                totalMs += stats.mHeldMs;
+                sb.append(workload.getKey()).append('/').append(phase.getKey())
+                        .append(": held ").append(stats.mHeldMs).append(" ms in ")
+                        .append(stats.mAcquisitions).append(" acquisitions, ")
+                        .append(stats.mLeaks).append(" leaks\n");
+            }
+        }
+        for (String leak : mLeaks) {
+            sb.append("Leak: ").append(leak).append('\n');
+        }
+        sb.append("Total held ").append(totalMs).append(" ms, ").append(mLeaks.size())
+                .append(" leaks");
+        return sb.toString();
+    }
+
+    /**
+     * Drop the accounting, e.g. at the start of a measurement. Held locks keep being
+     * accounted from now.
+     */
+    public synchronized void reset() {
+        mStats.clear();
+        mLeaks.clear();
+        long now = SystemClock.elapsedRealtime();
+        for (Lock lock : mLocks.values()) {
+            if (lock.mHeld) {
+                lock.mSegmentStart = now;
+                lock.mSegmentPhase = mPhase;
+                getStats(lock.mWorkload, mPhase).mAcquisitions++;
+            }
+        }
+    }
+
+    private HoldStats getStats(String workload, String phase) {
+        Map<String, HoldStats> phases = mStats.get(workload);
+        if (phases == null) {
+            phases = new TreeMap<String, HoldStats>();
+            mStats.put(workload, phases);
+        }
+        HoldStats stats = phases.get(phase);
+        if (stats == null) {
+            stats = new HoldStats();
+            phases.put(phase, stats);
+        }
+        return stats;
+    }
+}
@@ -1,149 +1,371 @@
 package com.android.pmc;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
-import android.os.AsyncTask;
-import android.os.PowerManager;
 import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.List;
+
 /**
  * Call wifi scan whenever an alarm is received.
  */
 public class WifiConnScanReceiver extends BroadcastReceiver {
-    int mScanCount = 0;
-    ConnectvityScanTask mConnScanTask;
-    PMCMainActivity mPMCMainActivity;
+    // Time the results of a scan may take to be available
+    private static final long SCAN_TIMEOUT_MS = 10000;
+
+    // Updated by the task thread
+    volatile int mScanCount = 0;
+    final ConnectvityScanTask mConnScanTask = new ConnectvityScanTask();
+    final StressScanTask mStressTask = new StressScanTask();
+    // Task the results broadcast completes, the periodic or the stress one
+    private volatile CancellableTask mActiveTask = mConnScanTask;
+    PMCService mPMCService;
     private WifiManager mWifiManager;
     private Context mContext;
-    private PowerManager.WakeLock mWakeLock;
-    private int mAlarmInterval;
-    private AlarmManager mAlarmManager;
-    private PendingIntent mAlarmIntent;
-
-    public WifiConnScanReceiver(PMCMainActivity activity, int interval, AlarmManager alarmManager,
-                                PendingIntent alarmIntent) {
-        mPMCMainActivity = activity;
+    private WakeLockManager.Lock mWakeLock;
+    // Released by the task of the run that acquired it, on the task thread
+    private volatile long mWakeLockToken;
+    private PeriodicScheduler mScheduler;
+    private OverlapPolicy mOverlap;
+    private ScanLatencyStats.Entry mLatency;
+    private final ScanResultStore mResults = new ScanResultStore(
+            PMCService.WORKLOAD_CONN_SCAN);
+    private final ScanDiffEngine mDiff;
+    private WorkloadExecutor mTaskExecutor;
+    // Registered for the whole run, so no scan result broadcast is missed between ticks
+    private final WifiScanReceiver mWifiScanReceiver = new WifiScanReceiver();
+    private boolean mScanReceiverRegistered;
+    // Sequence numbers of the last scan requested and of the last one completed or abandoned,
+    // guarded by mWifiScanReceiver
+    private long mRequestSeq;
+    private long mCompletedSeq;
+    private boolean mResultsUpdated;
+    private long mUnsolicited;
+    private volatile ScanThrottleTracker mThrottle;
+    private final PMCTimeline mStressTimeline =
+            new PMCTimeline(PMCService.WORKLOAD_CONN_SCAN + "_stress");
+
+    public WifiConnScanReceiver(PMCService service, PeriodicScheduler scheduler,
+                                OverlapPolicy overlap, WorkloadExecutor taskExecutor,
+                                ScanLatencyStats.Entry latency, int rssiThreshold) {
+        mPMCService = service;
         mScanCount = 0;
-        mAlarmInterval = interval;
-        mAlarmManager = alarmManager;
-        mAlarmIntent = alarmIntent;
+        mScheduler = scheduler;
+        mOverlap = overlap;
+        mTaskExecutor = taskExecutor;
+        mLatency = latency;
+        mDiff = new ScanDiffEngine(PMCService.WORKLOAD_CONN_SCAN, rssiThreshold);
+        mWifiManager = (WifiManager) service.getApplicationContext()
+                .getSystemService(Context.WIFI_SERVICE);
     }
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        if (mConnScanTask != null && mConnScanTask.getStatus() != AsyncTask.Status.FINISHED) {
-            Log.e(PMCMainActivity.TAG, "Previous connection scan still running.");
-            try {
-                mConnScanTask.get();
-            } catch (Exception e) {
-                Log.e(PMCMainActivity.TAG, "Connection scan cancelled.");
-            }
-        } else {
-            mContext = context;
-            PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
-            mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "WIFITEST");
-            // Acquire the lock
-            mWakeLock.acquire();
-            mWifiManager = (WifiManager) context.getApplicationContext()
-                    .getSystemService(Context.WIFI_SERVICE);
-            Log.i(PMCMainActivity.TAG, "Starting Connectivity Scan Task");
-            mConnScanTask = new ConnectvityScanTask();
-            mConnScanTask.execute();
-        }
-        scheduleConnScan();
+        mScheduler.onAlarm();
+        mContext = context;
+        mOverlap.onTick(this::startConnScanTask);
+    }
+
+    private void startConnScanTask(int ticks) {
+        mWakeLock = mPMCService.getWakeLockManager().getLock(PMCService.WORKLOAD_CONN_SCAN);
+        // Acquire the lock, bounded in case the task never completes
+        mWakeLockToken = mWakeLock.acquire(WakeLockManager.TICK_TIMEOUT_MS);
+        Log.i(PMCMainActivity.TAG, "Starting Connectivity Scan Task for " + ticks + " ticks");
+        mTaskExecutor.execute("ConnectvityScanTask", mConnScanTask);
     }
 
     /**
-     * Schedule the next connectivity scan.
+     * Start the connectivity scan schedule.
      */
     public void scheduleConnScan() {
-        Log.i(PMCMainActivity.TAG, "Scheduling the next conn scan after " + mAlarmInterval);
-        mAlarmManager.setAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                SystemClock.elapsedRealtime() + mAlarmInterval, mAlarmIntent);
+        registerScanReceiver();
+        mScheduler.start();
+    }
+
+    /**
+     * Scan back to back instead of on the alarms: every scan is requested as soon as the
+     * previous one completed, until cancelConnScan(). Holds the wakelock of the workload
+     * for the whole run.
+     *
+     * @param initialBackoffMs - wait after the first throttled scan
+     * @param maxBackoffMs - longest wait between two throttled scans
+     */
+    public void startStress(long initialBackoffMs, long maxBackoffMs) {
+        registerScanReceiver();
+        mThrottle = new ScanThrottleTracker(initialBackoffMs, maxBackoffMs);
+        mActiveTask = mStressTask;
+        mWakeLock = mPMCService.getWakeLockManager().getLock(PMCService.WORKLOAD_CONN_SCAN);
+        mWakeLockToken = mWakeLock.acquire(WakeLockManager.MAX_TIMEOUT_MS);
+        Log.i(PMCMainActivity.TAG, "Starting back to back connectivity scans");
+        mTaskExecutor.execute("StressScanTask", mStressTask);
+    }
+
+    /**
+     * Returns the scans/sec, latency and throttling of the back to back scans, null if not
+     * running in that mode.
+     */
+    public String getStressSummary() {
+        ScanThrottleTracker throttle = mThrottle;
+        if (throttle == null) return null;
+        synchronized (throttle) {
+            return throttle.getSummary(SystemClock.elapsedRealtime());
+        }
+    }
+
+    private void registerScanReceiver() {
+        if (!mScanReceiverRegistered) {
+            mPMCService.getApplicationContext().registerReceiver(mWifiScanReceiver,
+                    new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+            mScanReceiverRegistered = true;
+        }
     }
 
     /**
      * Cancel the connectivity scans.
      */
     public void cancelConnScan() {
-        mAlarmManager.cancel(mAlarmIntent);
-        if (mConnScanTask != null) mConnScanTask.cancel(true);
+        mScheduler.stop();
+        mOverlap.cancel();
+        mConnScanTask.cancel();
+        mStressTask.cancel();
+        if (mScanReceiverRegistered) {
+            mPMCService.getApplicationContext().unregisterReceiver(mWifiScanReceiver);
+            mScanReceiverRegistered = false;
+        }
     }
 
-    class ConnectvityScanTask extends AsyncTask<Integer, Integer, String> {
-        WifiScanReceiver mWifiScanReceiver;
-        Boolean mScanCompleted = false;
+    public OverlapPolicy getOverlapPolicy() {
+        return mOverlap;
+    }
 
-        ConnectvityScanTask() {
-            mWifiScanReceiver = new WifiScanReceiver();
-            mContext.getApplicationContext().registerReceiver(mWifiScanReceiver,
-                    new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+    public PeriodicScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Returns the results of all the scans of this run.
+     */
+    public ScanResultStore getResultStore() {
+        return mResults;
+    }
+
+    /**
+     * Returns the changes between consecutive scans of this run.
+     */
+    public ScanDiffEngine getDiffEngine() {
+        return mDiff;
+    }
+
+    /**
+     * Returns the number of scans completed and their latency.
+     */
+    public String getScanSummary() {
+        long unsolicited;
+        synchronized (mWifiScanReceiver) {
+            unsolicited = mUnsolicited;
+        }
+        return mScanCount + " scans, " + unsolicited + " results not requested by PMC, latency["
+                + mLatency.getSummary() + "]";
+    }
+
+    /**
+     * Returns the sequence number of a new scan request, the next results complete it.
+     */
+    private long beginScanRequest() {
+        synchronized (mWifiScanReceiver) {
+            return ++mRequestSeq;
         }
+    }
+
+    /**
+     * Give up on a scan request, so results arriving late are not taken for the next one.
+     *
+     * @param seq - sequence number of the request
+     */
+    private void abandonScanRequest(long seq) {
+        synchronized (mWifiScanReceiver) {
+            if (mCompletedSeq < seq) mCompletedSeq = seq;
+        }
+    }
 
+    private boolean areResultsUpdated() {
+        synchronized (mWifiScanReceiver) {
+            return mResultsUpdated;
+        }
+    }
+
+    class ConnectvityScanTask extends CancellableTask {
         @Override
-        protected String doInBackground(Integer... stime) {
+        protected String doWork() throws Exception {
             //android.os.Debug.waitForDebugger();
-            int waitCount = 0;
-            try {
-                mScanCompleted = false;
-                mWifiManager.startScan();
-                while (!mScanCompleted) {
-                    if (waitCount >= 100) {
-                        return "Timeout, scan results avaiable action didn't triggered";
-                    } else {
-                        Thread.sleep(100);
-                        waitCount += 1;
-                    }
-                }
-                waitCount = 0;
-                mScanCount += 1;
-                Log.d(PMCMainActivity.TAG, "Number of scan completed " + mScanCount);
-                publishProgress(mScanCount);
-            } catch (Exception e) {
-                Log.e(PMCMainActivity.TAG, e.toString());
-                return e.toString();
+            resetSignal();
+            long seq = beginScanRequest();
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+            mWifiManager.startScan();
+            long completedNanos = awaitSignal(SCAN_TIMEOUT_MS);
+            if (completedNanos < 0) {
+                abandonScanRequest(seq);
+                if (isCancelled()) return CANCELLED;
+                mLatency.recordTimeout();
+                return "Timeout, scan results avaiable action didn't triggered";
             }
+            if (!areResultsUpdated()) {
+                return "Scan " + seq + " failed, results not updated";
+            }
+            long durationMs = (completedNanos - startNanos) / 1000000L;
+            mLatency.recordScan(durationMs);
+            List<ScanResult> results = mWifiManager.getScanResults();
+            mResults.addScan(results);
+            mDiff.onScan(results);
+            mScanCount += 1;
+            Log.d(PMCMainActivity.TAG, "Number of scan completed " + mScanCount + " in "
+                    + durationMs + " ms");
+            mPMCService.updateProgressStatus("Total Connectivity scan completed :: "
+                    + mScanCount);
             return null;
         }
 
         @Override
-        protected void onCancelled(String result) {
-            mContext.getApplicationContext().unregisterReceiver(mWifiScanReceiver);
-            mWakeLock.release();
+        protected void onFinished(String error) {
+            if (error != null && !CANCELLED.equals(error)) {
+                Log.e(PMCMainActivity.TAG, error);
+                mPMCService.updateProgressStatus(error);
+            }
+            mWakeLock.release(mWakeLockToken);
+            mOverlap.onDone();
         }
+    }
 
+    class StressScanTask extends CancellableTask {
         @Override
-        protected void onProgressUpdate(Integer... values) {
-            Log.d(PMCMainActivity.TAG, "ConnectvityScanTask onProgressUpdate updating the UI");
-            mPMCMainActivity.updateProgressStatus("Total Connectivity scan completed :: "
-                    + Integer.toString(values[0].intValue()));
+        protected String doWork() throws Exception {
+            ScanThrottleTracker throttle = mThrottle;
+            synchronized (throttle) {
+                throttle.start(SystemClock.elapsedRealtime());
+            }
+            mStressTimeline.reset();
+            mStressTimeline.record(PMCService.WORKLOAD_CONN_SCAN, "start", null);
+            long backoffMs = 0;
+            while (!isCancelled()) {
+                if (backoffMs > 0 && !sleepUnlessCancelled(backoffMs)) break;
+                backoffMs = scanOnce(throttle);
+            }
+            synchronized (throttle) {
+                throttle.stop(SystemClock.elapsedRealtime());
+            }
+            mStressTimeline.record(PMCService.WORKLOAD_CONN_SCAN, "stop", getStressSummary());
+            mStressTimeline.flush();
+            return CANCELLED;
         }
 
-        @Override
-        protected void onPostExecute(String error) {
-            if (error != null) {
-                Log.e(PMCMainActivity.TAG, error);
-                mPMCMainActivity.updateProgressStatus(error);
+        /**
+         * Request one scan and wait for its results.
+         *
+         * @return time to back off before the next request, 0 if not throttled
+         */
+        private long scanOnce(ScanThrottleTracker throttle) throws InterruptedException {
+            resetSignal();
+            long seq = beginScanRequest();
+            long start = SystemClock.elapsedRealtime();
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+            if (!mWifiManager.startScan()) {
+                abandonScanRequest(seq);
+                return throttled(throttle, ScanThrottleTracker.Reason.REJECTED, seq);
+            }
+            long completedNanos = awaitSignal(SCAN_TIMEOUT_MS);
+            if (completedNanos < 0) {
+                abandonScanRequest(seq);
+                if (isCancelled()) return 0;
+                mLatency.recordTimeout();
+                return throttled(throttle, ScanThrottleTracker.Reason.TIMEOUT, seq);
             }
-            mContext.getApplicationContext().unregisterReceiver(mWifiScanReceiver);
-            mWakeLock.release();
+            List<ScanResult> results = mWifiManager.getScanResults();
+            if (!areResultsUpdated() || isStale(results, start)) {
+                return throttled(throttle, ScanThrottleTracker.Reason.STALE, seq);
+            }
+            long durationMs = (completedNanos - startNanos) / 1000000L;
+            mLatency.recordScan(durationMs);
+            mResults.addScan(results);
+            mDiff.onScan(results);
+            mScanCount += 1;
+            boolean recovered;
+            synchronized (throttle) {
+                recovered = throttle.onScan(SystemClock.elapsedRealtime(), durationMs);
+            }
+            if (recovered) {
+                mStressTimeline.record(PMCService.WORKLOAD_CONN_SCAN, "unthrottled",
+                        "scan " + seq);
+            }
+            return 0;
+        }
+
+        private long throttled(ScanThrottleTracker throttle, ScanThrottleTracker.Reason reason,
+                long seq) {
+            boolean wasThrottled;
+            long backoffMs;
+            synchronized (throttle) {
+                wasThrottled = throttle.isThrottled();
+                backoffMs = throttle.onThrottled(SystemClock.elapsedRealtime(), reason);
+            }
+            if (!wasThrottled) {
+                mStressTimeline.record(PMCService.WORKLOAD_CONN_SCAN, "throttled",
+                        reason + " scan " + seq);
+            }
+            Log.w(PMCMainActivity.TAG, "Connectivity scan " + seq + " throttled: " + reason
+                    + ", backing off " + backoffMs + " ms");
+            return backoffMs;
+        }
+
+        @Override
+        protected void onFinished(String error) {
+            mWakeLock.release(mWakeLockToken);
         }
+    }
+
+    /**
+     * Returns true if the newest result is older than the request, i.e. the framework
+     * answered with cached results instead of scanning.
+     *
+     * @param results - results delivered for the request
+     * @param requestTime - elapsedRealtime() of the request
+     */
+    private static boolean isStale(List<ScanResult> results, long requestTime) {
+        if (results == null || results.isEmpty()) return false;
+        long newest = 0;
+        for (int i = 0; i < results.size(); i++) {
+            newest = Math.max(newest, results.get(i).timestamp);
+        }
+        // ScanResult.timestamp is in microseconds since boot
+        return newest / 1000L < requestTime;
+    }
 
-        class WifiScanReceiver extends BroadcastReceiver {
-            @Override
-            public void onReceive(Context c, Intent intent) {
-                String action = intent.getAction();
-                if (action.equals(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION)) {
-                    Log.d(PMCMainActivity.TAG, "Wifi connection scan finished, results available.");
-                    mScanCompleted = true;
+    /**
+     * Completes the pending scan request, if any, with the results broadcast.
+     */
+    class WifiScanReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context c, Intent intent) {
+            if (!WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(intent.getAction())) return;
+            boolean pending;
+            synchronized (this) {
+                pending = mCompletedSeq < mRequestSeq;
+                if (pending) {
+                    mCompletedSeq = mRequestSeq;
+                    mResultsUpdated = intent.getBooleanExtra(
+                            WifiManager.EXTRA_RESULTS_UPDATED, true);
+                } else {
+                    mUnsolicited++;
                 }
             }
+            if (pending) {
+                Log.d(PMCMainActivity.TAG, "Wifi connection scan finished, results available.");
+                mActiveTask.signal();
+            }
         }
     }
 }
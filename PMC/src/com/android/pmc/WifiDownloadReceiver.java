@@ -1,13 +1,8 @@
 package com.android.pmc;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.os.AsyncTask;
-import android.os.PowerManager;
-import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.InputStream;
@@ -19,71 +14,74 @@ import java.net.URL;
 public class WifiDownloadReceiver extends BroadcastReceiver {
     private static final int DOWNLOAD_BUFFER_SIZE = 1024 * 4;
 
-    DownloadTask mDownloadTask;
-    PMCMainActivity mPMCMainActivity;
-    int mFileCount;
-    int mBytesCount;
+    final DownloadTask mDownloadTask = new DownloadTask();
+    PMCService mPMCService;
+    // Updated by the task thread, read by the commands
+    volatile int mFileCount;
+    volatile int mBytesCount;
     long mDownloadStartTime;
     String mDownloadURL;
     private Context mContext;
-    private PowerManager.WakeLock mWakeLock;
-    private int mAlarmInterval;
-    private AlarmManager mAlarmManager;
-    private PendingIntent mAlarmIntent;
+    private WakeLockManager.Lock mWakeLock;
+    // Released by the task of the run that acquired it, on the task thread
+    private volatile long mWakeLockToken;
+    private PeriodicScheduler mScheduler;
+    private OverlapPolicy mOverlap;
+    private WorkloadExecutor mTaskExecutor;
 
-    public WifiDownloadReceiver(PMCMainActivity activity, String url, int interval,
-                                AlarmManager alarmManager, PendingIntent alarmIntent) {
-        mPMCMainActivity = activity;
+    public WifiDownloadReceiver(PMCService service, String url, PeriodicScheduler scheduler,
+                                OverlapPolicy overlap, WorkloadExecutor taskExecutor) {
+        mPMCService = service;
         mDownloadURL = url;
         mFileCount = 0;
         mBytesCount = 0;
         mDownloadStartTime = -1;
-        mAlarmInterval = interval;
-        mAlarmManager = alarmManager;
-        mAlarmIntent = alarmIntent;
+        mScheduler = scheduler;
+        mOverlap = overlap;
+        mTaskExecutor = taskExecutor;
     }
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        if (mDownloadTask != null && mDownloadTask.getStatus() != AsyncTask.Status.FINISHED) {
-            Log.e(PMCMainActivity.TAG, "Previous download still running.");
-            try {
-                mDownloadTask.get();
-            } catch (Exception e) {
-                Log.e(PMCMainActivity.TAG, "Download cancelled.");
-            }
-        } else {
-            mContext = context;
-            PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
-            mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "WIFITEST");
-            // Acquire the lock
-            mWakeLock.acquire();
-            Log.i(PMCMainActivity.TAG, "Starting Download Task");
-            mDownloadTask = new DownloadTask();
-            mDownloadTask.execute(mDownloadURL);
-        }
-        scheduleDownload();
+        mScheduler.onAlarm();
+        mContext = context;
+        mOverlap.onTick(this::startDownloadTask);
+    }
+
+    private void startDownloadTask(int ticks) {
+        mWakeLock = mPMCService.getWakeLockManager().getLock(PMCService.WORKLOAD_DOWNLOAD);
+        // Acquire the lock, bounded in case the task never completes
+        mWakeLockToken = mWakeLock.acquire(WakeLockManager.TICK_TIMEOUT_MS);
+        Log.i(PMCMainActivity.TAG, "Starting Download Task for " + ticks + " ticks");
+        mTaskExecutor.execute("DownloadTask", mDownloadTask);
     }
 
     /**
-     * Schedule the next download.
+     * Start the download schedule.
      */
     public void scheduleDownload() {
         if (mDownloadStartTime == -1) {
             // Note down the start of all download activity
             mDownloadStartTime = System.currentTimeMillis();
         }
-        Log.i(PMCMainActivity.TAG, "Scheduling the next download after " + mAlarmInterval);
-        mAlarmManager.setAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                SystemClock.elapsedRealtime() + mAlarmInterval, mAlarmIntent);
+        mScheduler.start();
     }
 
     /**
      * Cancel the downloads.
      */
     public void cancelDownload() {
-        mAlarmManager.cancel(mAlarmIntent);
-        if (mDownloadTask != null) mDownloadTask.cancel(true);
+        mScheduler.stop();
+        mOverlap.cancel();
+        mDownloadTask.cancel();
+    }
+
+    public OverlapPolicy getOverlapPolicy() {
+        return mOverlap;
+    }
+
+    public PeriodicScheduler getScheduler() {
+        return mScheduler;
     }
 
     /**
@@ -96,14 +94,17 @@ public class WifiDownloadReceiver extends BroadcastReceiver {
         return (mBytesCount / durationInSeconds);
     }
 
-    class DownloadTask extends AsyncTask<String, Integer, String> {
+    class DownloadTask extends CancellableTask {
+        // Reused by every tick
+        private final byte[] mBuffer = new byte[DOWNLOAD_BUFFER_SIZE];
+
         @Override
-        protected String doInBackground(String... sUrl) {
+        protected String doWork() throws Exception {
             //android.os.Debug.waitForDebugger();
             Log.d(PMCMainActivity.TAG, "Starting background task for downloading file");
             HttpURLConnection connection = null;
             try {
-                URL url = new URL(sUrl[0]);
+                URL url = new URL(mDownloadURL);
                 connection = (HttpURLConnection) url.openConnection();
                 connection.connect();
                 // expect HTTP 200 OK, so we don't mistakenly save error report
@@ -116,6 +117,7 @@ public class WifiDownloadReceiver extends BroadcastReceiver {
                 // might be -1: server did not report the length
                 int fileLength = connection.getContentLength();
                 int bytesRead = downloadFile(connection);
+                if (isCancelled()) return CANCELLED;
                 if (fileLength != bytesRead) {
                     return "Expected file of size " + fileLength + " but only received "
                             + bytesRead;
@@ -123,11 +125,9 @@ public class WifiDownloadReceiver extends BroadcastReceiver {
                 Log.d(PMCMainActivity.TAG, "Downloaded file size " + fileLength);
                 mFileCount += 1;
                 mBytesCount += fileLength;
-                publishProgress(mFileCount, getDownloadRate());
-                Thread.sleep(10000);
-            } catch (Exception e) {
-                Log.e(PMCMainActivity.TAG, e.toString());
-                return e.toString();
+                mPMCService.updateProgressStatus("Total file downloaded :: "
+                        + mFileCount + ", Data rate :: " + getDownloadRate() + " bytes/sec");
+                sleepUnlessCancelled(10000);
             } finally {
                 if (connection != null) {
                     connection.disconnect();
@@ -137,25 +137,13 @@ public class WifiDownloadReceiver extends BroadcastReceiver {
         }
 
         @Override
-        protected void onCancelled(String result) {
-            mWakeLock.release();
-        }
-
-        @Override
-        protected void onProgressUpdate(Integer... values) {
-            Log.d(PMCMainActivity.TAG, "DownloadTask onProgressUpdate updating the UI");
-            mPMCMainActivity.updateProgressStatus("Total file downloaded :: "
-                    + values[0].toString() + ", Data rate :: "
-                    + values[1].toString() + " bytes/sec");
-        }
-
-        @Override
-        protected void onPostExecute(String error) {
-            if (error != null) {
+        protected void onFinished(String error) {
+            if (error != null && !CANCELLED.equals(error)) {
                 Log.e(PMCMainActivity.TAG, error);
-                mPMCMainActivity.updateProgressStatus(error);
+                mPMCService.updateProgressStatus(error);
             }
-            mWakeLock.release();
+            mWakeLock.release(mWakeLockToken);
+            mOverlap.onDone();
         }
 
         private int downloadFile(HttpURLConnection connection) {
@@ -166,8 +154,7 @@ public class WifiDownloadReceiver extends BroadcastReceiver {
             try {
                 inputStream = connection.getInputStream();
                 int bytesRead = -1;
-                byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
+                while (!isCancelled() && (bytesRead = inputStream.read(mBuffer)) != -1) {
                     totalBytesRead += bytesRead;
                 }
             } catch (Exception e) {
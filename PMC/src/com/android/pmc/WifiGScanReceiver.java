@@ -1,7 +1,5 @@
 package com.android.pmc;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -10,8 +8,6 @@ import android.net.wifi.WifiManager;
 import android.net.wifi.WifiScanner;
 import android.net.wifi.WifiScanner.ScanData;
 import android.net.wifi.WifiScanner.ScanSettings;
-import android.os.AsyncTask;
-import android.os.PowerManager;
 import android.os.SystemClock;
 import android.util.Log;
 
@@ -19,125 +15,158 @@ import android.util.Log;
  * Call wifi Gscan whenever an alarm is received.
  */
 public class WifiGScanReceiver extends BroadcastReceiver {
-    int mScanCount = 0;
-    GScanTask mGScanTask;
-    PMCMainActivity mPMCMainActivity;
+    // Time the results of a scan may take to be available
+    private static final long SCAN_TIMEOUT_MS = 10000;
+
+    // Updated by the task thread
+    volatile int mScanCount = 0;
+    final GScanTask mGScanTask = new GScanTask();
+    PMCService mPMCService;
     private WifiManager mWifiManager;
     private Context mContext;
-    private PowerManager.WakeLock mWakeLock;
+    private WakeLockManager.Lock mWakeLock;
+    // Released by the task of the run that acquired it, on the task thread
+    private volatile long mWakeLockToken;
     private WifiScanner mScan;
     private ScanSettings mScanSettings;
-    private int mAlarmInterval;
-    private AlarmManager mAlarmManager;
-    private PendingIntent mAlarmIntent;
-
-
-    public WifiGScanReceiver(PMCMainActivity activity, ScanSettings settings, int interval,
-                             AlarmManager alarmManager, PendingIntent alarmIntent) {
-        mPMCMainActivity = activity;
+    private PeriodicScheduler mScheduler;
+    private OverlapPolicy mOverlap;
+    private ScanLatencyStats.Entry mLatency;
+    private final ScanResultStore mResults = new ScanResultStore(
+            PMCService.WORKLOAD_GSCAN);
+    private final ScanDiffEngine mDiff;
+    private final FullResultAggregator mFullResults =
+            new FullResultAggregator(PMCService.WORKLOAD_GSCAN);
+    private WorkloadExecutor mTaskExecutor;
+
+    public WifiGScanReceiver(PMCService service, ScanSettings settings,
+                             PeriodicScheduler scheduler, OverlapPolicy overlap,
+                             WorkloadExecutor taskExecutor, ScanLatencyStats.Entry latency,
+                             int rssiThreshold) {
+        mPMCService = service;
         mScanSettings = settings;
         mScanCount = 0;
-        mAlarmInterval = interval;
-        mAlarmManager = alarmManager;
-        mAlarmIntent = alarmIntent;
+        mScheduler = scheduler;
+        mOverlap = overlap;
+        mTaskExecutor = taskExecutor;
+        mLatency = latency;
+        mDiff = new ScanDiffEngine(PMCService.WORKLOAD_GSCAN, rssiThreshold);
     }
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        if (mGScanTask != null && mGScanTask.getStatus() != AsyncTask.Status.FINISHED) {
-            Log.e(PMCMainActivity.TAG, "Previous Gscan still running.");
-            try {
-                mGScanTask.get();
-            } catch (Exception e) {
-                Log.e(PMCMainActivity.TAG, "Gscan cancelled.");
-            }
-        } else {
-            mContext = context;
-            PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
-            mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "WIFITEST");
-            // Acquire the lock
-            mWakeLock.acquire();
-            mScan = (WifiScanner) context.getSystemService(Context.WIFI_SCANNING_SERVICE);
-            Log.i(PMCMainActivity.TAG, "Starting GScan Task");
-            mGScanTask = new GScanTask();
-            mGScanTask.execute(mScanSettings);
-        }
-        scheduleGscan();
+        mScheduler.onAlarm();
+        mContext = context;
+        mOverlap.onTick(this::startGScanTask);
+    }
+
+    private void startGScanTask(int ticks) {
+        mWakeLock = mPMCService.getWakeLockManager().getLock(PMCService.WORKLOAD_GSCAN);
+        // Acquire the lock, bounded in case the task never completes
+        mWakeLockToken = mWakeLock.acquire(WakeLockManager.TICK_TIMEOUT_MS);
+        mScan = (WifiScanner) mContext.getSystemService(Context.WIFI_SCANNING_SERVICE);
+        Log.i(PMCMainActivity.TAG, "Starting GScan Task for " + ticks + " ticks");
+        mTaskExecutor.execute("GScanTask", mGScanTask);
     }
 
     /**
-     * Schedule the next Gscan.
+     * Start the Gscan schedule.
      */
     public void scheduleGscan() {
-        Log.i(PMCMainActivity.TAG, "Scheduling the next gscan after " + mAlarmInterval);
-        mAlarmManager.setAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                SystemClock.elapsedRealtime() + mAlarmInterval, mAlarmIntent);
+        mScheduler.start();
     }
 
     /**
      * Cancel the Gscans.
      */
     public void cancelGScan() {
-        mAlarmManager.cancel(mAlarmIntent);
-        if (mGScanTask != null) mGScanTask.cancel(true);
+        mScheduler.stop();
+        mOverlap.cancel();
+        mGScanTask.cancel();
     }
 
-    class GScanTask extends AsyncTask<ScanSettings, Integer, String> {
-        WifiScanListener mWifiScanListener;
-        Boolean mScanCompleted = false;
+    public OverlapPolicy getOverlapPolicy() {
+        return mOverlap;
+    }
 
-        GScanTask() {
-            mWifiScanListener = new WifiScanListener();
-        }
+    public PeriodicScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Returns the results of all the scans of this run.
+     */
+    public ScanResultStore getResultStore() {
+        return mResults;
+    }
+
+    /**
+     * Returns the changes between consecutive scans of this run.
+     */
+    public ScanDiffEngine getDiffEngine() {
+        return mDiff;
+    }
+
+    /**
+     * Returns the per-BSSID aggregate of the full results of this run.
+     */
+    public FullResultAggregator getFullResults() {
+        return mFullResults;
+    }
+
+    /**
+     * Returns the number of scans completed and their latency.
+     */
+    public String getScanSummary() {
+        return mScanCount + " scans, latency[" + mLatency.getSummary() + "]";
+    }
+
+    class GScanTask extends CancellableTask {
+        final WifiScanListener mWifiScanListener = new WifiScanListener();
+        // Set by the listener when the framework fails the scan, null otherwise
+        private volatile String mFailure;
 
         @Override
-        protected String doInBackground(ScanSettings... settings) {
+        protected String doWork() throws Exception {
             //android.os.Debug.waitForDebugger();
             Log.d(PMCMainActivity.TAG, "Starting background task for gscan with channel");
-            int waitCount = 0;
+            resetSignal();
+            mFailure = null;
+            long completedNanos;
+            long startNanos = SystemClock.elapsedRealtimeNanos();
             try {
-                mScanCompleted = false;
-                mScan.startBackgroundScan(settings[0], mWifiScanListener);
-                while (!mScanCompleted) {
-                    if (waitCount >= 100) {
-                        return "Timeout, scan results avaiable action didn't triggered";
-                    } else {
-                        Thread.sleep(100);
-                        waitCount += 1;
-                    }
-                }
-                mScanCount += 1;
-                waitCount = 0;
-                Log.d(PMCMainActivity.TAG, "Number of scan completed " + mScanCount);
-                publishProgress(mScanCount);
-            } catch (Exception e) {
-                Log.e(PMCMainActivity.TAG, e.toString());
-                return e.toString();
+                mScan.startBackgroundScan(mScanSettings, mWifiScanListener);
+                completedNanos = awaitSignal(SCAN_TIMEOUT_MS);
             } finally {
                 mScan.stopBackgroundScan(mWifiScanListener);
             }
+            if (completedNanos < 0) {
+                if (isCancelled()) return CANCELLED;
+                mLatency.recordTimeout();
+                return "Timeout, scan results avaiable action didn't triggered";
+            }
+            String failure = mFailure;
+            if (failure != null) {
+                mLatency.recordFailure();
+                return "Gscan failed: " + failure;
+            }
+            long durationMs = (completedNanos - startNanos) / 1000000L;
+            mLatency.recordScan(durationMs);
+            mScanCount += 1;
+            Log.d(PMCMainActivity.TAG, "Number of scan completed " + mScanCount + " in "
+                    + durationMs + " ms");
+            mPMCService.updateProgressStatus("Total Gscan completed :: " + mScanCount);
             return null;
         }
 
         @Override
-        protected void onCancelled(String result) {
-            mWakeLock.release();
-        }
-
-        @Override
-        protected void onProgressUpdate(Integer... values) {
-            Log.d(PMCMainActivity.TAG, "GScanTask onProgressUpdate updating the UI");
-            mPMCMainActivity.updateProgressStatus("Total Gscan completed :: "
-                    + Integer.toString(values[0].intValue()));
-        }
-
-        @Override
-        protected void onPostExecute(String error) {
-            if (error != null) {
+        protected void onFinished(String error) {
+            if (error != null && !CANCELLED.equals(error)) {
                 Log.e(PMCMainActivity.TAG, error);
-                mPMCMainActivity.updateProgressStatus(error);
+                mPMCService.updateProgressStatus(error);
             }
-            mWakeLock.release();
+            mWakeLock.release(mWakeLockToken);
+            mOverlap.onDone();
         }
 
         private class WifiScanListener implements WifiScanner.ScanListener {
@@ -152,7 +181,10 @@ public class WifiGScanReceiver extends BroadcastReceiver {
 
             @Override
             public void onFailure(int reason, String description) {
-                Log.d(PMCMainActivity.TAG, "onFailure called");
+                Log.d(PMCMainActivity.TAG, "onFailure called: " + reason + " " + description);
+                // Wake up the task rather than let it wait for the timeout
+                mFailure = reason + " " + description;
+                signal();
             }
 
             @Override
@@ -162,13 +194,20 @@ public class WifiGScanReceiver extends BroadcastReceiver {
 
             @Override
             public void onFullResult(ScanResult fullScanResult) {
-                Log.d(PMCMainActivity.TAG, "onFullResult called");
+                mFullResults.onFullResult(fullScanResult);
             }
 
             @Override
             public void onResults(ScanData[] results) {
                 Log.d(PMCMainActivity.TAG, "onResult WifiScanListener called");
-                mScanCompleted = true;
+                mFullResults.onBatch(results == null ? 0 : results.length);
+                if (results != null) {
+                    for (ScanData data : results) {
+                        mResults.addScan(data.getResults());
+                        mDiff.onScan(data.getResults());
+                    }
+                }
+                signal();
             }
         }
     }
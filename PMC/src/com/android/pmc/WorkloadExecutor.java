@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Serial executor of one workload, backed by its own HandlerThread.
+ *
+ * Commands and alarm callbacks of a workload run here instead of on the UI thread, so a
+ * workload that blocks can only delay itself. For every task label the time spent waiting in
+ * the queue and the time spent running are recorded, in microseconds. The thread is only
+ * started by the first task, so an unused workload costs nothing at startup. Once quit, the
+ * executor drops the tasks it is given, and logs them.
+ */
+public class WorkloadExecutor implements CommandRegistry.CommandExecutor {
+    private static final List<WorkloadExecutor> sExecutors = new ArrayList<WorkloadExecutor>();
+
+    private final String mName;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private boolean mQuit;
+    private final Map<String, TaskStats> mStats = new TreeMap<String, TaskStats>();
+
+    /**
+     * Queue and run time of the tasks sharing one label.
+     */
+    static class TaskStats {
+        final LatencyHistogram mQueueLatency = new LatencyHistogram();
+        final LatencyHistogram mRunTime = new LatencyHistogram();
+    }
+
+    /**
+     * Constructor, the thread of the workload is started on first use.
+     *
+     * @param name - name of the workload, also used for its thread
+     */
+    public WorkloadExecutor(String name) {
+        mName = name;
+        synchronized (sExecutors) {
+            sExecutors.add(this);
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns the Handler of the workload thread, e.g. to register receivers on it.
+     * Starts the thread if it is not running yet.
+     *
+     * @throws IllegalStateException if the executor quit, a new thread would never be quit
+     */
+    public synchronized Handler getHandler() {
+        if (mQuit) throw new IllegalStateException(mName + " executor quit");
+        return startHandler();
+    }
+
+    private synchronized Handler startHandler() {
+        if (mHandler == null) {
+            mThread = new HandlerThread("PMC-" + mName, Process.THREAD_PRIORITY_DEFAULT);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+        return mHandler;
+    }
+
+    /**
+     * Queue a task on the workload thread. Never blocks the caller.
+     *
+     * @param label - label the latencies of the task are recorded under
+     * @param task - task to run
+     */
+    @Override
+    public void execute(final String label, final Runnable task) {
+        Handler handler = getHandlerUnlessQuit(label);
+        if (handler == null) return;
+        final long queuedTime = nowMicros();
+        handler.post(() -> {
+            long startTime = nowMicros();
+            try {
+                task.run();
+            } finally {
+                long endTime = nowMicros();
+                TaskStats stats = getStats(label);
+                stats.mQueueLatency.record(startTime - queuedTime);
+                stats.mRunTime.record(endTime - startTime);
+                if (Log.isLoggable(PMCMainActivity.TAG, Log.VERBOSE)) {
+                    Log.v(PMCMainActivity.TAG, mName + "/" + label + " queued "
+                            + (startTime - queuedTime) + " us, ran " + (endTime - startTime)
+                            + " us");
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue a task to run after a delay on the workload thread.
+     *
+     * @param label - label the latencies of the task are recorded under
+     * @param task - task to run
+     * @param delayMillis - delay before the task becomes runnable
+     */
+    public void executeDelayed(final String label, final Runnable task, long delayMillis) {
+        Handler handler = getHandlerUnlessQuit(label);
+        if (handler == null) return;
+        handler.postDelayed(() -> execute(label, task), delayMillis);
+    }
+
+    private synchronized Handler getHandlerUnlessQuit(String label) {
+        if (mQuit) {
+            Log.w(PMCMainActivity.TAG, mName + "/" + label + " dropped, the executor quit");
+            return null;
+        }
+        return startHandler();
+    }
+
+    /**
+     * Returns true if the caller runs on the workload thread.
+     */
+    public synchronized boolean isCurrentThread() {
+        return mThread != null && Thread.currentThread() == mThread;
+    }
+
+    private TaskStats getStats(String label) {
+        synchronized (mStats) {
+            TaskStats stats = mStats.get(label);
+            if (stats == null) {
+                stats = new TaskStats();
+                mStats.put(label, stats);
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Returns one line per task label with queue latency and run time histograms.
+     */
+    public String getStatsSummary() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (mStats) {
+            for (Map.Entry<String, TaskStats> entry : mStats.entrySet()) {
+                sb.append(mName).append('/').append(entry.getKey())
+                        .append(" queue[").append(entry.getValue().mQueueLatency.toSummary("us"))
+                        .append("] run[").append(entry.getValue().mRunTime.toSummary("us"))
+                        .append("]\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the statistics of all the live workload executors.
+     */
+    public static String getAllStatsSummary() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (sExecutors) {
+            for (WorkloadExecutor executor : sExecutors) {
+                sb.append(executor.getStatsSummary());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Stop the workload thread once the tasks already queued have run. Tasks given later are
+     * dropped.
+     */
+    public void quit() {
+        synchronized (sExecutors) {
+            sExecutors.remove(this);
+        }
+        synchronized (this) {
+            mQuit = true;
+            if (mThread != null) mThread.quitSafely();
+            mThread = null;
+            mHandler = null;
+        }
+    }
+
+    private static long nowMicros() {
+        return SystemClock.elapsedRealtimeNanos() / 1000;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Registry of the PMC components, with the time each of them took to create.
+ *
+ * Components that enable a radio or bind to a profile are registered lazily and only created
+ * by the first command that needs them, so e.g. a Wi-Fi only test never turns Bluetooth on.
+ * Components that are cheap enough to be created in onCreate() are timed through createNow().
+ */
+public class WorkloadRegistry {
+    private static final String TAG = "PMCSTARTUP";
+
+    private final List<Workload<?>> mWorkloads = new ArrayList<Workload<?>>();
+
+    /**
+     * Creates one component.
+     */
+    public interface Factory<T> {
+        /**
+         * Returns the component, or null if it can't be created now, e.g. the radio it needs
+         * did not turn on.
+         */
+        T create();
+    }
+
+    /**
+     * Component created on the first call to get().
+     */
+    public static class Workload<T> {
+        private final String mName;
+        private final Factory<T> mFactory;
+        private boolean mCreated;
+        private T mInstance;
+        private long mCreateTimeUs = -1;
+        private long mCreatedAt;
+
+        Workload(String name, Factory<T> factory) {
+            mName = name;
+            mFactory = factory;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the component, creating it first if it was not created yet. Returns null if
+         * the factory failed, nothing is cached then and the next call tries again.
+         */
+        public synchronized T get() {
+            if (!mCreated) {
+                long start = nowMicros();
+                T instance = mFactory.create();
+                long createTimeUs = nowMicros() - start;
+                if (instance == null) {
+                    Log.e(TAG, "Creating " + mName + " failed after " + createTimeUs + " us");
+                    return null;
+                }
+                mInstance = instance;
+                mCreateTimeUs = createTimeUs;
+                mCreatedAt = SystemClock.elapsedRealtime();
+                mCreated = true;
+                Log.i(TAG, "Created " + mName + " in " + mCreateTimeUs + " us");
+            }
+            return mInstance;
+        }
+
+        /**
+         * Returns the component if it was already created, null otherwise. Never creates it.
+         */
+        public synchronized T peek() {
+            return mInstance;
+        }
+
+        public synchronized boolean isCreated() {
+            return mCreated;
+        }
+
+        synchronized void appendSummary(StringBuilder sb) {
+            sb.append(mName).append(": ");
+            if (mCreated) {
+                sb.append(mCreateTimeUs).append(" us at ").append(mCreatedAt).append(" ms");
+            } else {
+                sb.append("not created");
+            }
+            sb.append('\n');
+        }
+    }
+
+    /**
+     * Register a component created on first use.
+     *
+     * @param name - name of the component, used in logs and in the startup summary
+     * @param factory - creates the component, called until it succeeds once
+     */
+    public <T> Workload<T> register(String name, Factory<T> factory) {
+        Workload<T> workload = new Workload<T>(name, factory);
+        synchronized (mWorkloads) {
+            mWorkloads.add(workload);
+        }
+        return workload;
+    }
+
+    /**
+     * Create a component right away, recording its creation time like a lazy one.
+     *
+     * @param name - name of the component, used in logs and in the startup summary
+     * @param factory - creates the component
+     */
+    public <T> T createNow(String name, Factory<T> factory) {
+        return register(name, factory).get();
+    }
+
+    /**
+     * Returns one line per component with its creation time in microseconds and the
+     * elapsedRealtime() it was created at.
+     */
+    public String getStartupSummary() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (mWorkloads) {
+            for (Workload<?> workload : mWorkloads) {
+                workload.appendSummary(sb);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static long nowMicros() {
+        return SystemClock.elapsedRealtimeNanos() / 1000;
+    }
+}
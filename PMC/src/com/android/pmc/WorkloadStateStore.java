@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Persists which long-running workloads are started, with the command that started them, so
+ * PMCService can start them again after its process was killed and restarted.
+ *
+ * Each workload is one SharedPreferences entry holding a JSON object with the start command,
+ * its parameters and the elapsedRealtime() it was started at.
+ */
+public class WorkloadStateStore {
+    private static final String TAG = "PMCSTATE";
+    private static final String PREFS_NAME = "pmc_workloads";
+    private static final String KEY_COMMAND = "Command";
+    private static final String KEY_PARAMS = "Params";
+    private static final String KEY_STARTED_AT = "StartedAt";
+
+    private final SharedPreferences mPrefs;
+
+    /**
+     * Saved state of one workload.
+     */
+    public static class Entry {
+        public final String mCommand;
+        public final Map<String, String> mParams;
+        public final long mStartedAt;
+
+        Entry(String command, Map<String, String> params, long startedAt) {
+            mCommand = command;
+            mParams = params;
+            mStartedAt = startedAt;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context - context the preferences are read from
+     */
+    public WorkloadStateStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Record that a workload was started.
+     *
+     * @param workload - name of the workload
+     * @param command - command that started it
+     * @param params - parameters of the command, as supplied by the client
+     */
+    public void saveStarted(String workload, String command, Map<String, String> params) {
+        try {
+            JSONObject obj = new JSONObject();
+            obj.put(KEY_COMMAND, command);
+            obj.put(KEY_PARAMS, new JSONObject(params));
+            obj.put(KEY_STARTED_AT, SystemClock.elapsedRealtime());
+            mPrefs.edit().putString(workload, obj.toString()).apply();
+        } catch (JSONException e) {
+            Log.e(TAG, "Can't save state of " + workload + ": " + e);
+        }
+    }
+
+    /**
+     * Record that a workload was stopped, it will not be resumed.
+     *
+     * @param workload - name of the workload
+     */
+    public void saveStopped(String workload) {
+        mPrefs.edit().remove(workload).apply();
+    }
+
+    /**
+     * Returns the saved state of all the workloads that were running, keyed by workload name.
+     */
+    public Map<String, Entry> load() {
+        Map<String, Entry> entries = new TreeMap<String, Entry>();
+        for (Map.Entry<String, ?> pref : mPrefs.getAll().entrySet()) {
+            try {
+                JSONObject obj = new JSONObject(String.valueOf(pref.getValue()));
+                JSONObject jsonParams = obj.getJSONObject(KEY_PARAMS);
+                Map<String, String> params = new HashMap<String, String>();
+                Iterator<String> keys = jsonParams.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    params.put(key, jsonParams.getString(key));
+                }
+                entries.put(pref.getKey(), new Entry(obj.getString(KEY_COMMAND), params,
+                        obj.getLong(KEY_STARTED_AT)));
+            } catch (JSONException e) {
+                Log.e(TAG, "Dropping bad state of " + pref.getKey() + ": " + e);
+                saveStopped(pref.getKey());
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns one line per running workload with the command that started it.
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Entry> entry : load().entrySet()) {
+            Entry state = entry.getValue();
+            sb.append(entry.getKey()).append(": ").append(state.mCommand)
+                    .append(' ').append(state.mParams)
+                    .append(" started at ").append(state.mStartedAt).append(" ms\n");
+        }
+        return sb.toString();
+    }
+}
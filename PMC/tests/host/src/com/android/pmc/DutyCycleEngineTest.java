@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JVM tests of DutyCycleEngine, driven by a VirtualClock or by a clock delivering late timers.
+ */
+public class DutyCycleEngineTest {
+
+    /**
+     * Records the transitions as "name@time" strings.
+     */
+    private static class RecordingListener implements DutyCycleEngine.Listener {
+        final List<String> mEvents = new ArrayList<String>();
+        final List<Long> mStopTimes = new ArrayList<Long>();
+        final List<Integer> mModes = new ArrayList<Integer>();
+        DutyCycleEngine.Clock mClock;
+        int mFinished = -1;
+
+        @Override
+        public void onSegmentStart(int index, DutyCycleEngine.Segment segment) {
+            mEvents.add("S" + index + "@" + mClock.now());
+            mModes.add(segment.mMode);
+        }
+
+        @Override
+        public void onSegmentEnd(int index, DutyCycleEngine.Segment segment) {
+            mEvents.add("E" + index + "@" + mClock.now());
+        }
+
+        @Override
+        public void onStart(int cycle) {
+            mEvents.add("on" + cycle + "@" + mClock.now());
+        }
+
+        @Override
+        public void onStop(int cycle) {
+            mEvents.add("off" + cycle + "@" + mClock.now());
+            mStopTimes.add(mClock.now());
+        }
+
+        @Override
+        public void onFinished(int cycles) {
+            mEvents.add("done" + cycles + "@" + mClock.now());
+            mFinished = cycles;
+        }
+
+        List<String> transitions() {
+            List<String> transitions = new ArrayList<String>();
+            for (String event : mEvents) {
+                if (event.startsWith("on") || event.startsWith("off")) transitions.add(event);
+            }
+            return transitions;
+        }
+    }
+
+    /**
+     * Clock whose timers fire late by a per-timer amount, like alarms deferred by the system.
+     */
+    private static class LateClock implements DutyCycleEngine.Clock,
+            DutyCycleEngine.TimerSource {
+        final Map<Integer, Long> mLateness = new HashMap<Integer, Long>();
+        long mDefaultLateness;
+        long mNow;
+        long mTriggerTime = -1;
+        int mFired;
+
+        @Override
+        public long now() {
+            return mNow;
+        }
+
+        @Override
+        public void schedule(long triggerTime) {
+            mTriggerTime = triggerTime;
+        }
+
+        @Override
+        public void cancel() {
+            mTriggerTime = -1;
+        }
+
+        void run(DutyCycleEngine engine) {
+            while (mTriggerTime >= 0) {
+                Long late = mLateness.get(mFired);
+                // A timer can not fire before the one that armed it
+                mNow = Math.max(mNow, mTriggerTime + (late == null ? mDefaultLateness : late));
+                mTriggerTime = -1;
+                mFired++;
+                engine.onTimer();
+            }
+        }
+    }
+
+    /**
+     * The alarm chain BleScanReceiver ran before the engine, for one mode: alarms numbered
+     * from 1, the odd ones start a scan and the even ones stop it, each one armed relative to
+     * the delivery of the previous one. The test ends after numAlarms alarms, or at the first
+     * stop where (stop - mStartTestTime) >= ((on + off) * numAlarms / 2 + first).
+     *
+     * @return the "on"/"off" transitions, with every alarm delivered late by lateMs
+     */
+    private static List<String> legacyTransitions(long firstMs, long onMs, long offMs,
+            int repetitions, long lateMs) {
+        List<String> transitions = new ArrayList<String>();
+        int numAlarms = repetitions * 2;
+        long startTestTime = 0;
+        long now = startTestTime + firstMs + lateMs;
+        int currentAlarm = 1;
+        while (true) {
+            // START_SCAN
+            int cycle = (currentAlarm + 1) / 2;
+            transitions.add("on" + cycle + "@" + now);
+            if (currentAlarm >= numAlarms) break;
+            currentAlarm++;
+            now += onMs + lateMs;
+            // STOP_SCAN
+            transitions.add("off" + cycle + "@" + now);
+            if (now - startTestTime >= (onMs + offMs) * numAlarms / 2 + firstMs) break;
+            if (currentAlarm >= numAlarms) break;
+            currentAlarm++;
+            now += offMs + lateMs;
+        }
+        return transitions;
+    }
+
+    private static RecordingListener runVirtual(long firstMs, List<DutyCycleEngine.Segment> plan) {
+        DutyCycleEngine.VirtualClock clock = new DutyCycleEngine.VirtualClock();
+        RecordingListener listener = new RecordingListener();
+        listener.mClock = clock;
+        DutyCycleEngine engine = new DutyCycleEngine(clock, clock, listener);
+        engine.start(firstMs, plan);
+        clock.run(engine::onTimer, Long.MAX_VALUE);
+        assertFalse(engine.isRunning());
+        return listener;
+    }
+
+    private static DutyCycleEngine.Segment segment(int mode, long onMs, long offMs, int repeats) {
+        return new DutyCycleEngine.Segment(mode, onMs, offMs, repeats);
+    }
+
+    @Test
+    public void testSingleSegmentMatchesLegacyAlarms() {
+        long[][] plans = {
+            // first, on, off, repetitions
+            {1000, 3000, 2000, 1},
+            {1000, 3000, 2000, 5},
+            {30000, 60000, 0, 4},
+            {5000, 1000, 59000, 60},
+            {0, 10, 10, 1000},
+        };
+        for (long[] p : plans) {
+            RecordingListener listener = runVirtual(p[0],
+                    Collections.singletonList(segment(2, p[1], p[2], (int) p[3])));
+            assertEquals(Arrays.toString(p),
+                    legacyTransitions(p[0], p[1], p[2], (int) p[3], 0), listener.transitions());
+            assertEquals((int) p[3], listener.mFinished);
+        }
+    }
+
+    @Test
+    public void testBudgetConditionMatchesLegacy() {
+        // Every stop is checked against the budget exactly like the legacy
+        // (mScanEndTime - mStartTestTime) < (on + off) * mNumAlarms / 2 + first condition
+        long first = 2000;
+        long on = 3000;
+        long off = 1000;
+        int repetitions = 6;
+        long budget = (on + off) * (repetitions * 2) / 2 + first;
+        LateClock clock = new LateClock();
+        RecordingListener listener = new RecordingListener();
+        listener.mClock = clock;
+        DutyCycleEngine engine = new DutyCycleEngine(clock, clock, listener);
+        // The stop of cycle 3 (timer 5) is delivered past the budget
+        clock.mLateness.put(5, budget);
+        engine.start(first, Collections.singletonList(segment(0, on, off, repetitions)));
+        assertEquals(budget, engine.getBudgetMs());
+        clock.run(engine);
+
+        assertEquals(3, listener.mFinished);
+        for (int i = 0; i < listener.mStopTimes.size(); i++) {
+            boolean legacyContinues = listener.mStopTimes.get(i) < budget
+                    && (i + 1) * 2 < repetitions * 2;
+            boolean last = i == listener.mStopTimes.size() - 1;
+            assertEquals("stop " + (i + 1), legacyContinues, !last);
+        }
+    }
+
+    @Test
+    public void testBudgetIsSumOfSegments() {
+        DutyCycleEngine.VirtualClock clock = new DutyCycleEngine.VirtualClock();
+        DutyCycleEngine engine = new DutyCycleEngine(clock, clock, new RecordingListener());
+        engine.start(500, Arrays.asList(segment(0, 100, 50, 3), segment(1, 200, 0, 2)));
+        assertEquals(500 + 150 * 3 + 200 * 2, engine.getBudgetMs());
+    }
+
+    @Test
+    public void testMultiSegmentPlan() {
+        RecordingListener listener = runVirtual(1000, Arrays.asList(
+                segment(0, 3000, 2000, 2), segment(2, 1500, 500, 1), segment(1, 100, 0, 2)));
+        assertEquals(Arrays.asList(
+                "S0@1000", "on1@1000", "off1@4000", "on2@6000", "off2@9000", "E0@9000",
+                "S1@11000", "on3@11000", "off3@12500", "E1@12500",
+                "S2@13000", "on4@13000", "off4@13100", "on5@13100", "off5@13200", "E2@13200",
+                "done5@13200"), listener.mEvents);
+        assertEquals(Arrays.asList(0, 2, 1), listener.mModes);
+    }
+
+    @Test
+    public void testMultiSegmentPlanEndsEarlyOverBudget() {
+        LateClock clock = new LateClock();
+        RecordingListener listener = new RecordingListener();
+        listener.mClock = clock;
+        DutyCycleEngine engine = new DutyCycleEngine(clock, clock, listener);
+        // Second stop (timer 3) delivered 10 s late, past the 9 s budget
+        clock.mLateness.put(3, 10000L);
+        engine.start(1000, Arrays.asList(segment(0, 1000, 1000, 2), segment(1, 1000, 1000, 2)));
+        clock.run(engine);
+        assertEquals(Arrays.asList("S0@1000", "on1@1000", "off1@2000", "on2@3000",
+                "off2@14000", "E0@14000", "done2@14000"), listener.mEvents);
+    }
+
+    @Test
+    public void testLateTimersDoNotDrift() {
+        long first = 1000;
+        long on = 2000;
+        long off = 3000;
+        int repeats = 100;
+        long late = 300;
+        LateClock clock = new LateClock();
+        clock.mDefaultLateness = late;
+        RecordingListener listener = new RecordingListener();
+        listener.mClock = clock;
+        DutyCycleEngine engine = new DutyCycleEngine(clock, clock, listener);
+        engine.start(first, Collections.singletonList(segment(0, on, off, repeats)));
+        clock.run(engine);
+
+        assertEquals(repeats, listener.mFinished);
+        for (int i = 0; i < repeats; i++) {
+            long planned = first + i * (on + off) + on;
+            assertEquals("stop " + (i + 1), planned + late, (long) listener.mStopTimes.get(i));
+        }
+        assertEquals(late, engine.getMaxLateMs());
+        // The legacy chain re-armed each alarm from the delivery of the previous one, so the
+        // lateness piled up until the budget cut the test short: 2 * late per cycle means
+        // the stop of cycle 90 lands past the 501 s budget
+        List<String> legacy = legacyTransitions(first, on, off, repeats, late);
+        assertEquals("off90@" + (first + 90 * on + 89 * off + 90 * 2 * late),
+                legacy.get(legacy.size() - 1));
+    }
+
+    @Test
+    public void testVeryLateTimerShortensOnlyItsPeriod() {
+        LateClock clock = new LateClock();
+        RecordingListener listener = new RecordingListener();
+        listener.mClock = clock;
+        DutyCycleEngine engine = new DutyCycleEngine(clock, clock, listener);
+        // The second start (timer 2) is delivered after the end of its on period
+        clock.mLateness.put(2, 2500L);
+        engine.start(0, Collections.singletonList(segment(0, 2000, 1000, 3)));
+        clock.run(engine);
+        assertEquals(Arrays.asList("on1@0", "off1@2000", "on2@5500", "off2@5500", "on3@6000",
+                "off3@8000"), listener.transitions());
+        assertEquals(2500, engine.getMaxLateMs());
+    }
+
+    @Test
+    public void testCancelIgnoresLateTimer() {
+        DutyCycleEngine.VirtualClock clock = new DutyCycleEngine.VirtualClock();
+        RecordingListener listener = new RecordingListener();
+        listener.mClock = clock;
+        DutyCycleEngine engine = new DutyCycleEngine(clock, clock, listener);
+        engine.start(100, Collections.singletonList(segment(0, 100, 100, 5)));
+        clock.run(engine::onTimer, 150);
+        assertTrue(engine.isOn());
+        engine.cancel();
+        assertFalse(engine.isRunning());
+        engine.onTimer();
+        assertEquals(Arrays.asList("S0@100", "on1@100"), listener.mEvents);
+        assertEquals(-1, listener.mFinished);
+    }
+
+    @Test
+    public void testRestartReplacesPlan() {
+        DutyCycleEngine.VirtualClock clock = new DutyCycleEngine.VirtualClock();
+        RecordingListener listener = new RecordingListener();
+        listener.mClock = clock;
+        DutyCycleEngine engine = new DutyCycleEngine(clock, clock, listener);
+        engine.start(100, Collections.singletonList(segment(0, 100, 100, 5)));
+        clock.run(engine::onTimer, 250);
+        engine.start(0, Collections.singletonList(segment(1, 50, 0, 1)));
+        clock.run(engine::onTimer, Long.MAX_VALUE);
+        assertEquals(1, listener.mFinished);
+        assertEquals(Arrays.asList(0, 1), listener.mModes);
+    }
+
+    @Test
+    public void testVirtualClockLimitAndFiredCount() {
+        DutyCycleEngine.VirtualClock clock = new DutyCycleEngine.VirtualClock();
+        RecordingListener listener = new RecordingListener();
+        listener.mClock = clock;
+        DutyCycleEngine engine = new DutyCycleEngine(clock, clock, listener);
+        // Eight hours of one second scans every minute
+        engine.start(60000, Collections.singletonList(segment(0, 1000, 59000, 480)));
+        assertEquals(60000, clock.run(engine::onTimer, 60000));
+        assertEquals(1, clock.getFiredCount());
+        long end = clock.run(engine::onTimer, Long.MAX_VALUE);
+        assertEquals(60000 + 479 * 60000 + 1000, end);
+        assertEquals(480 * 2, clock.getFiredCount());
+        assertEquals(480, listener.mFinished);
+    }
+
+    @Test
+    public void testParseSchedule() throws CommandException {
+        List<DutyCycleEngine.Segment> segments =
+                DutyCycleEngine.parseSchedule("0:30:10:5, 2 : 1 : 0 : 1");
+        assertEquals(2, segments.size());
+        assertEquals(0, segments.get(0).mMode);
+        assertEquals(30000, segments.get(0).mOnMs);
+        assertEquals(10000, segments.get(0).mOffMs);
+        assertEquals(5, segments.get(0).mRepeats);
+        assertEquals(2, segments.get(1).mMode);
+        assertEquals(1000, segments.get(1).mOnMs);
+        assertEquals(0, segments.get(1).mOffMs);
+        assertEquals(1, segments.get(1).mRepeats);
+    }
+
+    @Test
+    public void testParseScheduleRejectsMalformedSegments() {
+        String[] invalid = {"", "0:30:10", "0:30:10:5:1", "0:x:10:5", "0:30:10:0", "0:-1:10:5",
+            "0:30:10:5,,1:30:10:5"};
+        for (String schedule : invalid) {
+            try {
+                DutyCycleEngine.parseSchedule(schedule);
+                fail("accepted \"" + schedule + "\"");
+            } catch (CommandException expected) {
+                // malformed
+            }
+        }
+    }
+
+    @Test
+    public void testStartRejectsEmptyPlan() {
+        DutyCycleEngine.VirtualClock clock = new DutyCycleEngine.VirtualClock();
+        DutyCycleEngine engine = new DutyCycleEngine(clock, clock, new RecordingListener());
+        try {
+            engine.start(0, Collections.<DutyCycleEngine.Segment>emptyList());
+            fail("accepted an empty plan");
+        } catch (IllegalArgumentException expected) {
+            assertFalse(engine.isRunning());
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host tests of JsonRpcServer, run against a fake Dispatcher.
+ */
+public class JsonRpcServerTest {
+    private static final int TIMEOUT_MS = 5000;
+
+    /**
+     * Records every dispatched command. Commands complete right away with "method:params",
+     * unless deferred, in which case the test completes them through the recorded callback.
+     */
+    private static class FakeDispatcher implements JsonRpcServer.Dispatcher {
+        final BlockingQueue<Call> mCalls = new LinkedBlockingQueue<Call>();
+        volatile boolean mDeferred;
+
+        @Override
+        public void dispatch(String method, Map<String, String> params,
+                JsonRpcServer.ResultCallback callback) {
+            Call call = new Call(method, new TreeMap<String, String>(params), callback);
+            mCalls.add(call);
+            if (!mDeferred) call.complete();
+        }
+
+        Call next() throws InterruptedException {
+            Call call = mCalls.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("command not dispatched", call);
+            return call;
+        }
+    }
+
+    private static class Call {
+        final String mMethod;
+        final Map<String, String> mParams;
+        final JsonRpcServer.ResultCallback mCallback;
+
+        Call(String method, Map<String, String> params, JsonRpcServer.ResultCallback callback) {
+            mMethod = method;
+            mParams = params;
+            mCallback = callback;
+        }
+
+        void complete() {
+            mCallback.onResult(mMethod + ":" + mParams, null);
+        }
+    }
+
+    private static class Client implements AutoCloseable {
+        final Socket mSocket;
+        final OutputStream mOut;
+        final BufferedReader mIn;
+
+        Client(int port) throws IOException {
+            mSocket = new Socket(InetAddress.getLoopbackAddress(), port);
+            mSocket.setSoTimeout(TIMEOUT_MS);
+            mSocket.setTcpNoDelay(true);
+            mOut = mSocket.getOutputStream();
+            mIn = new BufferedReader(
+                    new InputStreamReader(mSocket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        void send(String s) throws IOException {
+            mOut.write(s.getBytes(StandardCharsets.UTF_8));
+            mOut.flush();
+        }
+
+        String read() throws IOException {
+            String line = mIn.readLine();
+            assertNotNull("connection closed", line);
+            return line;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+
+    private FakeDispatcher mDispatcher;
+    private JsonRpcServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mDispatcher = new FakeDispatcher();
+        mServer = new JsonRpcServer(0, mDispatcher);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    private static String success(String echo, String result) {
+        return "{\"status\":\"success\"" + echo + ",\"result\":\"" + result + "\",\"error\":null}";
+    }
+
+    @Test
+    public void testSingleRequest() throws Exception {
+        try (Client client = new Client(mServer.getPort())) {
+            client.send("{\"cmd\":\"Echo\",\"params\":{\"Value\":\"1\"}}\n");
+            assertEquals(success(",\"cmd\":\"Echo\"", "Echo:{Value=1}"), client.read());
+        }
+    }
+
+    @Test
+    public void testPipelinedRequestsAnsweredInOrder() throws Exception {
+        mDispatcher.mDeferred = true;
+        try (Client client = new Client(mServer.getPort())) {
+            // Three requests in one write, completed in reverse order
+            client.send("{\"cmd\":\"A\",\"id\":1}\n{\"cmd\":\"B\",\"id\":2}\n"
+                    + "{\"cmd\":\"C\",\"id\":3}\n");
+            List<Call> calls = new ArrayList<Call>();
+            for (int i = 0; i < 3; i++) calls.add(mDispatcher.next());
+            assertEquals("A", calls.get(0).mMethod);
+            assertEquals("B", calls.get(1).mMethod);
+            assertEquals("C", calls.get(2).mMethod);
+            Collections.reverse(calls);
+            for (Call call : calls) call.complete();
+            assertEquals(success(",\"cmd\":\"A\",\"id\":1", "A:{}"), client.read());
+            assertEquals(success(",\"cmd\":\"B\",\"id\":2", "B:{}"), client.read());
+            assertEquals(success(",\"cmd\":\"C\",\"id\":3", "C:{}"), client.read());
+        }
+    }
+
+    @Test
+    public void testPendingRequestHoldsBackLaterResponses() throws Exception {
+        mDispatcher.mDeferred = true;
+        try (Client client = new Client(mServer.getPort())) {
+            client.send("{\"cmd\":\"Slow\"}\n{\"cmd\":\"Fast\"}\n");
+            Call slow = mDispatcher.next();
+            Call fast = mDispatcher.next();
+            fast.complete();
+            client.mSocket.setSoTimeout(200);
+            try {
+                client.mIn.readLine();
+                throw new AssertionError("response written before the earlier request completed");
+            } catch (SocketTimeoutException expected) {
+                // Fast must wait for Slow
+            }
+            client.mSocket.setSoTimeout(TIMEOUT_MS);
+            slow.complete();
+            assertEquals(success(",\"cmd\":\"Slow\"", "Slow:{}"), client.read());
+            assertEquals(success(",\"cmd\":\"Fast\"", "Fast:{}"), client.read());
+        }
+    }
+
+    @Test
+    public void testSeveralClients() throws Exception {
+        mDispatcher.mDeferred = true;
+        try (Client first = new Client(mServer.getPort());
+                Client second = new Client(mServer.getPort())) {
+            first.send("{\"cmd\":\"First\"}\n");
+            Call firstCall = mDispatcher.next();
+            second.send("{\"cmd\":\"Second\"}\n");
+            Call secondCall = mDispatcher.next();
+            assertEquals("First", firstCall.mMethod);
+            assertEquals("Second", secondCall.mMethod);
+            // A pending command on one connection does not hold back the other one
+            secondCall.complete();
+            assertEquals(success(",\"cmd\":\"Second\"", "Second:{}"), second.read());
+            firstCall.complete();
+            assertEquals(success(",\"cmd\":\"First\"", "First:{}"), first.read());
+        }
+    }
+
+    @Test
+    public void testRequestSplitAcrossReads() throws Exception {
+        try (Client client = new Client(mServer.getPort())) {
+            client.send("{\"cmd\":\"Spl");
+            Thread.sleep(100);
+            client.send("it\",\"params\":{\"Va");
+            Thread.sleep(100);
+            // Ends with a NUL terminator rather than a newline, as sl4n clients may send
+            client.send("lue\":\"2\"}}\0");
+            assertEquals(success(",\"cmd\":\"Split\"", "Split:{Value=2}"), client.read());
+            assertEquals("Split", mDispatcher.next().mMethod);
+            assertTrue(mDispatcher.mCalls.isEmpty());
+        }
+    }
+
+    @Test
+    public void testMultiByteCharSplitAcrossReads() throws Exception {
+        try (Client client = new Client(mServer.getPort())) {
+            byte[] request = "{\"cmd\":\"Name\",\"params\":{\"Value\":\"\u00e9\"}}\n"
+                    .getBytes(StandardCharsets.UTF_8);
+            int split = new String(request, StandardCharsets.ISO_8859_1).indexOf('\u00c3') + 1;
+            client.mOut.write(request, 0, split);
+            client.mOut.flush();
+            Thread.sleep(100);
+            client.mOut.write(request, split, request.length - split);
+            client.mOut.flush();
+            assertEquals(success(",\"cmd\":\"Name\"", "Name:{Value=\u00e9}"), client.read());
+        }
+    }
+
+    @Test
+    public void testMalformedJsonKeepsConnection() throws Exception {
+        try (Client client = new Client(mServer.getPort())) {
+            client.send("{\"cmd\":\"Broken\"\n");
+            String response = client.read();
+            assertTrue(response, response.startsWith("{\"status\":\"fail\",\"result\":false,"));
+            assertFalse(response, response.contains("\"error\":null"));
+            client.send("not json\n");
+            assertTrue(client.read().startsWith("{\"status\":\"fail\""));
+            // The connection is still usable
+            client.send("{\"cmd\":\"After\"}\n");
+            assertEquals(success(",\"cmd\":\"After\"", "After:{}"), client.read());
+            assertEquals("After", mDispatcher.next().mMethod);
+            assertTrue(mDispatcher.mCalls.isEmpty());
+        }
+    }
+
+    @Test
+    public void testCommandError() throws Exception {
+        mDispatcher.mDeferred = true;
+        try (Client client = new Client(mServer.getPort())) {
+            client.send("{\"cmd\":\"Bad\"}\n");
+            mDispatcher.next().mCallback.onResult(null, "Unknown \"Bad\"");
+            assertEquals("{\"status\":\"fail\",\"cmd\":\"Bad\",\"result\":false,"
+                    + "\"error\":\"Unknown \\\"Bad\\\"\"}", client.read());
+        }
+    }
+
+    @Test
+    public void testCmdIsEchoedAndMethodIsNot() throws Exception {
+        try (Client client = new Client(mServer.getPort())) {
+            client.send("{\"method\":\"ByMethod\",\"id\":7,\"params\":[{\"Value\":3}]}\n");
+            assertEquals(success(",\"id\":7", "ByMethod:{Value=3}"), client.read());
+            assertEquals("ByMethod", mDispatcher.next().mMethod);
+
+            client.send("{\"cmd\":\"ByCmd\",\"tag\":{\"a\":[1,2]}}\n");
+            assertEquals(success(",\"cmd\":\"ByCmd\",\"tag\":{\"a\":[1,2]}", "ByCmd:{}"),
+                    client.read());
+            assertEquals("ByCmd", mDispatcher.next().mMethod);
+        }
+    }
+
+    @Test
+    public void testCmdWinsOverMethod() throws Exception {
+        try (Client client = new Client(mServer.getPort())) {
+            client.send("{\"method\":\"Ignored\",\"cmd\":\"Used\"}\n");
+            assertEquals(success(",\"cmd\":\"Used\"", "Used:{}"), client.read());
+            client.send("{\"cmd\":\"Used\",\"method\":\"Ignored\"}\n");
+            assertEquals(success(",\"cmd\":\"Used\"", "Used:{}"), client.read());
+            assertEquals("Used", mDispatcher.next().mMethod);
+            assertEquals("Used", mDispatcher.next().mMethod);
+        }
+    }
+
+    @Test
+    public void testMissingCommand() throws Exception {
+        try (Client client = new Client(mServer.getPort())) {
+            client.send("{\"id\":1}\n");
+            assertEquals("{\"status\":\"fail\",\"id\":1,\"result\":false,"
+                    + "\"error\":\"No cmd or method specified\"}", client.read());
+            assertTrue(mDispatcher.mCalls.isEmpty());
+        }
+    }
+
+    @Test
+    public void testBuiltInCommandsAreNotDispatched() throws Exception {
+        try (Client client = new Client(mServer.getPort())) {
+            client.send("{\"cmd\":\"initiate\"}\n{\"cmd\":\"continue\"}\n");
+            assertTrue(client.read().startsWith("{\"status\":\"success\",\"cmd\":\"initiate\""));
+            assertTrue(client.read().startsWith("{\"status\":\"success\",\"cmd\":\"continue\""));
+            assertTrue(mDispatcher.mCalls.isEmpty());
+        }
+    }
+}